@@ -25,6 +25,63 @@ function guid() {
     s4() + '-' + s4() + s4() + s4();
 }
 
+function nativeUri(uri) {
+  if (uri && uri.match(/^\//)) {
+    return 'file://' + uri;
+  }
+  return uri;
+}
+
+// A source may list renditions of the same video as [{uri, bitrate}], with
+// the bitrate in bits per second. Native code picks one by the measured
+// bandwidth; the source uri, or else the first rendition's, names the item.
+function nativeSource(source) {
+  var renditions = null;
+  if (source.renditions && source.renditions.length) {
+    renditions = source.renditions.map((rendition) => ({
+      uri: nativeUri(rendition.uri),
+      bitrate: rendition.bitrate || 0
+    }));
+  }
+  var uri = nativeUri(source.uri) || (renditions && renditions[0].uri);
+  var isNetwork = !!(uri && uri.match(/^https?:/));
+  var isAsset = !!(uri && uri.match(/^(assets-library|file):/));
+  return {
+    uri: uri,
+    isNetwork,
+    isAsset,
+    type: source.type || 'mp4',
+    cache: !!source.cache,
+    resume: !!source.resume,
+    renditions
+  };
+}
+
+// Android batches progress for all playing players into one event per tick,
+// packed as [uuid, currentTime, playableDuration, uuid, ...]
+var players = {};
+var progressBatchListener = null;
+var PROGRESS_STRIDE = 3;
+
+// Progress intervals in ms. -1 follows the module-wide interval.
+var DEFAULT_PROGRESS_INTERVAL = -1;
+var DEFAULT_HIDDEN_PROGRESS_INTERVAL = 1000;
+var SCRUB_PROGRESS_INTERVAL = 33;
+
+function onProgressBatch(progress) {
+  for (var i = 0; i + PROGRESS_STRIDE <= progress.length; i += PROGRESS_STRIDE) {
+    var uuid = progress[i];
+    var player = players[uuid];
+    if (player) {
+      player._onProgress({
+        currentTime: progress[i + 1],
+        playableDuration: progress[i + 2],
+        target: uuid
+      });
+    }
+  }
+}
+
 class AVPlayer extends EventEmitter {
 
   constructor() {
@@ -32,6 +89,10 @@ class AVPlayer extends EventEmitter {
     this.uuid = guid();
     var self = this;
     NativeVideo.createVideoPlayer(this.uuid);
+    players[this.uuid] = this;
+    if (!progressBatchListener) {
+      progressBatchListener = DeviceEventEmitter.addListener('onVideoProgressBatch', onProgressBatch);
+    }
     this._loadStartListener = DeviceEventEmitter.addListener('onVideoLoadStart', (body) => {
       if (body.target === this.uuid) {
         this.emit('loadStart', body);
@@ -50,8 +111,7 @@ class AVPlayer extends EventEmitter {
     });
     this._progressListener = DeviceEventEmitter.addListener('onVideoProgress', (body) => {
       if (body.target === this.uuid || this._progressEventMatchesOnAndroid(body)) {
-        this._currentTime = body.currentTime;
-        this.emit('progress', body);
+        this._onProgress(body);
       }
     });
     this._seekListener = DeviceEventEmitter.addListener('onVideoSeek', (body) => {
@@ -65,11 +125,156 @@ class AVPlayer extends EventEmitter {
         this.emit('end', body);
       }
     });
-    this.rate = 1;
-    this.volume = 1;
-    this.repeat = true;
-    this.muted = false,
+    // With repeat on, loops are counted natively and reported at most once
+    // a second instead of an end event per loop
+    this._loopListener = DeviceEventEmitter.addListener('onVideoLoop', (body) => {
+      if (body.target === this.uuid) {
+        this.emit('loop', body);
+      }
+    });
+    this._bufferingListener = DeviceEventEmitter.addListener('onVideoBuffering', (body) => {
+      if (body.target === this.uuid) {
+        this._buffering = body.buffering;
+        this.emit('buffering', body);
+      }
+    });
+    this._renditionListener = DeviceEventEmitter.addListener('onVideoRendition', (body) => {
+      if (body.target === this.uuid) {
+        this._rendition = {uri: body.uri, bitrate: body.bitrate};
+        this.emit('rendition', body);
+      }
+    });
+    this._visibilityListener = DeviceEventEmitter.addListener('onVideoVisibility', (body) => {
+      if (body.target === this.uuid) {
+        this.emit('visibility', body);
+      }
+    });
+    this._itemLoadStartListener = DeviceEventEmitter.addListener('onVideoItemLoadStart', (body) => {
+      if (body.target === this.uuid) {
+        this.emit('itemLoadStart', body);
+      }
+    });
+    this._itemLoadListener = DeviceEventEmitter.addListener('onVideoItemLoad', (body) => {
+      if (body.target === this.uuid) {
+        this.emit('itemLoad', body);
+      }
+    });
+    this._itemErrorListener = DeviceEventEmitter.addListener('onVideoItemError', (body) => {
+      if (body.target === this.uuid) {
+        this.emit('itemError', body);
+      }
+    });
+    this._itemChangeListener = DeviceEventEmitter.addListener('onVideoItemChange', (body) => {
+      if (body.target === this.uuid) {
+        if (body.duration !== undefined) {
+          this._duration = body.duration;
+        }
+        this._currentTime = 0;
+        this.emit('itemChange', body);
+      }
+    });
     this._source = null;
+    this._progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    this._hiddenProgressInterval = DEFAULT_HIDDEN_PROGRESS_INTERVAL;
+    this._scrubbing = false;
+    this._buffering = false;
+    this._startupBuffer = 0;
+    this._rendition = null;
+    var defaults = {
+      rate: 1,
+      volume: 1,
+      repeat: true,
+      muted: false
+    };
+    if (NativeVideo.applyState && NativeVideo.setProgressIntervals) {
+      // The progress intervals go along with the defaults, so creating a
+      // player takes two bridge calls
+      var nativeState = this._toNativeState(defaults);
+      var intervals = this._wantedProgressIntervals();
+      nativeState.progressInterval = this._nativeProgressInterval = intervals[0];
+      nativeState.hiddenProgressInterval = this._nativeHiddenProgressInterval = intervals[1];
+      NativeVideo.applyState(this.uuid, nativeState, function(err) {});
+    } else {
+      this.applyState(defaults);
+      this._updateProgressIntervals();
+    }
+  }
+  // Progress is only sent while someone listens for it, so currentTime is
+  // refreshed by seeks alone when there are no progress listeners.
+  on(event, fn, context) {
+    var result = super.on(event, fn, context);
+    this._listenersChanged(event);
+    return result;
+  }
+  addListener(event, fn, context) {
+    return this.on(event, fn, context);
+  }
+  once(event, fn, context) {
+    var result = super.once(event, fn, context);
+    this._listenersChanged(event);
+    return result;
+  }
+  removeListener(event, fn, context, once) {
+    var result = super.removeListener(event, fn, context, once);
+    this._listenersChanged(event);
+    return result;
+  }
+  off(event, fn, context, once) {
+    return this.removeListener(event, fn, context, once);
+  }
+  removeAllListeners(event) {
+    var result = super.removeAllListeners(event);
+    this._listenersChanged(event);
+    return result;
+  }
+  _listenersChanged(event) {
+    if (event === undefined || event === 'progress') {
+      this._updateProgressIntervals();
+    }
+  }
+  _wantedProgressIntervals() {
+    if (!this.listeners('progress', true)) {
+      return [0, 0];
+    }
+    var visible = this._scrubbing ? SCRUB_PROGRESS_INTERVAL : this._progressInterval;
+    return [visible, this._hiddenProgressInterval];
+  }
+  _updateProgressIntervals() {
+    if (!NativeVideo.setProgressIntervals) {
+      return;
+    }
+    var intervals = this._wantedProgressIntervals();
+    var visible = intervals[0];
+    var hidden = intervals[1];
+    if (visible === this._nativeProgressInterval && hidden === this._nativeHiddenProgressInterval) {
+      return;
+    }
+    this._nativeProgressInterval = visible;
+    this._nativeHiddenProgressInterval = hidden;
+    NativeVideo.setProgressIntervals(this.uuid, visible, hidden, function(err) {});
+  }
+  // Intervals in ms while a layer shows the player and while none does.
+  setProgressIntervals(visibleMs, hiddenMs) {
+    this._progressInterval = visibleMs;
+    this._hiddenProgressInterval = hiddenMs;
+    this._updateProgressIntervals();
+  }
+  // Fine-grained progress while a scrubber is being dragged. Seeks go to
+  // the nearest keyframe meanwhile; setting it back to false seeks exactly
+  // to the last position. The whole scrub emits a single 'seek' event.
+  set scrubbing(scrubbing) {
+    this._scrubbing = !!scrubbing;
+    if (NativeVideo.setScrubbing) {
+      NativeVideo.setScrubbing(this.uuid, this._scrubbing, function(err) {});
+    }
+    this._updateProgressIntervals();
+  }
+  get scrubbing() {
+    return this._scrubbing;
+  }
+  _onProgress(body) {
+    this._currentTime = body.currentTime;
+    this.emit('progress', body);
   }
   // seek event is missing uuid on older versions on Android
   _seekEventMatchesOnAndroid (body) {
@@ -83,20 +288,53 @@ class AVPlayer extends EventEmitter {
   _errorEventMatchesOnAndroid (body) {
     return Platform.OS === 'android';
   }
+  // Sets any of source, repeat, muted, volume, rate and currentTime with a
+  // single native call
+  applyState(state, callback) {
+    callback = callback || function(err) {};
+    if (!NativeVideo.applyState) {
+      for (var key in state) {
+        this[key] = state[key];
+      }
+      callback([null, this.uuid]);
+      return;
+    }
+    NativeVideo.applyState(this.uuid, this._toNativeState(state), callback);
+  }
+  _toNativeState(state) {
+    var nativeState = {};
+    if (state.source !== undefined) {
+      nativeState.source = nativeSource(state.source);
+      this._source = state.source;
+    }
+    if (state.repeat !== undefined) {
+      nativeState.repeat = !!state.repeat;
+      this._repeat = state.repeat;
+    }
+    if (state.muted !== undefined) {
+      nativeState.muted = !!state.muted;
+      this._muted = state.muted;
+    }
+    if (state.volume !== undefined) {
+      nativeState.volume = state.volume;
+      this._volume = state.volume;
+    }
+    if (state.rate !== undefined) {
+      nativeState.rate = state.rate;
+      this._rate = state.rate;
+    }
+    if (state.preservesPitch !== undefined) {
+      nativeState.preservesPitch = !!state.preservesPitch;
+      this._preservesPitch = state.preservesPitch;
+    }
+    if (state.currentTime !== undefined) {
+      nativeState.seek = state.currentTime;
+      this._seekTime = state.currentTime;
+    }
+    return nativeState;
+  }
   set source(source) {
-    var uri = source.uri;
-    if (uri && uri.match(/^\//)) {
-      uri = 'file://' + uri;
-    }
-    var isNetwork = !!(uri && uri.match(/^https?:/));
-    var isAsset = !!(uri && uri.match(/^(assets-library|file):/));
-    var src = {
-      uri: uri,
-      isNetwork,
-      isAsset,
-      type: source.type || 'mp4'
-    };
-    NativeVideo.setSource(this.uuid, src, function(err) {});
+    NativeVideo.setSource(this.uuid, nativeSource(source), function(err) {});
     this._source = source;
   }
   get source() {
@@ -109,6 +347,36 @@ class AVPlayer extends EventEmitter {
   get repeat() {
     return this._repeat;
   }
+  // 'mediaplayer' (default) or 'mediacodec'. The MediaCodec engine seeks to
+  // exact frames and loops without a gap, but plays no audio.
+  set engine(engine) {
+    if (NativeVideo.setEngine) {
+      NativeVideo.setEngine(this.uuid, engine, function(err) {});
+    }
+    this._engine = engine;
+  }
+  get engine() {
+    return this._engine || 'mediaplayer';
+  }
+  // Seconds of a streamed source to buffer before it first starts. Higher
+  // values start later but stall less.
+  set startupBuffer(seconds) {
+    if (NativeVideo.setStartupBuffer) {
+      NativeVideo.setStartupBuffer(this.uuid, Math.round(seconds * 1000), function(err) {});
+    }
+    this._startupBuffer = seconds;
+  }
+  get startupBuffer() {
+    return this._startupBuffer;
+  }
+  // True while playback waits for the network
+  get buffering() {
+    return this._buffering;
+  }
+  // The rendition of the source playing now, {uri, bitrate}, or null
+  get rendition() {
+    return this._rendition;
+  }
   set muted(muted) {
     NativeVideo.setMuted(this.uuid, muted, function(err) {});
     this._muted = muted;
@@ -130,6 +398,16 @@ class AVPlayer extends EventEmitter {
   get rate() {
     return this._rate;
   }
+  // Keep the audio pitch when playing at rates other than 1
+  set preservesPitch(preservesPitch) {
+    if (NativeVideo.setPreservesPitch) {
+      NativeVideo.setPreservesPitch(this.uuid, preservesPitch, function(err) {});
+    }
+    this._preservesPitch = preservesPitch;
+  }
+  get preservesPitch() {
+    return this._preservesPitch;
+  }
   set currentTime(seek) {
     this._seekTime = seek;
     NativeVideo.setSeek(this.uuid, seek, function(err) {});
@@ -137,15 +415,194 @@ class AVPlayer extends EventEmitter {
   get currentTime() {
     return this._currentTime;
   }
+  // Prepares the source in the background without starting playback. Setting
+  // the same source later, or attaching a layer, promotes the prepared player.
+  preload(source) {
+    if (NativeVideo.preload) {
+      NativeVideo.preload(this.uuid, nativeSource(source), function(err) {});
+    }
+  }
+  // Plays the source after the current one without a gap, while repeat is
+  // off. The next source is prepared ahead and reported with itemLoadStart,
+  // itemLoad or itemError; itemChange follows when playback moves on.
+  enqueue(source) {
+    if (NativeVideo.enqueue) {
+      NativeVideo.enqueue(this.uuid, nativeSource(source), function(err) {});
+    }
+  }
+  skipToNext(callback) {
+    if (NativeVideo.skipToNext) {
+      NativeVideo.skipToNext(this.uuid, callback || function(err) {});
+    }
+  }
+  clearQueue() {
+    if (NativeVideo.clearQueue) {
+      NativeVideo.clearQueue(this.uuid, function(err) {});
+    }
+  }
   release() {
     NativeVideo.removePlayer(this.uuid, function(err) {});
+    delete players[this.uuid];
     this._loadStartListener.remove();
     this._loadListener.remove();
     this._errorListener.remove();
     this._progressListener.remove();
     this._seekListener.remove();
     this._endListener.remove();
+    this._loopListener.remove();
+    this._visibilityListener.remove();
+    this._bufferingListener.remove();
+    this._renditionListener.remove();
+    this._itemLoadStartListener.remove();
+    this._itemLoadListener.remove();
+    this._itemErrorListener.remove();
+    this._itemChangeListener.remove();
   }
 }
 
+// Applies [{player, state}, ...] in one native call. Nothing is applied if
+// any entry is invalid.
+AVPlayer.applyBatch = function(entries, callback) {
+  callback = callback || function(err) {};
+  if (!NativeVideo.applyBatch) {
+    entries.forEach(function(entry) {
+      entry.player.applyState(entry.state);
+    });
+    callback([null, entries.length]);
+    return;
+  }
+  var batch = entries.map(function(entry) {
+    return {
+      uuid: entry.player.uuid,
+      state: entry.player._toNativeState(entry.state)
+    };
+  });
+  NativeVideo.applyBatch(batch, callback);
+};
+
+AVPlayer.setProgressUpdateInterval = function(intervalMs) {
+  if (NativeVideo.setProgressUpdateInterval) {
+    NativeVideo.setProgressUpdateInterval(intervalMs);
+  }
+};
+
+AVPlayer.setPreloadLimits = function(maxConcurrent, maxPrepared) {
+  if (NativeVideo.setPreloadLimits) {
+    NativeVideo.setPreloadLimits(maxConcurrent, maxPrepared);
+  }
+};
+
+AVPlayer.setCacheSize = function(maxBytes) {
+  if (NativeVideo.setCacheSize) {
+    NativeVideo.setCacheSize(maxBytes);
+  }
+};
+
+AVPlayer.clearCache = function() {
+  if (NativeVideo.clearCache) {
+    NativeVideo.clearCache();
+  }
+};
+
+// Calls back with {module, players}, each holding startup, seek and
+// rebuffer metrics
+AVPlayer.getMetrics = function(callback) {
+  if (NativeVideo.getMetrics) {
+    NativeVideo.getMetrics(function(result) {
+      callback(result[0], result[1]);
+    });
+  }
+};
+
+AVPlayer.resetMetrics = function() {
+  if (NativeVideo.resetMetrics) {
+    NativeVideo.resetMetrics();
+  }
+};
+
+AVPlayer.setMetricsInterval = function(intervalMs) {
+  if (NativeVideo.setMetricsInterval) {
+    NativeVideo.setMetricsInterval(intervalMs);
+  }
+};
+
+// Periodic module-wide summary, returns a subscription with remove()
+AVPlayer.addMetricsListener = function(listener) {
+  return DeviceEventEmitter.addListener('onVideoMetrics', listener);
+};
+
+// Android only. Called with {level, pooledReleased, preloadsUnloaded,
+// playersDemoted} when the system asks to free memory. Demoted players pick
+// up where they were when shown or played again.
+AVPlayer.addMemoryTrimListener = function(listener) {
+  return DeviceEventEmitter.addListener('onVideoMemoryTrim', listener);
+};
+
+// Calls back with the position, rate, volume, muted, repeat and
+// preservesPitch last saved for a source when its player was released or
+// demoted. Sources with resume: true pick up the position on their own.
+AVPlayer.getSnapshot = function(source, callback) {
+  if (NativeVideo.getSnapshot) {
+    NativeVideo.getSnapshot(nativeSource(source).uri, function(result) {
+      callback(result[0], result[1]);
+    });
+  }
+};
+
+// Caps how many players hold a decoder at once. Players over the budget
+// release it and pick up where they were when shown or played again.
+AVPlayer.setDecoderBudget = function(maxDecoders) {
+  if (NativeVideo.setDecoderBudget) {
+    NativeVideo.setDecoderBudget(maxDecoders);
+  }
+};
+
+AVPlayer.getDecoderBudgetStats = function(callback) {
+  if (NativeVideo.getDecoderBudgetStats) {
+    NativeVideo.getDecoderBudgetStats(function(result) {
+      callback(result[0], result[1]);
+    });
+  }
+};
+
+// Calls back with the measured network bandwidth in bits per second, which
+// picks the starting rendition of sources that list several.
+AVPlayer.getBandwidthEstimate = function(callback) {
+  if (NativeVideo.getBandwidthEstimate) {
+    NativeVideo.getBandwidthEstimate(function(result) {
+      callback(result[0], result[1]);
+    });
+  }
+};
+
+// Calls back with a file:// uri of a JPEG of the frame at time (seconds),
+// scaled to fit maxSize. Frames are cached in memory and on disk.
+AVPlayer.getThumbnail = function(source, time, maxSize, callback) {
+  if (NativeVideo.getThumbnail) {
+    NativeVideo.getThumbnail(nativeSource(source).uri, time || 0, maxSize || 0, function(result) {
+      callback(result[0], result[1]);
+    });
+  }
+};
+
+AVPlayer.clearThumbnails = function() {
+  if (NativeVideo.clearThumbnails) {
+    NativeVideo.clearThumbnails();
+  }
+};
+
+AVPlayer.setPlayerPoolSize = function(maxSize) {
+  if (NativeVideo.setPlayerPoolSize) {
+    NativeVideo.setPlayerPoolSize(maxSize);
+  }
+};
+
+AVPlayer.getPlayerPoolStats = function(callback) {
+  if (NativeVideo.getPlayerPoolStats) {
+    NativeVideo.getPlayerPoolStats(function(result) {
+      callback(result[0], result[1]);
+    });
+  }
+};
+
 module.exports = AVPlayer;
@@ -23,6 +23,20 @@ var AVPlayerLayer = createReactClass({
     /* Wrapper component */
     resizeMode: PropTypes.string,
     playerUuid: PropTypes.string,
+    /* Frame shown until the player draws, {uri, time, maxSize} */
+    poster: PropTypes.shape({
+      uri: PropTypes.string,
+      time: PropTypes.number,
+      maxSize: PropTypes.number,
+    }),
+    /* Pauses the player while the layer is scrolled away, {play, pause, preload}.
+       Visible fractions to play at and to pause below, and how many layer
+       sizes off screen to get the decoder back ahead of time. */
+    visibilityThresholds: PropTypes.shape({
+      play: PropTypes.number,
+      pause: PropTypes.number,
+      preload: PropTypes.number,
+    }),
   },
 
   setNativeProps(props) {
@@ -1,56 +1,223 @@
 package com.unity3d.rctavplayer;
 
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.SurfaceTexture;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import android.os.Handler;
 import android.util.Log;
+import android.view.Surface;
 import android.webkit.CookieManager;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Created by Üstün Ergenoglu on 24/08/16.
+ *
+ * Everything touching the engine runs on the module's playback thread.
+ * Layers live on the UI thread and only read the volatile state flags or go
+ * through runOnPlaybackThread().
  */
-public class RCTAVPlayer implements MediaPlayer.OnPreparedListener,
-        MediaPlayer.OnErrorListener, MediaPlayer.OnBufferingUpdateListener,
-        MediaPlayer.OnCompletionListener
+public class RCTAVPlayer implements RCTAVPlayerEngine.Listener
 {
     private static final String TAG = RCTAVPlayer.class.getSimpleName();
 
+    private static final int NO_SEEK = -1;
+
+    private static final int LOOP_EVENT_INTERVAL_MS = 1000;
+    private static final int MIN_LOOP_CHECK_MS = 100;
+    private static final int MAX_LOOP_CHECK_MS = 5000;
+
+    // Rates probed once a source is prepared, for canPlayFastForward and
+    // canPlaySlowForward
+    private static final float PROBE_FAST_RATE = 2.0f;
+    private static final float PROBE_SLOW_RATE = 0.5f;
+
+    // A player waiting for its startup buffer starts anyway after this long
+    private static final int MAX_STARTUP_WAIT_MS = 10000;
+
+    // Renditions are picked to fit this share of the estimated bandwidth,
+    // the rest is headroom for it to vary
+    private static final double BANDWIDTH_FRACTION = 0.75;
+    // Stalls that count as sustained and switch down a rendition
+    private static final int STALLS_BEFORE_DOWNSWITCH = 3;
+    private static final int STALL_MS_BEFORE_DOWNSWITCH = 4000;
+
+    // How much of the most visible layer tracking its visibility is on
+    // screen, in increasing order
+    public static final int VISIBILITY_UNKNOWN = -1;
+    public static final int VISIBILITY_OFFSCREEN = 0;
+    public static final int VISIBILITY_NEAR = 1;
+    public static final int VISIBILITY_VISIBLE = 2;
+    private static final String[] VISIBILITY_NAMES = { "offscreen", "near", "visible" };
+
     public interface Listener
     {
         void onPrepared(RCTAVPlayer player);
+        void onDemoted(RCTAVPlayer player);
+        void onEngineChanged(RCTAVPlayer player);
         void onDestroyed();
     }
 
-    private MediaPlayer mMediaPlayer = null;
+    private volatile RCTAVPlayerEngine mEngine = null;
+    private String mEngineType = RCTAVPlayerEngine.MEDIA_PLAYER;
     private DeviceEventManagerModule.RCTDeviceEventEmitter mDeviceEventEmitter = null;
     private ReactApplicationContext mContext = null;
+    private RCTAVPlayerModule mModule = null;
     private String mUuid = null;
-    private Set<Listener> mListeners = new HashSet<>();
+    private RCTAVPlayerRegistry.Handle mHandle = null;
+    private Set<Listener> mListeners = new CopyOnWriteArraySet<>();
 
     private boolean mPaused = false;
     private boolean mRepeat = false;
     private float mRate = 0f;
+    private boolean mPreservesPitch = true;
     private boolean mMuted = false;
     private float mVolume = 0f;
-    private boolean mMediaPlayerValid = false;
+    private volatile boolean mMediaPlayerValid = false;
+    // Read by layers on the UI thread, which must not query the engine
+    private volatile int mVideoWidth = 0;
+    private volatile int mVideoHeight = 0;
     private int mVideoDuration = 0;
     private int mVideoBufferedDuration = 0;
     private boolean mIsCompleted = false;
+    private volatile boolean mPreloading = false;
+    private String mSourceUri = null;
+    private Closeable mDataSource = null;
+    private int mVisibleProgressInterval = -1;
+    private int mHiddenProgressInterval = RCTAVPlayerProgressTicker.DEFAULT_HIDDEN_INTERVAL_MS;
+    private volatile int mAttachedLayers = 0;
+    private long mLastProgressTime = 0;
+    private ReadableMap mSource = null;
+    private volatile boolean mDemoted = false;
+    private boolean mRestoring = false;
+    private int mRestorePosition = 0;
+    private boolean mRetriedExhausted = false;
+    private volatile long mLastUsedTime = 0;
+    private volatile Bitmap mPoster = null;
+    // Whether the source picks up from a snapshot, read by layers
+    private volatile boolean mResumable = false;
+    // Whether the engine has been asked for a frame while paused
+    private boolean mPreviewShown = false;
+    private boolean mSeekInFlight = false;
+    private int mPendingSeek = NO_SEEK;
+    private int mPendingSeekMode = RCTAVPlayerEngine.SEEK_DEFAULT;
+    private boolean mPendingSeekReported = true;
+    private boolean mScrubbing = false;
+    private int mScrubTarget = NO_SEEK;
+    private int mScrubStart = NO_SEEK;
+    private final ArrayList<ReadableMap> mQueue = new ArrayList<>();
+    private RCTAVPlayerEngine mNextEngine = null;
+    private Closeable mNextDataSource = null;
+    private boolean mNextPrepared = false;
+    private Handler mPlaybackHandler = null;
+    private boolean mLoopCheckScheduled = false;
+    private int mLoopCheckPosition = NO_SEEK;
+    private int mLoopCount = 0;
+    private int mReportedLoopCount = 0;
+    private long mLastLoopEventTime = 0;
+    private final Map<Object, Integer> mLayerVisibility = new HashMap<>();
+    private int mVisibility = VISIBILITY_UNKNOWN;
+    private boolean mAutoPaused = false;
+    private boolean mFullyBuffered = false;
+    private boolean mBuffering = false;
+    private int mStartupBufferMs = 0;
+    private boolean mAwaitingStartup = false;
+    private boolean mStartupWaiting = false;
+    private ReadableMap mRendition = null;
+    private ReadableMap mNextRendition = null;
+    private double mMaxBitrate = Double.MAX_VALUE;
+    private int mStalls = 0;
+    private long mStallMs = 0;
+    private long mStallStart = 0;
+    private boolean mDownswitchPending = false;
+    private boolean mMeterBuffering = false;
+    private long mMeterTime = 0;
+    private int mMeterBufferedMs = 0;
+
+    private final Runnable mStartupTimeout = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Log.d(TAG, "Startup buffer not reached in time, starting " + mUuid);
+            finishStartupWait();
+        }
+    };
+
+    // Surfaces of the layers showing this player, by layer. Like the
+    // fan-out and what the engine was last connected to, playback thread
+    // only: layers post their surface changes there.
+    private final Map<Object, SurfaceTexture> mOutputs = new LinkedHashMap<>();
+    private RCTAVPlayerFanout mFanout = null;
+    private boolean mFanoutReady = false;
+    private boolean mFanoutReleasing = false;
+    private boolean mFanoutFailed = false;
+    // Fan-out calls not completed yet, and the surfaces waiting for them
+    // before they are released
+    private int mFanoutCalls = 0;
+    private final List<SurfaceTexture> mReleasedOutputs = new ArrayList<>();
+    private RCTAVPlayerEngine mOutputEngine = null;
+    private SurfaceTexture mOutputTexture = null;
+    private Surface mOutputSurface = null;
+    private boolean mOutputFanout = false;
+
+    private final Runnable mFanoutCallDone = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            mFanoutCalls--;
+            if (mFanoutCalls > 0)
+            {
+                return;
+            }
+
+            for (SurfaceTexture surfaceTexture: mReleasedOutputs)
+            {
+                surfaceTexture.release();
+            }
+            mReleasedOutputs.clear();
+        }
+    };
+
+    private final Runnable mLoopCheck = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            checkLoop();
+        }
+    };
 
-    private Runnable mProgressUpdateRunnable = null;
-    private Handler mProgressUpdateHandler = new Handler();
+    private RCTAVPlayerProgressTicker mProgressTicker = null;
+    private RCTAVPlayerMediaPlayerPool mMediaPlayerPool = null;
+    private RCTAVPlayerPreloader mPreloader = null;
+    private RCTAVPlayerMetrics mMetrics = null;
+    private RCTAVPlayerDecoderBudget mDecoderBudget = null;
+    private RCTAVPlayerBandwidthMeter mBandwidthMeter = null;
 
     private static final String EVENT_PROP_FAST_FORWARD = "canPlayFastForward";
     private static final String EVENT_PROP_SLOW_FORWARD = "canPlaySlowForward";
@@ -66,6 +233,13 @@ public class RCTAVPlayer implements MediaPlayer.OnPreparedListener,
     private static final String EVENT_PROP_WIDTH = "width";
     private static final String EVENT_PROP_HEIGHT = "height";
     private static final String EVENT_PROP_TARGET = "target";
+    private static final String EVENT_PROP_ITEM = "item";
+    private static final String EVENT_PROP_LOOPS = "loops";
+    private static final String EVENT_PROP_VISIBILITY = "visibility";
+    private static final String EVENT_PROP_AUTO_PAUSED = "autoPaused";
+    private static final String EVENT_PROP_BUFFERING = "buffering";
+    private static final String EVENT_PROP_URI = "uri";
+    private static final String EVENT_PROP_BITRATE = "bitrate";
 
     private static final String EVENT_PROP_ERROR = "error";
     private static final String EVENT_PROP_WHAT = "what";
@@ -76,35 +250,50 @@ public class RCTAVPlayer implements MediaPlayer.OnPreparedListener,
     private static final String PROP_SRC_TYPE = "type";
     private static final String PROP_SRC_IS_NETWORK = "isNetwork";
     private static final String PROP_SRC_IS_ASSET = "isAsset";
+    private static final String PROP_SRC_CACHE = "cache";
+    private static final String PROP_SRC_RESUME = "resume";
+    private static final String PROP_SRC_RENDITIONS = "renditions";
+    private static final String PROP_RENDITION_URI = "uri";
+    private static final String PROP_RENDITION_BITRATE = "bitrate";
 
-    public RCTAVPlayer(ReactApplicationContext context)
+    private static final String STATE_SOURCE = "source";
+    private static final String STATE_REPEAT = "repeat";
+    private static final String STATE_MUTED = "muted";
+    private static final String STATE_VOLUME = "volume";
+    private static final String STATE_RATE = "rate";
+    private static final String STATE_SEEK = "seek";
+    private static final String STATE_PRESERVES_PITCH = "preservesPitch";
+    private static final String STATE_PROGRESS_INTERVAL = "progressInterval";
+    private static final String STATE_HIDDEN_PROGRESS_INTERVAL = "hiddenProgressInterval";
+
+    public RCTAVPlayer(ReactApplicationContext context, RCTAVPlayerModule module)
     {
-        mMediaPlayer = new MediaPlayer();
         mContext = context;
+        mModule = module;
+        mProgressTicker = module.getProgressTicker();
+        mMediaPlayerPool = module.getMediaPlayerPool();
+        mPreloader = module.getPreloader();
+        mMetrics = new RCTAVPlayerMetrics(module.getModuleMetrics());
+        mDecoderBudget = module.getDecoderBudget();
+        mBandwidthMeter = module.getBandwidthMeter();
+        mPlaybackHandler = module.getPlaybackHandler();
         mDeviceEventEmitter = mContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class);
+        mEngine = createEngine();
+    }
 
-        mMediaPlayer.setOnPreparedListener(this);
-        mMediaPlayer.setOnBufferingUpdateListener(this);
-        mMediaPlayer.setOnErrorListener(this);
-        mMediaPlayer.setOnCompletionListener(this);
-
-        mProgressUpdateRunnable = new Runnable()
+    private RCTAVPlayerEngine createEngine()
+    {
+        RCTAVPlayerEngine engine;
+        if (RCTAVPlayerEngine.MEDIA_CODEC.equals(mEngineType))
         {
-            @Override
-            public void run()
-            {
-                if (mMediaPlayerValid && !mIsCompleted)
-                {
-                    WritableMap event = Arguments.createMap();
-                    event.putDouble(EVENT_PROP_CURRENT_TIME, mMediaPlayer.getCurrentPosition() / 1000.0);
-                    event.putDouble(EVENT_PROP_PLAYABLE_DURATION, mVideoBufferedDuration / 1000.0); //TODO:mBufferUpdateRunnable
-                    event.putString(EVENT_PROP_TARGET, mUuid);
-                    mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_PROGRESS.toString(), event);
-                }
-                mProgressUpdateHandler.postDelayed(mProgressUpdateRunnable, 250);
-            }
-        };
-        mProgressUpdateHandler.post(mProgressUpdateRunnable);
+            engine = new RCTAVPlayerCodecEngine(mContext, mModule.getCodecLooper());
+        }
+        else
+        {
+            engine = new RCTAVPlayerMediaPlayerEngine(mMediaPlayerPool);
+        }
+        engine.setListener(this);
+        return engine;
     }
 
     @Override
@@ -128,277 +317,2243 @@ public class RCTAVPlayer implements MediaPlayer.OnPreparedListener,
         return mUuid;
     }
 
+    void setHandle(RCTAVPlayerRegistry.Handle handle)
+    {
+        mHandle = handle;
+    }
+
+    public RCTAVPlayerRegistry.Handle getHandle()
+    {
+        return mHandle;
+    }
+
     public boolean isMediaPlayerValid()
     {
         return mMediaPlayerValid;
     }
 
-    public void setSource(ReadableMap source)
+    /**
+     * Current position in milliseconds. Only valid while the media player is.
+     */
+    public int getCurrentPosition()
     {
-        boolean isNetwork = source.getBoolean(PROP_SRC_IS_NETWORK);
-        boolean isAsset = source.getBoolean(PROP_SRC_IS_ASSET);
-        String uri = source.getString(PROP_SRC_URI);
-        String type = source.getString(PROP_SRC_TYPE);
-        Log.d(TAG, "Trying to open file from URI: " + uri);
+        return mEngine.getCurrentPosition();
+    }
 
-        mMediaPlayerValid = false;
-        mMediaPlayer.reset();
-        mVideoBufferedDuration = 0;
-        mVideoDuration = 0;
+    /**
+     * How far playback can go without waiting for the network, in
+     * milliseconds. Local and fully cached sources are playable to the end,
+     * and what is already played is never counted as missing.
+     */
+    public int getBufferedDuration()
+    {
+        if (!mMediaPlayerValid)
+        {
+            return 0;
+        }
+        if (mFullyBuffered)
+        {
+            return mVideoDuration;
+        }
 
-        try
+        return Math.min(mVideoDuration, Math.max(mVideoBufferedDuration, mEngine.getCurrentPosition()));
+    }
+
+    /**
+     * Holds back the first start of a streamed source until this many
+     * milliseconds past the position are buffered, so playback does not
+     * stall right away. 0 starts as soon as the source is prepared.
+     */
+    public void setStartupBuffer(int startupBufferMs)
+    {
+        mStartupBufferMs = Math.max(0, startupBufferMs);
+        if (mStartupWaiting && hasStartupBuffer())
         {
-            if (isNetwork)
-            {
-                // Use the shared CookieManager to access the cookies
-                // set by WebViews inside the same app
-                CookieManager cookieManager = CookieManager.getInstance();
+            finishStartupWait();
+        }
+    }
 
-                Uri parsedUrl = Uri.parse(uri);
-                Uri.Builder builtUrl = parsedUrl.buildUpon();
+    private boolean hasStartupBuffer()
+    {
+        int buffered = getBufferedDuration();
+        return buffered >= mVideoDuration || buffered - mEngine.getCurrentPosition() >= mStartupBufferMs;
+    }
 
-                String cookie = cookieManager.getCookie(builtUrl.build().toString());
+    /**
+     * Returns true if starting has to wait for the startup buffer. The wait
+     * is reported as buffering and ends in finishStartupWait(), or in
+     * stopStartupWait() when the player is paused first.
+     */
+    private boolean waitForStartupBuffer()
+    {
+        // Only a start JS asked for waits
+        if (!mAwaitingStartup || mPaused)
+        {
+            return false;
+        }
 
-                Map<String, String> headers = new HashMap<>();
+        if (hasStartupBuffer())
+        {
+            mAwaitingStartup = false;
+            return false;
+        }
 
-                if (cookie != null)
-                {
-                    headers.put("Cookie", cookie);
-                }
+        if (!mStartupWaiting)
+        {
+            Log.d(TAG, "Waiting for " + mStartupBufferMs + " ms of buffer before starting " + mUuid);
+            mStartupWaiting = true;
+            setBuffering(true);
+            mPlaybackHandler.postDelayed(mStartupTimeout, MAX_STARTUP_WAIT_MS);
+        }
+        return true;
+    }
 
-                mMediaPlayer.setDataSource(mContext, parsedUrl, headers);
-            }
-            else if (isAsset)
-            {
-                if (uri.startsWith("content://"))
-                {
-                    Uri parsedUrl = Uri.parse(uri);
-                    mMediaPlayer.setDataSource(mContext, parsedUrl);
-                }
-                else
-                {
-                    mMediaPlayer.setDataSource(uri);
-                }
-            }
+    private void finishStartupWait()
+    {
+        cancelStartupWait();
+        if (mMediaPlayerValid && !mPaused)
+        {
+            setPaused(false);
         }
-        catch (Exception e)
+    }
+
+    /**
+     * Ends any buffering of a source that is going away.
+     */
+    private void resetBuffering()
+    {
+        cancelStartupWait();
+        setBuffering(false);
+        mMeterTime = 0;
+    }
+
+    private void cancelStartupWait()
+    {
+        mAwaitingStartup = false;
+        stopStartupWait();
+    }
+
+    /**
+     * Ends the buffering a paused start was waiting in. The next start
+     * waits again if the buffer is still short.
+     */
+    private void stopStartupWait()
+    {
+        mPlaybackHandler.removeCallbacks(mStartupTimeout);
+        if (mStartupWaiting)
+        {
+            mStartupWaiting = false;
+            setBuffering(false);
+        }
+    }
+
+    /**
+     * Sends onVideoBuffering when playback stalls or resumes, for a network
+     * stall as much as for the startup buffer.
+     */
+    private void setBuffering(boolean buffering)
+    {
+        if (mBuffering == buffering)
         {
-            Log.e(TAG, "Error loading video - " + e.getMessage());
             return;
         }
 
-        WritableMap src = Arguments.createMap();
-        src.putString(PROP_SRC_URI, uri);
-        src.putString(PROP_SRC_TYPE, type);
-        src.putBoolean(PROP_SRC_IS_NETWORK, isNetwork);
+        mBuffering = buffering;
         WritableMap event = Arguments.createMap();
-        event.putMap(PROP_SRC, src);
+        event.putBoolean(EVENT_PROP_BUFFERING, buffering);
+        if (mMediaPlayerValid)
+        {
+            event.putDouble(EVENT_PROP_CURRENT_TIME, mEngine.getCurrentPosition() / 1000.0);
+            event.putDouble(EVENT_PROP_PLAYABLE_DURATION, getBufferedDuration() / 1000.0);
+        }
         event.putString(EVENT_PROP_TARGET, mUuid);
-        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_LOAD_START.toString(), event);
-
-        mMediaPlayer.prepareAsync();
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_BUFFERING.toString(), event);
     }
 
-    public void setRepeat(boolean repeat)
+    /**
+     * Sets how often progress is reported while a layer shows this player
+     * and while none does. 0 turns progress off, a negative visible interval
+     * follows the module-wide default.
+     */
+    public void setProgressIntervals(int visibleMs, int hiddenMs)
     {
-        mRepeat = repeat;
-        applyModifiers();
+        Log.d(TAG, "Setting progress intervals " + visibleMs + "/" + hiddenMs + " ms (" + mUuid + ")");
+        mVisibleProgressInterval = visibleMs;
+        mHiddenProgressInterval = Math.max(hiddenMs, 0);
+        mProgressTicker.reschedule();
     }
 
-    public void setPaused(boolean paused)
+    int getProgressInterval()
     {
-        mPaused = paused;
-
-        if (!mMediaPlayerValid)
+        if (mAttachedLayers == 0)
         {
-            Log.w(TAG, "setPaused(" + paused + ") called with invalid media player");
-            return;
+            return mHiddenProgressInterval;
         }
 
-        if (mPaused)
+        return mVisibleProgressInterval < 0 ? mProgressTicker.getInterval() : mVisibleProgressInterval;
+    }
+
+    long getLastProgressTime()
+    {
+        return mLastProgressTime;
+    }
+
+    void setLastProgressTime(long time)
+    {
+        mLastProgressTime = time;
+    }
+
+    /**
+     * Called on the UI thread when a layer showing this player is attached
+     * to or detached from the window. Applied on the playback thread, which
+     * owns the progress ticker and the decoder budget.
+     */
+    public void onLayerAttached()
+    {
+        runOnPlaybackThread(new Runnable()
         {
-            if (mMediaPlayer.isPlaying())
+            @Override
+            public void run()
             {
-                Log.d(TAG, "Pausing playback");
-                mMediaPlayer.pause();
-                mIsCompleted = true;
+                mAttachedLayers++;
+                mLastUsedTime = SystemClock.uptimeMillis();
+                mProgressTicker.reschedule();
+                restore();
             }
-        }
-        else
+        });
+    }
+
+    public void onLayerDetached()
+    {
+        runOnPlaybackThread(new Runnable()
         {
-            if (!mMediaPlayer.isPlaying())
+            @Override
+            public void run()
             {
-                Log.d(TAG, "Starting playback");
-                mMediaPlayer.start();
-                mMediaPlayer.setOnCompletionListener(this);
-                mIsCompleted = false;
+                mAttachedLayers = Math.max(mAttachedLayers - 1, 0);
+                mProgressTicker.reschedule();
             }
+        });
+    }
+
+    /**
+     * Sets the surface a layer shows this player in, null once it has none.
+     * With one surface the engine decodes straight into it. With more, it
+     * decodes once into an RCTAVPlayerFanout that draws every frame into all
+     * of them. A new engine is connected to the same surfaces by the player
+     * itself. Called on the playback thread.
+     */
+    public void setOutput(Object layer, SurfaceTexture surfaceTexture)
+    {
+        if (surfaceTexture != null)
+        {
+            mOutputs.put(layer, surfaceTexture);
         }
+        else if (mOutputs.remove(layer) == null)
+        {
+            return;
+        }
+
+        updateOutputs();
     }
 
-    public void setSeek(float seekTime)
+    /**
+     * Takes a destroyed surface off the engine and releases it. Layers hand
+     * their surfaces over instead of releasing them on the UI thread, where
+     * the engine could still be drawing into them. Also called on removed
+     * players. Called on the playback thread.
+     */
+    public void releaseOutput(Object layer, SurfaceTexture surfaceTexture)
     {
-        int msec = (int) (seekTime * 1000.0f);
-        if (mMediaPlayerValid)
+        if (mOutputs.get(layer) == surfaceTexture)
         {
-            WritableMap event = Arguments.createMap();
-            event.putDouble(EVENT_PROP_CURRENT_TIME, mMediaPlayer.getCurrentPosition() / 1000.0);
-            event.putDouble(EVENT_PROP_SEEK_TIME, msec / 1000.0);
-            event.putString(EVENT_PROP_TARGET, mUuid);
-            mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_SEEK.toString(), event);
+            setOutput(layer, null);
+        }
 
-            mMediaPlayer.seekTo(msec);
-            if (mIsCompleted && mVideoDuration != 0 && msec < mVideoDuration)
-            {
-                mIsCompleted = false;
-            }
+        // The fan-out draws into it until the calls posted so far are done
+        if (mFanoutCalls > 0)
+        {
+            mReleasedOutputs.add(surfaceTexture);
+        }
+        else
+        {
+            surfaceTexture.release();
         }
     }
 
-    public void setRate(float rate)
+    private void updateOutputs()
     {
-        Log.d(TAG, "Setting rate " + mRate + " -> " + rate + "(" + mUuid + ")");
-        mRate = rate;
-        if (mMediaPlayerValid)
+        RCTAVPlayerEngine engine = mEngine;
+        if (engine == null || mFanoutReleasing)
         {
-            if (rate == 1.0f)
-            {
-                setPaused(false);
-            }
-            else if (rate == 0.0f)
+            // Called again once the fan-out has let go of the outputs
+            return;
+        }
+
+        if (mOutputs.size() > 1 && !mFanoutFailed && RCTAVPlayerFanout.isSupported())
+        {
+            if (mFanout == null)
             {
-                setPaused(true);
+                startFanout();
             }
-            else
+            if (mFanoutReady)
             {
-                Log.w(TAG, "Setting playback rate is not yet supported on Android");
+                // The engine lets go of a layer's surface before the
+                // fan-out draws into it
+                connectOutput(engine, null, true);
+                mFanout.setOutputs(new ArrayList<>(mOutputs.values()), mFanoutCallDone);
+                mFanoutCalls++;
+                return;
             }
+            // Until GL is set up, or without it, the layer set last shows
+            // the video
+        }
+        else if (mFanout != null)
+        {
+            releaseFanout(engine);
+            return;
+        }
+
+        SurfaceTexture target = null;
+        for (SurfaceTexture surfaceTexture: mOutputs.values())
+        {
+            target = surfaceTexture;
         }
+
+        connectOutput(engine, target, false);
     }
 
-    public void setMuted(boolean muted)
+    private void startFanout()
     {
-        mMuted = muted;
-        applyModifiers();
+        Log.d(TAG, "Fanning out " + mUuid + " to " + mOutputs.size() + " layers");
+        mFanoutCalls++;
+        mFanout = new RCTAVPlayerFanout(mPlaybackHandler, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                RCTAVPlayerFanout fanout = mFanout;
+                if (fanout != null && !mFanoutReleasing)
+                {
+                    if (fanout.getInputSurface() != null)
+                    {
+                        mFanoutReady = true;
+                    }
+                    else
+                    {
+                        Log.w(TAG, "Cannot fan out " + mUuid + ", showing one layer");
+                        mFanoutFailed = true;
+                        mFanout = null;
+                        mFanoutCalls++;
+                        fanout.release(mFanoutCallDone);
+                    }
+                    updateOutputs();
+                }
+                mFanoutCallDone.run();
+            }
+        });
     }
 
-    public void setVolume(float volume)
+    /**
+     * The engine lets go of the input surface first. The layer left is
+     * connected once the fan-out has let go of it.
+     */
+    private void releaseFanout(RCTAVPlayerEngine engine)
     {
-        mVolume = volume;
-        applyModifiers();
+        connectOutput(engine, null, false);
+        mFanoutReleasing = true;
+        mFanoutCalls++;
+        mFanout.release(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mFanout = null;
+                mFanoutReady = false;
+                mFanoutReleasing = false;
+                updateOutputs();
+                mFanoutCallDone.run();
+            }
+        });
     }
 
-    private void applyModifiers()
+    /**
+     * Connects the engine to the fan-out, to a layer's surface or, with
+     * neither, to nothing.
+     */
+    private void connectOutput(RCTAVPlayerEngine engine, SurfaceTexture target, boolean fanout)
     {
-        if (mMuted)
+        if (engine == mOutputEngine && target == mOutputTexture && fanout == mOutputFanout)
         {
-            mMediaPlayer.setVolume(0f, 0f);
+            return;
         }
-        else
+
+        Surface previous = mOutputSurface;
+        Surface surface = null;
+        if (fanout)
         {
-            mMediaPlayer.setVolume(mVolume, mVolume);
+            surface = mFanout.getInputSurface();
+        }
+        else if (target != null)
+        {
+            surface = new Surface(target);
         }
 
-        // To set the preview in the window
-        setPaused(false);
-        if (mRate == 0.0f)
+        mOutputEngine = engine;
+        mOutputTexture = target;
+        mOutputFanout = fanout;
+        // The input surface belongs to the fan-out
+        mOutputSurface = fanout ? null : surface;
+        try
         {
-            setPaused(true);
+            engine.setSurface(surface);
+        }
+        catch (IllegalStateException e)
+        {
+            // The engine is being released, a new one gets connected
+            Log.w(TAG, "Cannot connect surface to the engine of " + mUuid);
+        }
+
+        if (previous != null)
+        {
+            previous.release();
         }
     }
 
-    public MediaPlayer getMediaPlayer()
+    public boolean isPreloading()
     {
-        return mMediaPlayer;
+        return mPreloading;
     }
 
-    public void invalidate()
+    /**
+     * The size of the video last prepared, for layers to scale with.
+     */
+    public int getVideoWidth()
     {
-        Log.d(TAG, "Invalidating RCTAVPlayerLayer " + mUuid);
-        mMediaPlayerValid = false;
-        mMediaPlayer.release();
-        mMediaPlayer = null;
-        mProgressUpdateHandler.removeCallbacks(mProgressUpdateRunnable);
-
-        for (Listener l: mListeners)
-        {
-            l.onDestroyed();
-        }
+        return mVideoWidth;
     }
 
-    public void addListener(Listener listener)
+    public int getVideoHeight()
     {
-        mListeners.add(listener);
+        return mVideoHeight;
     }
 
-    public void removeListener(Listener listener)
+    private void updateVideoSize()
     {
-        mListeners.remove(listener);
+        mVideoWidth = mEngine.getVideoWidth();
+        mVideoHeight = mEngine.getVideoHeight();
     }
 
-    @Override
-    public void onBufferingUpdate(MediaPlayer mp, int percent)
+    boolean isVisible()
     {
-        mVideoBufferedDuration = (int) Math.round((double) (mVideoDuration * percent) / 100.0);
+        return mAttachedLayers > 0;
     }
 
-    @Override
-    public void onCompletion(MediaPlayer mp)
+    /**
+     * Whether a layer shows this player and is not known to be scrolled off
+     * screen.
+     */
+    boolean isOnScreen()
     {
-        if (mRepeat)
-        {
-            mMediaPlayer.start();
-        }
-        else
-        {
-            mIsCompleted = true;
-        }
-
-        WritableMap event = Arguments.createMap();
-        event.putString(EVENT_PROP_TARGET, mUuid);
-
-        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_END.toString(), event);
+        return mAttachedLayers > 0 && mVisibility != VISIBILITY_OFFSCREEN;
     }
 
-    @Override
-    public boolean onError(MediaPlayer mp, int what, int extra)
+    boolean isPlaying()
     {
-        Log.e(TAG, "Error playing media. Code: " + what + " " + extra + " player uuid: " + mUuid);
-        mMediaPlayerValid = false;
-        WritableMap error = Arguments.createMap();
-        error.putInt(EVENT_PROP_WHAT, what);
-        error.putInt(EVENT_PROP_EXTRA, extra);
-        WritableMap event = Arguments.createMap();
-        event.putMap(EVENT_PROP_ERROR, error);
-        event.putString(EVENT_PROP_TARGET, mUuid);
-        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_ERROR.toString(), event);
-        return true;
+        return mMediaPlayerValid && !mPreloading && mEngine.isPlaying();
     }
 
-    @Override
-    public void onPrepared(MediaPlayer mp)
+    long getLastUsedTime()
     {
+        return mLastUsedTime;
+    }
+
+    public boolean isDemoted()
+    {
+        return mDemoted;
+    }
+
+    /**
+     * Whether a preload may use this player: it has no source yet, lost it to
+     * an unload, or only holds another preload. Active, loading and demoted
+     * players keep their source.
+     */
+    boolean canPreload()
+    {
+        return mSource == null || mPreloading;
+    }
+
+    public boolean hasSource(ReadableMap source)
+    {
+        String uri = source.getString(PROP_SRC_URI);
+        return uri != null && uri.equals(mSourceUri);
+    }
+
+    public void setSource(ReadableMap source)
+    {
+        if (mPreloading && hasSource(source))
+        {
+            Log.d(TAG, "Source already preloaded for " + mUuid);
+            promote();
+            return;
+        }
+
+        if (mPreloading)
+        {
+            mPreloading = false;
+            mPreloader.remove(this);
+        }
+
+        openSource(source);
+    }
+
+    /**
+     * Starts preparing a source without starting playback. Called by
+     * RCTAVPlayerPreloader when a preload slot becomes available.
+     */
+    boolean startPreload(ReadableMap source)
+    {
+        // setSource may have run while the request was pending
+        if (hasSource(source) || !canPreload())
+        {
+            return false;
+        }
+
+        mPreloading = true;
+        if (!openSource(source))
+        {
+            mPreloading = false;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Turns a preloaded player into an active one. Prepared players apply
+     * their modifiers right away, so no new onVideoLoad is needed.
+     */
+    public void promote()
+    {
+        if (!mPreloading)
+        {
+            return;
+        }
+
+        Log.d(TAG, "Promoting preloaded player " + mUuid);
+        mPreloading = false;
+        mLastUsedTime = SystemClock.uptimeMillis();
+        mPreloader.remove(this);
+        mMetrics.onPromoted();
+
+        if (mMediaPlayerValid)
+        {
+            applyModifiers();
+        }
+    }
+
+    /**
+     * Drops a preloaded source to free its decoder. Called by
+     * RCTAVPlayerPreloader when the prepared budget is exceeded.
+     */
+    void unloadPreload()
+    {
+        mPreloading = false;
+        mMediaPlayerValid = false;
+        mSourceUri = null;
+        mSource = null;
+        clearSeeks();
+        resetBuffering();
+        mEngine.reset();
+        mDecoderBudget.release(this);
+        closeDataSource();
+        mVideoBufferedDuration = 0;
+        mVideoDuration = 0;
+    }
+
+    /**
+     * Releases the decoder to make room for a higher ranked player. Called by
+     * RCTAVPlayerDecoderBudget. The source and position are kept so restore()
+     * can pick up where playback left off; a preload is simply dropped.
+     */
+    void demote()
+    {
+        if (mPreloading)
+        {
+            mPreloader.remove(this);
+            unloadPreload();
+            return;
+        }
+
+        Log.d(TAG, "Demoting " + mUuid);
+        RCTAVPlayerSnapshot snapshot = takeSnapshot();
+        mModule.saveSnapshot(mSourceUri, snapshot);
+        // A seek still waiting is where the user wants to be
+        mRestorePosition = mPendingSeek != NO_SEEK ? mPendingSeek : snapshot.getPosition();
+        clearSeeks();
+        resetBuffering();
+        releaseNext();
+        mDemoted = true;
+        mMediaPlayerValid = false;
+        mProgressTicker.removePlayer(this);
+        mMetrics.onStopped();
+        mEngine.reset();
+        closeDataSource();
+
+        for (Listener l: mListeners)
+        {
+            l.onDemoted(this);
+        }
+    }
+
+    private RCTAVPlayerSnapshot takeSnapshot()
+    {
+        int position = mMediaPlayerValid ? mEngine.getCurrentPosition() : mRestorePosition;
+        return new RCTAVPlayerSnapshot(mSource, position, mRate, mVolume, mMuted, mRepeat, mPreservesPitch, mPoster);
+    }
+
+    /**
+     * The last frame a layer showed for this player, drawn by layers while
+     * the decoder is not ready.
+     */
+    public Bitmap getPoster()
+    {
+        return mPoster;
+    }
+
+    void setPoster(Bitmap poster)
+    {
+        mPoster = poster;
+    }
+
+    /**
+     * Whether the source resumes from a snapshot, which keeps the poster
+     * once the player is removed.
+     */
+    boolean isResumable()
+    {
+        return mResumable;
+    }
+
+    /**
+     * Reopens the source of a demoted player and seeks back to where it was.
+     * JS sees no new load events, playback simply continues.
+     */
+    void restore()
+    {
+        if (!mDemoted || mSource == null)
+        {
+            return;
+        }
+
+        Log.d(TAG, "Restoring " + mUuid + " at " + mRestorePosition + " ms");
+        mDemoted = false;
+        mRestoring = true;
+        if (!openSource(mSource, false))
+        {
+            mRestoring = false;
+        }
+    }
+
+    private boolean openSource(ReadableMap source)
+    {
+        mRestoring = false;
+        mRestorePosition = 0;
+        mRetriedExhausted = false;
+        mPoster = null;
+        mMaxBitrate = Double.MAX_VALUE;
+        mResumable = source.hasKey(PROP_SRC_RESUME) && source.getBoolean(PROP_SRC_RESUME);
+
+        // Pick up where the last player of this source left off
+        if (mResumable)
+        {
+            RCTAVPlayerSnapshot snapshot = mModule.getSnapshot(source.getString(PROP_SRC_URI));
+            if (snapshot != null)
+            {
+                Log.d(TAG, "Resuming " + mUuid + " at " + snapshot.getPosition() + " ms");
+                mRestorePosition = snapshot.getPosition();
+                mPoster = snapshot.getPoster();
+            }
+        }
+
+        return openSource(source, true);
+    }
+
+    private boolean openSource(ReadableMap source, boolean emitLoadStart)
+    {
+        String uri = source.getString(PROP_SRC_URI);
+        Log.d(TAG, "Trying to open file from URI: " + uri);
+
+        mMediaPlayerValid = false;
+        mDemoted = false;
+        mPreviewShown = false;
+        mProgressTicker.removePlayer(this);
+        clearSeeks();
+        resetBuffering();
+        releaseNext();
+        resetLoopCount();
+        mEngine.reset();
+        closeDataSource();
+        mVideoBufferedDuration = 0;
+        mVideoDuration = 0;
+        mSourceUri = uri;
+        mSource = source;
+        ReadableMap previousRendition = mRendition;
+        mRendition = selectRendition(source, mMaxBitrate);
+        resetStalls();
+        if (!mPreloading)
+        {
+            mLastUsedTime = SystemClock.uptimeMillis();
+        }
+
+        if (!mDecoderBudget.acquire(this))
+        {
+            mSourceUri = null;
+            mSource = null;
+            return false;
+        }
+
+        try
+        {
+            mDataSource = setDataSource(mEngine, source, getPlaybackUri(source, mRendition));
+            // Mapped sources are local or completely cached
+            mFullyBuffered = !source.getBoolean(PROP_SRC_IS_NETWORK) || mDataSource != null;
+            mMeterBuffering = !mFullyBuffered && !isMeteredByProxy(source);
+        }
+        catch (Exception e)
+        {
+            Log.e(TAG, "Error loading video - " + e.getMessage());
+            mSourceUri = null;
+            mSource = null;
+            mDecoderBudget.release(this);
+            return false;
+        }
+
+        if (emitLoadStart)
+        {
+            WritableMap event = Arguments.createMap();
+            event.putMap(PROP_SRC, sourceEvent(source));
+            event.putString(EVENT_PROP_TARGET, mUuid);
+            mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_LOAD_START.toString(), event);
+        }
+        if (mRendition != null && (emitLoadStart || previousRendition == null
+                || !getPlaybackUri(source, mRendition).equals(getPlaybackUri(source, previousRendition))))
+        {
+            emitRendition();
+        }
+
+        mMetrics.onLoadStart();
+        mEngine.prepareAsync();
+        return true;
+    }
+
+    /**
+     * Picks the highest rendition of a source that fits the estimated
+     * bandwidth and maxBitrate, or the lowest one if none does. Returns null
+     * for a source without renditions.
+     */
+    private ReadableMap selectRendition(ReadableMap source, double maxBitrate)
+    {
+        ReadableArray renditions = getRenditions(source);
+        if (renditions == null)
+        {
+            return null;
+        }
+
+        double budget = Math.min(maxBitrate, mBandwidthMeter.getEstimate() * BANDWIDTH_FRACTION);
+        ReadableMap best = null;
+        ReadableMap lowest = null;
+        for (int i = 0; i < renditions.size(); i++)
+        {
+            ReadableMap rendition = renditions.getMap(i);
+            double bitrate = rendition.getDouble(PROP_RENDITION_BITRATE);
+            if (lowest == null || bitrate < lowest.getDouble(PROP_RENDITION_BITRATE))
+            {
+                lowest = rendition;
+            }
+            if (bitrate <= budget && (best == null || bitrate > best.getDouble(PROP_RENDITION_BITRATE)))
+            {
+                best = rendition;
+            }
+        }
+
+        return best != null ? best : lowest;
+    }
+
+    /**
+     * The highest rendition below the given one, or null if it is the lowest.
+     */
+    private static ReadableMap getLowerRendition(ReadableMap source, ReadableMap rendition)
+    {
+        ReadableArray renditions = getRenditions(source);
+        if (renditions == null || rendition == null)
+        {
+            return null;
+        }
+
+        double current = rendition.getDouble(PROP_RENDITION_BITRATE);
+        ReadableMap lower = null;
+        for (int i = 0; i < renditions.size(); i++)
+        {
+            ReadableMap candidate = renditions.getMap(i);
+            double bitrate = candidate.getDouble(PROP_RENDITION_BITRATE);
+            if (bitrate < current && (lower == null || bitrate > lower.getDouble(PROP_RENDITION_BITRATE)))
+            {
+                lower = candidate;
+            }
+        }
+
+        return lower;
+    }
+
+    private static ReadableArray getRenditions(ReadableMap source)
+    {
+        if (!source.hasKey(PROP_SRC_RENDITIONS) || source.isNull(PROP_SRC_RENDITIONS))
+        {
+            return null;
+        }
+
+        ReadableArray renditions = source.getArray(PROP_SRC_RENDITIONS);
+        return renditions.size() > 0 ? renditions : null;
+    }
+
+    /**
+     * The uri actually played. The source uri stays the identity of the
+     * item, for snapshots and preloads, whichever rendition plays.
+     */
+    private static String getPlaybackUri(ReadableMap source, ReadableMap rendition)
+    {
+        return rendition != null ? rendition.getString(PROP_RENDITION_URI) : source.getString(PROP_SRC_URI);
+    }
+
+    /**
+     * Whether the cache proxy downloads the source, and feeds the bandwidth
+     * meter by itself.
+     */
+    private boolean isMeteredByProxy(ReadableMap source)
+    {
+        return source.hasKey(PROP_SRC_CACHE) && source.getBoolean(PROP_SRC_CACHE) && mModule.getCacheProxy() != null;
+    }
+
+    private void emitRendition()
+    {
+        WritableMap event = Arguments.createMap();
+        event.putString(EVENT_PROP_URI, mRendition.getString(PROP_RENDITION_URI));
+        event.putDouble(EVENT_PROP_BITRATE, mRendition.getDouble(PROP_RENDITION_BITRATE));
+        event.putString(EVENT_PROP_TARGET, mUuid);
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_RENDITION.toString(), event);
+    }
+
+    /**
+     * Without the cache proxy the bandwidth is judged by how fast the buffer
+     * grows, as media time at the rendition's bitrate. Stretches where it
+     * does not grow are skipped, the player may simply have buffered enough.
+     */
+    private void meterBuffering(int bufferedMs, int percent)
+    {
+        if (!mMeterBuffering || mRendition == null || percent >= 100)
+        {
+            mMeterTime = 0;
+            return;
+        }
+
+        double bitrate = mRendition.getDouble(PROP_RENDITION_BITRATE);
+        long now = SystemClock.uptimeMillis();
+        if (mMeterTime != 0 && bufferedMs > mMeterBufferedMs && bitrate > 0)
+        {
+            long bytes = (long) ((bufferedMs - mMeterBufferedMs) * bitrate / 8000.0);
+            mBandwidthMeter.addSample(bytes, now - mMeterTime);
+        }
+        mMeterTime = now;
+        mMeterBufferedMs = bufferedMs;
+    }
+
+    private void resetStalls()
+    {
+        mStalls = 0;
+        mStallMs = 0;
+        mStallStart = 0;
+        mDownswitchPending = false;
+    }
+
+    private void onStallStart()
+    {
+        if (mPaused || mRendition == null)
+        {
+            return;
+        }
+
+        mStalls++;
+        mStallStart = SystemClock.uptimeMillis();
+        checkStalls();
+    }
+
+    private void onStallEnd()
+    {
+        if (mStallStart == 0)
+        {
+            return;
+        }
+
+        mStallMs += SystemClock.uptimeMillis() - mStallStart;
+        mStallStart = 0;
+        checkStalls();
+    }
+
+    /**
+     * Sustained stalls switch down a rendition, but not right away: the
+     * switch reopens the source, so it waits for the next seek or replay.
+     */
+    private void checkStalls()
+    {
+        if (mDownswitchPending || (mStalls < STALLS_BEFORE_DOWNSWITCH && mStallMs < STALL_MS_BEFORE_DOWNSWITCH))
+        {
+            return;
+        }
+
+        mDownswitchPending = getLowerRendition(mSource, mRendition) != null;
+        if (mDownswitchPending)
+        {
+            Log.d(TAG, mStalls + " stalls for " + mStallMs + " ms, switching " + mUuid + " down at the next seek");
+        }
+    }
+
+    /**
+     * Reopens the source at the next lower rendition from msec, in place of
+     * a seek or replay. Returns false if no switch was pending.
+     */
+    private boolean applyDownswitch(int msec)
+    {
+        if (!mDownswitchPending || !mMediaPlayerValid || mSource == null)
+        {
+            return false;
+        }
+
+        ReadableMap lower = getLowerRendition(mSource, mRendition);
+        mDownswitchPending = false;
+        if (lower == null)
+        {
+            return false;
+        }
+
+        Log.d(TAG, "Switching " + mUuid + " down to " + lower.getDouble(PROP_RENDITION_BITRATE) + " bps");
+        mMaxBitrate = lower.getDouble(PROP_RENDITION_BITRATE);
+        // The loops played so far are still the same item
+        int loopCount = mLoopCount;
+        int reportedLoopCount = mReportedLoopCount;
+        mRestorePosition = msec;
+        mRestoring = true;
+        if (!openSource(mSource, false))
+        {
+            mRestoring = false;
+        }
+        mLoopCount = loopCount;
+        mReportedLoopCount = reportedLoopCount;
+        return true;
+    }
+
+    /**
+     * Points the engine at the uri of the source. Returns the mapped data
+     * source backing it, to be closed once the engine is reset, or null.
+     */
+    private Closeable setDataSource(RCTAVPlayerEngine engine, ReadableMap source, String uri) throws IOException
+    {
+        boolean isNetwork = source.getBoolean(PROP_SRC_IS_NETWORK);
+        boolean isAsset = source.getBoolean(PROP_SRC_IS_ASSET);
+        boolean useCache = source.hasKey(PROP_SRC_CACHE) && source.getBoolean(PROP_SRC_CACHE);
+
+        if (isNetwork)
+        {
+            // Use the shared CookieManager to access the cookies
+            // set by WebViews inside the same app
+            CookieManager cookieManager = CookieManager.getInstance();
+
+            Uri parsedUrl = Uri.parse(uri);
+            Uri.Builder builtUrl = parsedUrl.buildUpon();
+
+            String cookie = cookieManager.getCookie(builtUrl.build().toString());
+
+            Map<String, String> headers = new HashMap<>();
+
+            if (cookie != null)
+            {
+                headers.put("Cookie", cookie);
+            }
+
+            // The cache proxy forwards the cookie header upstream
+            RCTAVPlayerCacheProxy cacheProxy = useCache ? mModule.getCacheProxy() : null;
+            if (cacheProxy != null)
+            {
+                RCTAVPlayerDiskCache.Entry entry = cacheProxy.getCache().open(uri);
+                Closeable mapped = entry.isComplete() ? setMappedDataSource(engine, entry.dataFile) : null;
+                if (mapped != null)
+                {
+                    return mapped;
+                }
+                engine.setDataSource(mContext, Uri.parse(cacheProxy.getProxyUrl(uri)), headers);
+            }
+            else
+            {
+                engine.setDataSource(mContext, parsedUrl, headers);
+            }
+        }
+        else if (isAsset)
+        {
+            if (uri.startsWith("content://"))
+            {
+                Uri parsedUrl = Uri.parse(uri);
+                engine.setDataSource(mContext, parsedUrl, null);
+            }
+            else
+            {
+                Closeable mapped = setMappedDataSource(engine, new File(Uri.parse(uri).getPath()));
+                if (mapped != null)
+                {
+                    return mapped;
+                }
+                engine.setDataSource(uri);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Plays a local file through a shared memory mapping. Returns null when
+     * mapping is not available and the caller should fall back to a path.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static Closeable setMappedDataSource(RCTAVPlayerEngine engine, File file) throws IOException
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || !file.isFile())
+        {
+            return null;
+        }
+
+        RCTAVPlayerMappedDataSource dataSource = RCTAVPlayerMappedDataSource.open(file);
+        if (dataSource == null)
+        {
+            return null;
+        }
+
+        engine.setDataSource(dataSource);
+        return dataSource;
+    }
+
+    private static WritableMap sourceEvent(ReadableMap source)
+    {
+        WritableMap src = Arguments.createMap();
+        src.putString(PROP_SRC_URI, source.getString(PROP_SRC_URI));
+        src.putString(PROP_SRC_TYPE, source.getString(PROP_SRC_TYPE));
+        src.putBoolean(PROP_SRC_IS_NETWORK, source.getBoolean(PROP_SRC_IS_NETWORK));
+
+        return src;
+    }
+
+    /**
+     * Queues a source to play after the current one. The head of the queue
+     * is prepared on a second engine and chained to the current one, so it
+     * starts without a gap where the engine can chain.
+     */
+    public void enqueue(ReadableMap source)
+    {
+        mQueue.add(source);
+        prepareNext();
+    }
+
+    /**
+     * Moves on to the next queued source right away. Returns false if the
+     * queue is empty.
+     */
+    public boolean skipToNext()
+    {
+        if (mQueue.isEmpty())
+        {
+            return false;
+        }
+
+        if (mNextPrepared && mMediaPlayerValid)
+        {
+            mEngine.pause();
+            advanceQueue();
+        }
+        else
+        {
+            ReadableMap source = mQueue.remove(0);
+            emitItemChange(source);
+            setSource(source);
+        }
+
+        return true;
+    }
+
+    public void clearQueue()
+    {
+        mQueue.clear();
+        releaseNext();
+    }
+
+    /**
+     * Starts preparing the head of the queue, and once prepared chains it
+     * to the current engine. Repeat takes precedence over the queue.
+     */
+    private void prepareNext()
+    {
+        if (!mMediaPlayerValid || mPreloading || mQueue.isEmpty())
+        {
+            return;
+        }
+
+        if (mNextEngine != null)
+        {
+            if (mNextPrepared && !mEngine.setNextEngine(mRepeat ? null : mNextEngine))
+            {
+                // Switched over on completion instead, with a short gap
+                Log.d(TAG, "Engine cannot chain the queued media of " + mUuid);
+            }
+            return;
+        }
+
+        if (!mDecoderBudget.acquireNext(this))
+        {
+            // Played the usual way when the current source completes
+            return;
+        }
+
+        ReadableMap source = mQueue.get(0);
+        mNextEngine = createEngine();
+        mNextRendition = selectRendition(source, Double.MAX_VALUE);
+        try
+        {
+            mNextDataSource = setDataSource(mNextEngine, source, getPlaybackUri(source, mNextRendition));
+        }
+        catch (Exception e)
+        {
+            Log.e(TAG, "Error loading queued video - " + e.getMessage());
+            onNextError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+            return;
+        }
+
+        WritableMap event = Arguments.createMap();
+        event.putMap(EVENT_PROP_ITEM, sourceEvent(source));
+        event.putString(EVENT_PROP_TARGET, mUuid);
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_ITEM_LOAD_START.toString(), event);
+
+        mNextEngine.prepareAsync();
+    }
+
+    private void releaseNext()
+    {
+        if (mNextEngine == null)
+        {
+            return;
+        }
+
+        if (mNextPrepared && mMediaPlayerValid)
+        {
+            mEngine.setNextEngine(null);
+        }
+        mNextEngine.release();
+        mNextEngine = null;
+        mNextRendition = null;
+        mNextPrepared = false;
+        mDecoderBudget.releaseNext(this);
+        if (mNextDataSource != null)
+        {
+            RCTAVPlayerDiskCache.closeQuietly(mNextDataSource);
+            mNextDataSource = null;
+        }
+    }
+
+    /**
+     * Gives up the engine preparing the head of the queue. Called by
+     * RCTAVPlayerDecoderBudget when another player needs its decoder.
+     */
+    void dropNext()
+    {
+        Log.d(TAG, "Dropping the queued engine of " + mUuid);
+        releaseNext();
+    }
+
+    private void onNextPrepared()
+    {
+        Log.d(TAG, "Queued media prepared for " + mUuid);
+        mNextPrepared = true;
+        mNextEngine.setVolume(mMuted ? 0f : mVolume);
+
+        WritableMap event = Arguments.createMap();
+        event.putMap(EVENT_PROP_ITEM, sourceEvent(mQueue.get(0)));
+        event.putDouble(EVENT_PROP_DURATION, mNextEngine.getDuration() / 1000.0);
+        event.putInt(EVENT_PROP_WIDTH, mNextEngine.getVideoWidth());
+        event.putInt(EVENT_PROP_HEIGHT, mNextEngine.getVideoHeight());
+        event.putString(EVENT_PROP_TARGET, mUuid);
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_ITEM_LOAD.toString(), event);
+
+        prepareNext();
+    }
+
+    /**
+     * Drops a queued source that cannot be played and goes on with the one
+     * after it.
+     */
+    private void onNextError(int what, int extra)
+    {
+        ReadableMap source = mQueue.remove(0);
+        releaseNext();
+
+        WritableMap error = Arguments.createMap();
+        error.putInt(EVENT_PROP_WHAT, what);
+        error.putInt(EVENT_PROP_EXTRA, extra);
+        WritableMap event = Arguments.createMap();
+        event.putMap(EVENT_PROP_ITEM, sourceEvent(source));
+        event.putMap(EVENT_PROP_ERROR, error);
+        event.putString(EVENT_PROP_TARGET, mUuid);
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_ITEM_ERROR.toString(), event);
+
+        prepareNext();
+    }
+
+    /**
+     * Makes the prepared next engine the current one. When chained it is
+     * already playing, layers only move their surface over to it.
+     */
+    private void advanceQueue()
+    {
+        RCTAVPlayerEngine previous = mEngine;
+        closeDataSource();
+        mEngine = mNextEngine;
+        mDataSource = mNextDataSource;
+        mRendition = mNextRendition;
+        // The player's own slot moves over to the next engine
+        mDecoderBudget.releaseNext(this);
+        mNextEngine = null;
+        mNextDataSource = null;
+        mNextRendition = null;
+        mNextPrepared = false;
+        // Releasing disconnects the surface, so it can be connected to the
+        // new engine
+        previous.release();
+        updateOutputs();
+        updateVideoSize();
+
+        mSource = mQueue.remove(0);
+        mSourceUri = mSource.getString(PROP_SRC_URI);
+        mVideoDuration = mEngine.getDuration();
+        mVideoBufferedDuration = 0;
+        mFullyBuffered = !mSource.getBoolean(PROP_SRC_IS_NETWORK) || mDataSource != null;
+        mMeterBuffering = !mFullyBuffered && !isMeteredByProxy(mSource);
+        mMaxBitrate = Double.MAX_VALUE;
+        mIsCompleted = false;
+        mPreviewShown = false;
+        clearSeeks();
+        resetBuffering();
+        resetStalls();
+        resetLoopCount();
+        emitItemChange(mSource);
+        if (mRendition != null)
+        {
+            emitRendition();
+        }
+
+        for (Listener l: mListeners)
+        {
+            l.onEngineChanged(this);
+        }
+
+        // A skipped-to engine has not started, setPaused applies the rate then
+        if (mEngine.isPlaying())
+        {
+            applyPlaybackRate();
+        }
+        applyModifiers();
+    }
+
+    private void emitItemChange(ReadableMap source)
+    {
+        WritableMap event = Arguments.createMap();
+        event.putMap(EVENT_PROP_ITEM, sourceEvent(source));
+        if (source == mSource && mMediaPlayerValid)
+        {
+            event.putDouble(EVENT_PROP_DURATION, mVideoDuration / 1000.0);
+        }
+        event.putString(EVENT_PROP_TARGET, mUuid);
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_ITEM_CHANGE.toString(), event);
+    }
+
+    private void closeDataSource()
+    {
+        if (mDataSource != null)
+        {
+            RCTAVPlayerDiskCache.closeQuietly(mDataSource);
+            mDataSource = null;
+        }
+    }
+
+    /**
+     * Checks a state map for applyState. Returns an error message, or null
+     * if the state can be applied.
+     */
+    public static String validateState(ReadableMap state)
+    {
+        ReadableMapKeySetIterator it = state.keySetIterator();
+        while (it.hasNextKey())
+        {
+            String key = it.nextKey();
+            ReadableType type = state.getType(key);
+            if (STATE_SOURCE.equals(key))
+            {
+                if (type != ReadableType.Map)
+                {
+                    return "ERROR: " + key + " must be a map!";
+                }
+            }
+            else if (STATE_REPEAT.equals(key) || STATE_MUTED.equals(key) || STATE_PRESERVES_PITCH.equals(key))
+            {
+                if (type != ReadableType.Boolean)
+                {
+                    return "ERROR: " + key + " must be a boolean!";
+                }
+            }
+            else if (STATE_VOLUME.equals(key) || STATE_RATE.equals(key) || STATE_SEEK.equals(key)
+                    || STATE_PROGRESS_INTERVAL.equals(key) || STATE_HIDDEN_PROGRESS_INTERVAL.equals(key))
+            {
+                if (type != ReadableType.Number)
+                {
+                    return "ERROR: " + key + " must be a number!";
+                }
+            }
+            else
+            {
+                return "ERROR: Unknown state key " + key + "!";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Applies any of source, repeat, muted, volume, rate, seek and the
+     * progress intervals in one go with a single modifier pass. The state
+     * must pass validateState.
+     */
+    public void applyState(ReadableMap state)
+    {
+        if (state.hasKey(STATE_PROGRESS_INTERVAL) || state.hasKey(STATE_HIDDEN_PROGRESS_INTERVAL))
+        {
+            setProgressIntervals(
+                    state.hasKey(STATE_PROGRESS_INTERVAL)
+                            ? state.getInt(STATE_PROGRESS_INTERVAL) : mVisibleProgressInterval,
+                    state.hasKey(STATE_HIDDEN_PROGRESS_INTERVAL)
+                            ? state.getInt(STATE_HIDDEN_PROGRESS_INTERVAL) : mHiddenProgressInterval);
+        }
+
+        if (state.hasKey(STATE_REPEAT))
+        {
+            mRepeat = state.getBoolean(STATE_REPEAT);
+        }
+        if (state.hasKey(STATE_MUTED))
+        {
+            mMuted = state.getBoolean(STATE_MUTED);
+        }
+        if (state.hasKey(STATE_VOLUME))
+        {
+            mVolume = (float) state.getDouble(STATE_VOLUME);
+        }
+        if (state.hasKey(STATE_PRESERVES_PITCH))
+        {
+            mPreservesPitch = state.getBoolean(STATE_PRESERVES_PITCH);
+        }
+        if (state.hasKey(STATE_RATE))
+        {
+            mRate = (float) state.getDouble(STATE_RATE);
+        }
+
+        if (state.hasKey(STATE_SOURCE))
+        {
+            // Modifiers are applied once the new source is prepared
+            setSource(state.getMap(STATE_SOURCE));
+            return;
+        }
+
+        if (state.hasKey(STATE_SEEK))
+        {
+            setSeek((float) state.getDouble(STATE_SEEK));
+        }
+
+        if (mMediaPlayerValid)
+        {
+            applyModifiers();
+        }
+        else if (mDemoted && mRate != 0.0f && !mAutoPaused)
+        {
+            restore();
+        }
+    }
+
+    public void setRepeat(boolean repeat)
+    {
+        mRepeat = repeat;
+        applyModifiers();
+    }
+
+    public void setPaused(boolean paused)
+    {
+        mPaused = paused;
+        if (!paused)
+        {
+            mLastUsedTime = SystemClock.uptimeMillis();
+        }
+
+        if (mDemoted)
+        {
+            // The paused state is applied once restored
+            if (!paused && !mAutoPaused)
+            {
+                restore();
+            }
+            return;
+        }
+
+        if (mPreloading)
+        {
+            // Applied when the player is promoted
+            return;
+        }
+
+        if (!mMediaPlayerValid)
+        {
+            Log.w(TAG, "setPaused(" + paused + ") called with invalid media player");
+            return;
+        }
+
+        if (mPaused)
+        {
+            stopStartupWait();
+            if (mEngine.isPlaying())
+            {
+                Log.d(TAG, "Pausing playback");
+                mEngine.pause();
+                mMetrics.onStopped();
+                mIsCompleted = true;
+                mProgressTicker.removePlayer(this);
+                stopLoopCheck();
+            }
+        }
+        else
+        {
+            if (!mEngine.isPlaying())
+            {
+                if (waitForStartupBuffer())
+                {
+                    return;
+                }
+
+                Log.d(TAG, "Starting playback");
+                applyPlaybackRate();
+                mEngine.start();
+                mMetrics.onPlaying();
+                mIsCompleted = false;
+                mProgressTicker.addPlayer(this);
+            }
+            if (mRepeat)
+            {
+                startLoopCheck();
+            }
+        }
+    }
+
+    public void setSeek(float seekTime)
+    {
+        int msec = (int) (seekTime * 1000.0f);
+        if (mDemoted)
+        {
+            mRestorePosition = msec;
+        }
+        else if (mMediaPlayerValid)
+        {
+            if (mIsCompleted && mVideoDuration != 0 && msec < mVideoDuration)
+            {
+                mIsCompleted = false;
+            }
+
+            if (mScrubbing)
+            {
+                mScrubTarget = msec;
+                requestSeek(msec, RCTAVPlayerEngine.SEEK_CLOSEST_SYNC);
+            }
+            else
+            {
+                int position = mEngine.getCurrentPosition();
+                if (applyDownswitch(msec))
+                {
+                    emitSeek(position, msec);
+                    return;
+                }
+                requestSeek(msec, RCTAVPlayerEngine.SEEK_DEFAULT);
+            }
+        }
+    }
+
+    /**
+     * While scrubbing, seeks go to the nearest sync frame so the picture
+     * keeps up with the finger. Ending a scrub seeks exactly to the last
+     * position asked for, and only that seek is reported to JS.
+     */
+    public void setScrubbing(boolean scrubbing)
+    {
+        if (mScrubbing == scrubbing)
+        {
+            return;
+        }
+
+        mScrubbing = scrubbing;
+        if (scrubbing)
+        {
+            mScrubStart = mMediaPlayerValid ? mEngine.getCurrentPosition() : NO_SEEK;
+        }
+        else if (mScrubTarget != NO_SEEK && mMediaPlayerValid)
+        {
+            requestSeek(mScrubTarget, RCTAVPlayerEngine.SEEK_CLOSEST);
+        }
+        else
+        {
+            mScrubStart = NO_SEEK;
+        }
+        mScrubTarget = NO_SEEK;
+    }
+
+    /**
+     * Issues the seek, or keeps it as the only pending one if a seek is still
+     * in flight. Engines handle overlapping seeks by decoding every one of
+     * them, so rapid seeks would otherwise pile up behind each other.
+     */
+    private void requestSeek(int msec, int mode)
+    {
+        requestSeek(msec, mode, true);
+    }
+
+    /**
+     * Seeks the player makes itself, to restore a position or redraw a
+     * frame, are coalesced the same way but not reported to JS.
+     */
+    private void requestSeek(int msec, int mode, boolean reported)
+    {
+        if (mSeekInFlight)
+        {
+            mPendingSeek = msec;
+            mPendingSeekMode = mode;
+            mPendingSeekReported = reported;
+            return;
+        }
+
+        issueSeek(msec, mode, reported);
+    }
+
+    private void issueSeek(int msec, int mode, boolean reported)
+    {
+        // A scrub can seek on every frame, so it is reported once when it
+        // ends, from where it started
+        if (reported && !mScrubbing)
+        {
+            emitSeek(mScrubStart != NO_SEEK ? mScrubStart : mEngine.getCurrentPosition(), msec);
+            mScrubStart = NO_SEEK;
+        }
+        mMetrics.onSeekStart();
+        // The buffer restarts at the new position
+        mMeterTime = 0;
+        mSeekInFlight = true;
+        // Seeking back is not a loop
+        mLoopCheckPosition = NO_SEEK;
+        mEngine.seekTo(msec, mode);
+    }
+
+    private void emitSeek(int position, int msec)
+    {
+        WritableMap event = Arguments.createMap();
+        event.putDouble(EVENT_PROP_CURRENT_TIME, position / 1000.0);
+        event.putDouble(EVENT_PROP_SEEK_TIME, msec / 1000.0);
+        event.putString(EVENT_PROP_TARGET, mUuid);
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_SEEK.toString(), event);
+    }
+
+    private void startLoopCheck()
+    {
+        if (mLoopCheckScheduled || mVideoDuration <= 0)
+        {
+            return;
+        }
+
+        mLoopCheckScheduled = true;
+        mLoopCheckPosition = mEngine.getCurrentPosition();
+        mPlaybackHandler.postDelayed(mLoopCheck, getLoopCheckInterval());
+    }
+
+    private void stopLoopCheck()
+    {
+        mPlaybackHandler.removeCallbacks(mLoopCheck);
+        mLoopCheckScheduled = false;
+    }
+
+    private void resetLoopCount()
+    {
+        stopLoopCheck();
+        mLoopCount = 0;
+        mReportedLoopCount = 0;
+        mLastLoopEventTime = 0;
+    }
+
+    /**
+     * Samples at least twice per loop, so no wrap is missed.
+     */
+    private int getLoopCheckInterval()
+    {
+        float rate = mRate > 0.0f ? mRate : 1.0f;
+        int intervalMs = (int) (mVideoDuration / rate / 2);
+        return Math.max(MIN_LOOP_CHECK_MS, Math.min(MAX_LOOP_CHECK_MS, intervalMs));
+    }
+
+    /**
+     * A looping engine reports nothing when it wraps, so loops are
+     * counted by the position going backwards between samples. JS gets at
+     * most one onVideoLoop per LOOP_EVENT_INTERVAL_MS with the running count.
+     */
+    private void checkLoop()
+    {
+        mLoopCheckScheduled = false;
+        if (!mMediaPlayerValid || !mRepeat || !mEngine.isPlaying())
+        {
+            return;
+        }
+
+        int position = mEngine.getCurrentPosition();
+        boolean wrapped = mLoopCheckPosition != NO_SEEK && position < mLoopCheckPosition;
+        if (wrapped)
+        {
+            mLoopCount++;
+        }
+        mLoopCheckPosition = position;
+
+        long now = SystemClock.uptimeMillis();
+        if (mLoopCount != mReportedLoopCount && now - mLastLoopEventTime >= LOOP_EVENT_INTERVAL_MS)
+        {
+            mReportedLoopCount = mLoopCount;
+            mLastLoopEventTime = now;
+
+            WritableMap event = Arguments.createMap();
+            event.putInt(EVENT_PROP_LOOPS, mLoopCount);
+            event.putString(EVENT_PROP_TARGET, mUuid);
+            mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_LOOP.toString(), event);
+        }
+
+        // A replay, the loop check restarts once the lower rendition plays
+        if (wrapped && applyDownswitch(position))
+        {
+            return;
+        }
+
+        mLoopCheckScheduled = true;
+        mPlaybackHandler.postDelayed(mLoopCheck, getLoopCheckInterval());
+    }
+
+    /**
+     * Forgets seeks of a source that is going away, a reset player never
+     * completes them.
+     */
+    private void clearSeeks()
+    {
+        mSeekInFlight = false;
+        mPendingSeek = NO_SEEK;
+        mScrubTarget = NO_SEEK;
+        mScrubStart = NO_SEEK;
+    }
+
+    public void setRate(float rate)
+    {
+        Log.d(TAG, "Setting rate " + mRate + " -> " + rate + "(" + mUuid + ")");
+        mRate = rate;
+        if (mDemoted && rate != 0.0f && !mAutoPaused)
+        {
+            restore();
+        }
+        else if (mMediaPlayerValid && !mPreloading)
+        {
+            if (rate == 0.0f || mAutoPaused)
+            {
+                setPaused(true);
+            }
+            else
+            {
+                if (mEngine.isPlaying())
+                {
+                    applyPlaybackRate();
+                }
+                setPaused(false);
+            }
+        }
+    }
+
+    public void setPreservesPitch(boolean preservesPitch)
+    {
+        mPreservesPitch = preservesPitch;
+        if (mMediaPlayerValid && !mPreloading && mEngine.isPlaying())
+        {
+            applyPlaybackRate();
+        }
+    }
+
+    /**
+     * Pushes mRate to the engine. Only called right before or during
+     * playback, as from API 23 on a non-zero speed also starts a
+     * MediaPlayer.
+     */
+    private void applyPlaybackRate()
+    {
+        if (mRate <= 0.0f)
+        {
+            return;
+        }
+
+        if (!mEngine.supportsPlaybackRate())
+        {
+            if (mRate != 1.0f)
+            {
+                Log.w(TAG, "Playback rate " + mRate + " not supported, playing at normal speed");
+            }
+            return;
+        }
+
+        float pitch = mPreservesPitch ? 1.0f : mRate;
+        try
+        {
+            mEngine.setPlaybackRate(mRate, pitch);
+        }
+        catch (IllegalArgumentException | IllegalStateException e)
+        {
+            // The player keeps its previous speed
+            Log.w(TAG, "Cannot play at rate " + mRate + " - " + e.getMessage());
+        }
+    }
+
+    public void setMuted(boolean muted)
+    {
+        mMuted = muted;
+        applyModifiers();
+    }
+
+    public void setVolume(float volume)
+    {
+        mVolume = volume;
+        applyModifiers();
+    }
+
+    private void applyModifiers()
+    {
+        if (mDemoted)
+        {
+            // Applied once restored, changing them takes no decoder back
+            return;
+        }
+
+        // Looping in the player wraps without a restart or a completion
+        if (mMediaPlayerValid)
+        {
+            mEngine.setLooping(mRepeat);
+        }
+        if (!mRepeat)
+        {
+            stopLoopCheck();
+        }
+
+        mEngine.setVolume(mMuted ? 0f : mVolume);
+
+        boolean paused = mRate == 0.0f || mAutoPaused;
+        setPaused(paused);
+        if (paused && !mPreviewShown && !mPreloading)
+        {
+            // To set the preview in the window
+            showPreviewFrame();
+        }
+
+        // Repeat decides whether the queue is chained
+        prepareNext();
+    }
+
+    /**
+     * Records how far on screen a layer tracking its visibility is, one of
+     * the VISIBILITY_ states, or VISIBILITY_UNKNOWN once it stops tracking.
+     * Layers only report changes.
+     */
+    void setLayerVisibility(Object layer, int visibility)
+    {
+        if (visibility == VISIBILITY_UNKNOWN)
+        {
+            mLayerVisibility.remove(layer);
+        }
+        else
+        {
+            mLayerVisibility.put(layer, visibility);
+        }
+
+        int best = VISIBILITY_UNKNOWN;
+        for (int layerVisibility: mLayerVisibility.values())
+        {
+            best = Math.max(best, layerVisibility);
+        }
+        if (best == mVisibility)
+        {
+            return;
+        }
+
+        mVisibility = best;
+        applyVisibility();
+
+        if (best != VISIBILITY_UNKNOWN)
+        {
+            WritableMap event = Arguments.createMap();
+            event.putString(EVENT_PROP_VISIBILITY, VISIBILITY_NAMES[best]);
+            event.putBoolean(EVENT_PROP_AUTO_PAUSED, mAutoPaused);
+            event.putString(EVENT_PROP_TARGET, mUuid);
+            mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_VISIBILITY.toString(), event);
+        }
+    }
+
+    /**
+     * Plays only while a tracking layer is visible, on top of the rate JS
+     * asked for. A layer near the screen gets the decoder back ahead of time
+     * so it is ready, but stays paused.
+     */
+    private void applyVisibility()
+    {
+        boolean autoPaused = mVisibility != VISIBILITY_UNKNOWN && mVisibility < VISIBILITY_VISIBLE;
+        boolean changed = autoPaused != mAutoPaused;
+        mAutoPaused = autoPaused;
+
+        if (mDemoted)
+        {
+            if (mVisibility >= VISIBILITY_NEAR)
+            {
+                restore();
+            }
+            return;
+        }
+
+        if (!changed || !mMediaPlayerValid || mPreloading)
+        {
+            return;
+        }
+
+        if (autoPaused)
+        {
+            Log.d(TAG, "Auto-pausing " + mUuid);
+            setPaused(true);
+        }
+        else if (mRate != 0.0f)
+        {
+            Log.d(TAG, "Auto-resuming " + mUuid);
+            setPaused(false);
+        }
+    }
+
+    public static String validateEngine(String type)
+    {
+        if (RCTAVPlayerEngine.MEDIA_PLAYER.equals(type) || RCTAVPlayerEngine.MEDIA_CODEC.equals(type))
+        {
+            return null;
+        }
+
+        return "ERROR: Unknown engine " + type + "!";
+    }
+
+    /**
+     * Switches to another engine type. A loaded source is reopened on the
+     * new engine at the current position, without new load events. The type
+     * must pass validateEngine.
+     */
+    public void setEngine(String type)
+    {
+        if (type.equals(mEngineType))
+        {
+            return;
+        }
+
+        Log.d(TAG, "Switching " + mUuid + " to the " + type + " engine");
+        if (mPreloading)
+        {
+            mPreloader.remove(this);
+            unloadPreload();
+        }
+
+        boolean reopen = mSource != null && !mDemoted;
+        if (reopen)
+        {
+            mRestorePosition = mMediaPlayerValid ? mEngine.getCurrentPosition() : mRestorePosition;
+        }
+        mMediaPlayerValid = false;
+        releaseNext();
+        clearSeeks();
+        stopLoopCheck();
+        mProgressTicker.removePlayer(this);
+        mEngine.release();
+        closeDataSource();
+
+        mEngineType = type;
+        mEngine = createEngine();
+        updateOutputs();
+        for (Listener l: mListeners)
+        {
+            l.onEngineChanged(this);
+        }
+
+        if (reopen)
+        {
+            mRestoring = true;
+            if (!openSource(mSource, false))
+            {
+                mRestoring = false;
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the playback thread, unless the player has been removed
+     * by the time it gets there.
+     */
+    public void runOnPlaybackThread(Runnable runnable)
+    {
+        mModule.runOnPlayer(mHandle, runnable);
+    }
+
+    /**
+     * Seeks a paused player a little into the video so a newly attached
+     * layer shows a frame instead of staying black.
+     */
+    public void requestPreviewFrame()
+    {
+        runOnPlaybackThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                showPreviewFrame();
+            }
+        });
+    }
+
+    private void showPreviewFrame()
+    {
+        if (!mMediaPlayerValid || mEngine.isPlaying())
+        {
+            return;
+        }
+
+        mPreviewShown = true;
+        // A seek still in flight draws a frame anyway
+        if (!mSeekInFlight)
+        {
+            // Redraw the current frame instead of jumping to the start
+            int position = mEngine.getCurrentPosition();
+            requestSeek(position > 0 ? position : 50, RCTAVPlayerEngine.SEEK_DEFAULT, false);
+        }
+    }
+
+    public void invalidate()
+    {
+        Log.d(TAG, "Invalidating RCTAVPlayerLayer " + mUuid);
+        if (mSourceUri != null && !mPreloading && (mMediaPlayerValid || mDemoted))
+        {
+            mModule.saveSnapshot(mSourceUri, takeSnapshot());
+        }
+        mMediaPlayerValid = false;
+        mDemoted = false;
+        clearSeeks();
+        resetBuffering();
+        stopLoopCheck();
+        mQueue.clear();
+        releaseNext();
+        mLayerVisibility.clear();
+        mProgressTicker.removePlayer(this);
+        mPreloader.remove(this);
+        mDecoderBudget.release(this);
+        mMetrics.onStopped();
+        mEngine.release();
+        mEngine = null;
+        mVideoWidth = 0;
+        mVideoHeight = 0;
+        mOutputs.clear();
+        mOutputEngine = null;
+        mOutputTexture = null;
+        mOutputFanout = false;
+        if (mOutputSurface != null)
+        {
+            mOutputSurface.release();
+            mOutputSurface = null;
+        }
+        if (mFanout != null && !mFanoutReleasing)
+        {
+            // The engine already let go of the input surface
+            mFanoutCalls++;
+            mFanout.release(mFanoutCallDone);
+        }
+        mFanout = null;
+        mFanoutReady = false;
+        closeDataSource();
+
+        for (Listener l: mListeners)
+        {
+            l.onDestroyed();
+        }
+        // Layers only reach a player through its handle, which no longer
+        // resolves, so they cannot remove themselves
+        mListeners.clear();
+    }
+
+    public RCTAVPlayerMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+    public void addListener(Listener listener)
+    {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public void onBufferingUpdate(RCTAVPlayerEngine engine, int percent)
+    {
+        if (engine != mEngine)
+        {
+            return;
+        }
+
+        mVideoBufferedDuration = (int) Math.round((double) (mVideoDuration * percent) / 100.0);
+        meterBuffering(mVideoBufferedDuration, percent);
+        if (mStartupWaiting && hasStartupBuffer())
+        {
+            finishStartupWait();
+        }
+    }
+
+    @Override
+    public void onCompletion(RCTAVPlayerEngine engine)
+    {
+        if (engine != mEngine)
+        {
+            return;
+        }
+
+        if (!mRepeat && mNextPrepared)
+        {
+            // The chained media player has already started
+            advanceQueue();
+            return;
+        }
+        if (!mRepeat && !mQueue.isEmpty())
+        {
+            // Not prepared in time, load it the usual way
+            skipToNext();
+            return;
+        }
+
+        if (mRepeat)
+        {
+            // Only if the engine could not loop on its own
+            if (!applyDownswitch(0))
+            {
+                mEngine.start();
+            }
+        }
+        else
+        {
+            mIsCompleted = true;
+            mProgressTicker.removePlayer(this);
+            mMetrics.onStopped();
+        }
+
+        WritableMap event = Arguments.createMap();
+        event.putString(EVENT_PROP_TARGET, mUuid);
+
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_END.toString(), event);
+    }
+
+    @Override
+    public boolean onInfo(RCTAVPlayerEngine engine, int what, int extra)
+    {
+        if (engine != mEngine)
+        {
+            return false;
+        }
+
+        switch (what)
+        {
+            case MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START:
+                mMetrics.onFirstFrame();
+                break;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+                mMetrics.onBufferingStart();
+                onStallStart();
+                setBuffering(true);
+                break;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+                mMetrics.onBufferingEnd();
+                onStallEnd();
+                if (!mStartupWaiting)
+                {
+                    setBuffering(false);
+                }
+                break;
+            case MediaPlayer.MEDIA_INFO_VIDEO_TRACK_LAGGING:
+                mMetrics.onVideoLagging();
+                break;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void onSeekComplete(RCTAVPlayerEngine engine)
+    {
+        if (engine != mEngine)
+        {
+            return;
+        }
+
+        mMetrics.onSeekComplete();
+        mSeekInFlight = false;
+        if (mPendingSeek != NO_SEEK && mMediaPlayerValid)
+        {
+            // Only the latest of the seeks asked for meanwhile is carried out
+            int msec = mPendingSeek;
+            mPendingSeek = NO_SEEK;
+            issueSeek(msec, mPendingSeekMode, mPendingSeekReported);
+        }
+    }
+
+    @Override
+    public boolean onError(RCTAVPlayerEngine engine, int what, int extra)
+    {
+        if (engine == mNextEngine)
+        {
+            Log.e(TAG, "Error preparing queued media. Code: " + what + " " + extra + " player uuid: " + mUuid);
+            onNextError(what, extra);
+            return true;
+        }
+        if (engine != mEngine)
+        {
+            return true;
+        }
+
+        Log.e(TAG, "Error playing media. Code: " + what + " " + extra + " player uuid: " + mUuid);
+        mMediaPlayerValid = false;
+        clearSeeks();
+        resetBuffering();
+        mProgressTicker.removePlayer(this);
+
+        if (what == MediaPlayer.MEDIA_ERROR_UNKNOWN && extra == RCTAVPlayerEngine.MEDIA_ERROR_NO_INIT
+                && !mPreloading && !mRetriedExhausted && mSource != null
+                && mDecoderBudget.onExhausted(this))
+        {
+            // Another player gave up its decoder, try once more
+            mRetriedExhausted = true;
+            openSource(mSource, false);
+            return true;
+        }
+
+        mSourceUri = null;
+        mSource = null;
+        mRestoring = false;
+        mDecoderBudget.release(this);
+        mMetrics.onError();
+        if (mPreloading)
+        {
+            mPreloading = false;
+            mPreloader.remove(this);
+        }
+        WritableMap error = Arguments.createMap();
+        error.putInt(EVENT_PROP_WHAT, what);
+        error.putInt(EVENT_PROP_EXTRA, extra);
+        WritableMap event = Arguments.createMap();
+        event.putMap(EVENT_PROP_ERROR, error);
+        event.putString(EVENT_PROP_TARGET, mUuid);
+        mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_ERROR.toString(), event);
+        return true;
+    }
+
+    @Override
+    public void onPrepared(RCTAVPlayerEngine engine)
+    {
+        if (engine == mNextEngine)
+        {
+            onNextPrepared();
+            return;
+        }
+        if (engine != mEngine)
+        {
+            return;
+        }
+
         Log.d(TAG, "Media prepared for playing " + mUuid);
         mMediaPlayerValid = true;
-        mVideoDuration = mp.getDuration();
+        mRetriedExhausted = false;
+        mVideoDuration = engine.getDuration();
+        updateVideoSize();
+        mAwaitingStartup = mStartupBufferMs > 0 && !mFullyBuffered;
+        mMetrics.onPrepared();
+
+        if (mRestoring)
+        {
+            // JS already has the load event for this source
+            mRestoring = false;
+            if (mRestorePosition > 0)
+            {
+                requestSeek(mRestorePosition, RCTAVPlayerEngine.SEEK_CLOSEST_SYNC, false);
+            }
+            mRestorePosition = 0;
+            applyModifiers();
+            for (Listener l: mListeners)
+            {
+                l.onPrepared(this);
+            }
+            return;
+        }
+
+        int position = engine.getCurrentPosition();
+        if (mRestorePosition > 0)
+        {
+            requestSeek(mRestorePosition, RCTAVPlayerEngine.SEEK_CLOSEST_SYNC, false);
+            position = mRestorePosition;
+            mRestorePosition = 0;
+        }
 
         WritableMap event = Arguments.createMap();
         event.putDouble(EVENT_PROP_DURATION, mVideoDuration / 1000.0);
-        event.putDouble(EVENT_PROP_CURRENT_TIME, mp.getCurrentPosition() / 1000.0);
-        event.putInt(EVENT_PROP_WIDTH, mp.getVideoWidth());
-        event.putInt(EVENT_PROP_HEIGHT, mp.getVideoHeight());
-        // TODO: Actually check if you can.
-        event.putBoolean(EVENT_PROP_FAST_FORWARD, true);
-        event.putBoolean(EVENT_PROP_SLOW_FORWARD, true);
-        event.putBoolean(EVENT_PROP_SLOW_REVERSE, true);
-        event.putBoolean(EVENT_PROP_REVERSE, true);
-        event.putBoolean(EVENT_PROP_FAST_FORWARD, true);
-        event.putBoolean(EVENT_PROP_STEP_BACKWARD, true);
-        event.putBoolean(EVENT_PROP_STEP_FORWARD, true);
+        event.putDouble(EVENT_PROP_CURRENT_TIME, position / 1000.0);
+        event.putInt(EVENT_PROP_WIDTH, mVideoWidth);
+        event.putInt(EVENT_PROP_HEIGHT, mVideoHeight);
+        // Whether the device and the stream handle other rates is only
+        // known once the source is prepared. No engine plays backwards or
+        // steps single frames.
+        event.putBoolean(EVENT_PROP_FAST_FORWARD, engine.probePlaybackRate(PROBE_FAST_RATE));
+        event.putBoolean(EVENT_PROP_SLOW_FORWARD, engine.probePlaybackRate(PROBE_SLOW_RATE));
+        event.putBoolean(EVENT_PROP_SLOW_REVERSE, false);
+        event.putBoolean(EVENT_PROP_REVERSE, false);
+        event.putBoolean(EVENT_PROP_STEP_BACKWARD, false);
+        event.putBoolean(EVENT_PROP_STEP_FORWARD, false);
         event.putString(EVENT_PROP_TARGET, mUuid);
 
         mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_LOAD.toString(), event);
-        applyModifiers();
+        if (mPreloading)
+        {
+            mPreloader.onPrepared(this);
+        }
+        else
+        {
+            applyModifiers();
+        }
 
         for (Listener l: mListeners)
         {
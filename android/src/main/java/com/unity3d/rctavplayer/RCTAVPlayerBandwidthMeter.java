@@ -0,0 +1,61 @@
+package com.unity3d.rctavplayer;
+
+/**
+ * Module-wide estimate of the network bandwidth, so every new player starts
+ * at a rendition the connection can keep up with. Fed by the cache proxy
+ * as it downloads, and by players streaming without the proxy from how
+ * fast their buffer grows.
+ */
+public class RCTAVPlayerBandwidthMeter
+{
+    // Used until the first sample, a safe guess for mobile networks
+    public static final long DEFAULT_ESTIMATE_BPS = 1000000;
+
+    // Smaller transfers are mostly latency and say little about bandwidth
+    private static final long MIN_SAMPLE_BYTES = 32 * 1024;
+    // A sample this large moves the estimate by the full smoothing factor
+    private static final long FULL_WEIGHT_BYTES = 512 * 1024;
+    private static final double SMOOTHING = 0.3;
+
+    private double mEstimate = DEFAULT_ESTIMATE_BPS;
+    private int mSamples = 0;
+
+    /**
+     * Adds a transfer of this many bytes that took elapsedMs milliseconds.
+     * Called from the proxy's connection threads as well as the playback
+     * thread.
+     */
+    public synchronized void addSample(long bytes, long elapsedMs)
+    {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedMs <= 0)
+        {
+            return;
+        }
+
+        double bps = bytes * 8000.0 / elapsedMs;
+        if (mSamples == 0)
+        {
+            mEstimate = bps;
+        }
+        else
+        {
+            double weight = SMOOTHING * Math.min(1.0, (double) bytes / FULL_WEIGHT_BYTES);
+            mEstimate += weight * (bps - mEstimate);
+        }
+        mSamples++;
+    }
+
+    /**
+     * The estimated bandwidth in bits per second.
+     */
+    public synchronized long getEstimate()
+    {
+        return Math.round(mEstimate);
+    }
+
+    public synchronized void reset()
+    {
+        mEstimate = DEFAULT_ESTIMATE_BPS;
+        mSamples = 0;
+    }
+}
@@ -0,0 +1,581 @@
+package com.unity3d.rctavplayer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback HTTP proxy that serves network sources through
+ * RCTAVPlayerDiskCache. MediaPlayer is pointed at
+ * http://127.0.0.1:port/token/encoded-url and the proxy answers plain and
+ * range requests from disk where it can, fetching and appending the rest.
+ * The token is random per proxy, so other apps on the device cannot use
+ * the port to read the cache or fetch through it.
+ * Cookie and User-Agent headers sent by MediaPlayer are forwarded upstream.
+ * Upstream transfers feed the module's RCTAVPlayerBandwidthMeter.
+ */
+public class RCTAVPlayerCacheProxy implements Runnable
+{
+    private static final String TAG = RCTAVPlayerCacheProxy.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MS = 15000;
+    private static final String[] FORWARDED_HEADERS = { "cookie", "user-agent" };
+    private static final long METER_SAMPLE_BYTES = 256 * 1024;
+    // A couple of connections per decoder, more wait for a free thread
+    private static final int MAX_CONNECTIONS = 8;
+    private static final long IDLE_THREAD_SECONDS = 30;
+    private static final int TOKEN_BYTES = 16;
+    // How much more is cached once the player is done with a transfer
+    private static final long MAX_FILL_AFTER_CLOSE_BYTES = 4 * 1024 * 1024;
+
+    private final RCTAVPlayerDiskCache mCache;
+    private final RCTAVPlayerBandwidthMeter mBandwidthMeter;
+    private final String mToken = createToken();
+    private ThreadPoolExecutor mExecutor = null;
+    private ServerSocket mServerSocket = null;
+    private Thread mAcceptThread = null;
+
+    public RCTAVPlayerCacheProxy(File cacheDirectory, RCTAVPlayerBandwidthMeter bandwidthMeter)
+    {
+        mCache = new RCTAVPlayerDiskCache(cacheDirectory);
+        mBandwidthMeter = bandwidthMeter;
+    }
+
+    private static String createToken()
+    {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : bytes)
+        {
+            sb.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    public RCTAVPlayerDiskCache getCache()
+    {
+        return mCache;
+    }
+
+    public synchronized boolean start()
+    {
+        if (mServerSocket != null)
+        {
+            return true;
+        }
+
+        try
+        {
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Cannot start cache proxy - " + e.getMessage());
+            return false;
+        }
+
+        mExecutor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mAcceptThread = new Thread(this, TAG);
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+        Log.d(TAG, "Cache proxy listening on port " + mServerSocket.getLocalPort());
+        return true;
+    }
+
+    public synchronized void stop()
+    {
+        if (mServerSocket == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mServerSocket.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing to do
+        }
+        mServerSocket = null;
+        mAcceptThread = null;
+        mExecutor.shutdownNow();
+        mExecutor = null;
+    }
+
+    public synchronized String getProxyUrl(String url)
+    {
+        if (mServerSocket == null)
+        {
+            return url;
+        }
+
+        try
+        {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + mToken + "/"
+                    + URLEncoder.encode(url, "UTF-8");
+        }
+        catch (IOException e)
+        {
+            return url;
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        ServerSocket serverSocket;
+        final ThreadPoolExecutor executor;
+        synchronized (this)
+        {
+            serverSocket = mServerSocket;
+            executor = mExecutor;
+        }
+
+        while (serverSocket != null && !serverSocket.isClosed())
+        {
+            try
+            {
+                final Socket socket = serverSocket.accept();
+                try
+                {
+                    executor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            handle(socket);
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // Stopped while accepting
+                    socket.close();
+                }
+            }
+            catch (IOException e)
+            {
+                if (!serverSocket.isClosed())
+                {
+                    Log.w(TAG, "Accept failed - " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        try
+        {
+            socket.setSoTimeout(TIMEOUT_MS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String requestLine = reader.readLine();
+            if (requestLine == null)
+            {
+                return;
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty())
+            {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2 || parts[1].length() < 2)
+            {
+                writeStatus(socket.getOutputStream(), "400 Bad Request");
+                return;
+            }
+
+            String path = parts[1];
+            int tokenEnd = mToken.length() + 1;
+            if (path.length() <= tokenEnd + 1 || path.charAt(tokenEnd) != '/'
+                    || !MessageDigest.isEqual(mToken.getBytes("ISO-8859-1"),
+                            path.substring(1, tokenEnd).getBytes("ISO-8859-1")))
+            {
+                Log.w(TAG, "Rejecting proxy request without the token");
+                writeStatus(socket.getOutputStream(), "403 Forbidden");
+                return;
+            }
+
+            String url = URLDecoder.decode(path.substring(tokenEnd + 1), "UTF-8");
+            serve(url, headers, socket.getOutputStream());
+        }
+        catch (IOException e)
+        {
+            // MediaPlayer closes connections freely when it seeks
+            Log.d(TAG, "Proxy connection closed - " + e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing to do
+            }
+        }
+    }
+
+    private void serve(String url, Map<String, String> headers, OutputStream out) throws IOException
+    {
+        long rangeStart = 0;
+        long rangeEnd = -1;
+        boolean isRange = false;
+        String range = headers.get("range");
+        if (range != null && range.startsWith("bytes="))
+        {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            try
+            {
+                rangeStart = Long.parseLong(bounds[0].trim());
+                if (bounds.length > 1 && !bounds[1].trim().isEmpty())
+                {
+                    rangeEnd = Long.parseLong(bounds[1].trim());
+                }
+                isRange = true;
+            }
+            catch (NumberFormatException e)
+            {
+                Log.w(TAG, "Ignoring unsupported range " + range);
+            }
+        }
+
+        RCTAVPlayerDiskCache.Entry entry = mCache.open(url);
+        long cachedLength = entry.totalLength > 0 ? entry.getCachedLength() : 0;
+
+        // Fetch from the end of the cached data when the range touches it,
+        // otherwise straight from the requested offset without caching
+        HttpURLConnection connection = null;
+        InputStream upstream = null;
+        long upstreamStart = rangeStart <= cachedLength ? cachedLength : rangeStart;
+        boolean needsUpstream = !entry.isComplete()
+                && (rangeEnd < 0 || rangeEnd >= cachedLength || entry.totalLength <= 0);
+
+        try
+        {
+            if (needsUpstream)
+            {
+                connection = openUpstream(url, headers, upstreamStart);
+                int code = connection.getResponseCode();
+                long totalLength = getTotalLength(connection, code);
+                if (totalLength <= 0 && isRange && rangeStart > 0 && rangeEnd < 0)
+                {
+                    // An open range of unknown length has no valid 206, so
+                    // the range is dropped and the whole body sent with a 200
+                    connection.disconnect();
+                    isRange = false;
+                    rangeStart = 0;
+                    upstreamStart = 0;
+                    connection = openUpstream(url, headers, upstreamStart);
+                    code = connection.getResponseCode();
+                    totalLength = getTotalLength(connection, code);
+                }
+
+                if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL)
+                {
+                    writeStatus(out, code + " " + connection.getResponseMessage());
+                    return;
+                }
+
+                upstream = connection.getInputStream();
+                if (code == HttpURLConnection.HTTP_OK && upstreamStart > 0)
+                {
+                    // Server ignored the range, skip to where we need to be
+                    skipFully(upstream, upstreamStart);
+                }
+
+                if (totalLength > 0 && totalLength != entry.totalLength)
+                {
+                    mCache.setMeta(entry, totalLength, connection.getContentType());
+                    cachedLength = entry.getCachedLength();
+                    if (upstreamStart != rangeStart && cachedLength < upstreamStart)
+                    {
+                        // The partial data was dropped, let the player reconnect
+                        throw new IOException("Remote file changed for " + url);
+                    }
+                }
+            }
+
+            long totalLength = entry.totalLength;
+            long end = totalLength > 0 ? totalLength - 1 : -1;
+            if (rangeEnd >= 0 && (end < 0 || rangeEnd < end))
+            {
+                end = rangeEnd;
+            }
+
+            writeHeaders(out, isRange, rangeStart, end, totalLength, entry.contentType);
+
+            long position = rangeStart;
+            if (position < cachedLength)
+            {
+                long cachedEnd = end >= 0 ? Math.min(end + 1, cachedLength) : cachedLength;
+                copyFromFile(entry.dataFile, position, cachedEnd, out);
+                position = cachedEnd;
+            }
+
+            if (upstream != null && (end < 0 || position <= end))
+            {
+                boolean writing = position == entry.getCachedLength() && totalLength > 0 && mCache.lockForWriting(entry);
+                try
+                {
+                    copyFromUpstream(upstream, position, end, out, writing ? entry.dataFile : null);
+                }
+                finally
+                {
+                    if (writing)
+                    {
+                        mCache.unlockForWriting(entry);
+                    }
+                }
+            }
+            out.flush();
+        }
+        finally
+        {
+            RCTAVPlayerDiskCache.closeQuietly(upstream);
+            if (connection != null)
+            {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static HttpURLConnection openUpstream(String url, Map<String, String> headers, long start)
+            throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestProperty("Range", "bytes=" + start + "-");
+        for (String name : FORWARDED_HEADERS)
+        {
+            if (headers.containsKey(name))
+            {
+                connection.setRequestProperty(name, headers.get(name));
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * The length of the whole remote file, or -1 if the server did not say.
+     */
+    private static long getTotalLength(HttpURLConnection connection, int code)
+    {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (code == HttpURLConnection.HTTP_PARTIAL && contentRange != null && contentRange.contains("/"))
+        {
+            try
+            {
+                return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return -1;
+            }
+        }
+        else if (code == HttpURLConnection.HTTP_OK)
+        {
+            return connection.getContentLength();
+        }
+
+        return -1;
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException
+    {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static void writeHeaders(OutputStream out, boolean isRange, long start, long end, long totalLength,
+                                     String contentType) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        if (isRange && end >= 0)
+        {
+            sb.append("HTTP/1.1 206 Partial Content\r\n");
+            sb.append("Content-Range: bytes ").append(start).append('-').append(end).append('/')
+                    .append(totalLength > 0 ? String.valueOf(totalLength) : "*").append("\r\n");
+        }
+        else
+        {
+            sb.append("HTTP/1.1 200 OK\r\n");
+        }
+
+        if (end >= 0)
+        {
+            sb.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        }
+        if (contentType != null)
+        {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+    }
+
+    private static void copyFromFile(File file, long from, long to, OutputStream out) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.seek(from);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = to - from;
+            while (remaining > 0)
+            {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Only the time spent reading upstream is metered, so a player that
+     * reads slowly does not look like a slow network. Once the player has
+     * what it asked for or hangs up, a cached transfer goes on for a while
+     * so the next play starts from disk, an uncached one stops.
+     */
+    private void copyFromUpstream(InputStream upstream, long position, long end, OutputStream out,
+                                  File cacheFile) throws IOException
+    {
+        RandomAccessFile raf = null;
+        if (cacheFile != null)
+        {
+            raf = new RandomAccessFile(cacheFile, "rw");
+            raf.seek(position);
+        }
+
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            boolean clientOpen = true;
+            // Where filling the cache stops once the player is done
+            long fillEnd = -1;
+            long meteredBytes = 0;
+            long meteredNanos = 0;
+            while (true)
+            {
+                if (fillEnd < 0 && (!clientOpen || (end >= 0 && position > end)))
+                {
+                    if (raf == null)
+                    {
+                        break;
+                    }
+                    fillEnd = position + MAX_FILL_AFTER_CLOSE_BYTES;
+                }
+                if (fillEnd >= 0 && position >= fillEnd)
+                {
+                    break;
+                }
+
+                long readStart = System.nanoTime();
+                int read = upstream.read(buffer);
+                if (read < 0)
+                {
+                    break;
+                }
+
+                meteredNanos += System.nanoTime() - readStart;
+                meteredBytes += read;
+                if (meteredBytes >= METER_SAMPLE_BYTES)
+                {
+                    mBandwidthMeter.addSample(meteredBytes, meteredNanos / 1000000);
+                    meteredBytes = 0;
+                    meteredNanos = 0;
+                }
+
+                if (raf != null)
+                {
+                    raf.write(buffer, 0, read);
+                }
+
+                int toClient = end >= 0 ? (int) Math.max(0, Math.min(read, end - position + 1)) : read;
+                if (clientOpen && toClient > 0)
+                {
+                    try
+                    {
+                        out.write(buffer, 0, toClient);
+                    }
+                    catch (IOException e)
+                    {
+                        if (raf == null)
+                        {
+                            throw e;
+                        }
+                        clientOpen = false;
+                    }
+                }
+                position += read;
+            }
+        }
+        finally
+        {
+            RCTAVPlayerDiskCache.closeQuietly(raf);
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException
+    {
+        while (count > 0)
+        {
+            long skipped = in.skip(count);
+            if (skipped <= 0)
+            {
+                if (in.read() < 0)
+                {
+                    throw new IOException("Unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,901 @@
+package com.unity3d.rctavplayer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Engine that decodes the video track with MediaExtractor and MediaCodec
+ * straight into the layer's surface. Unlike MediaPlayer it seeks to exact
+ * frames, loops by feeding the decoder from the start again without a flush,
+ * and keeps its decoder across seeks and surface changes. Audio tracks are
+ * not played, sources that need sound should use the MediaPlayer engine.
+ *
+ * Decoding runs on a thread the module shares between engines and is paced
+ * against a clock that follows the playback rate. Callbacks are posted to the thread that
+ * created the engine, like MediaPlayer does.
+ */
+public class RCTAVPlayerCodecEngine implements RCTAVPlayerEngine
+{
+    private static final String TAG = RCTAVPlayerCodecEngine.class.getSimpleName();
+
+    private static final int IDLE_DELAY_MS = 5;
+    private static final long LATE_FRAME_US = 40000;
+    private static final long DEFAULT_FRAME_US = 33333;
+    private static final int BUFFERING_UPDATE_MS = 1000;
+    private static final int NO_OUTPUT = -1;
+
+    private static final int EVENT_PREPARED = 0;
+    private static final int EVENT_COMPLETION = 1;
+    private static final int EVENT_SEEK_COMPLETE = 2;
+    private static final int EVENT_BUFFERING_UPDATE = 3;
+    private static final int EVENT_INFO = 4;
+    private static final int EVENT_ERROR = 5;
+
+    // Tags decode work, so reset() can drop it and keep surface changes
+    private static final Object DECODE_TOKEN = new Object();
+
+    private final Context mContext;
+    private final Handler mCallbackHandler;
+    private final Handler mHandler;
+    private Listener mListener = null;
+
+    // Owned by the calling thread. Sources are read by the decode thread
+    // once prepare is posted.
+    private int mGeneration = 0;
+    private Uri mUri = null;
+    private Map<String, String> mHeaders = null;
+    private String mPath = null;
+    private MediaDataSource mDataSource = null;
+
+    // Written by the decode thread, read from anywhere
+    private volatile boolean mPlaying = false;
+    private volatile boolean mLooping = false;
+    private volatile int mDuration = 0;
+    private volatile int mVideoWidth = 0;
+    private volatile int mVideoHeight = 0;
+    private volatile long mPositionUs = 0;
+
+    // Decode thread only. Output times are on a timeline that keeps growing
+    // across loops; mOutputOffsetUs maps it back to the media position.
+    private int mActiveGeneration = 0;
+    private Surface mSurface = null;
+    private MediaExtractor mExtractor = null;
+    private MediaFormat mFormat = null;
+    private MediaCodec mCodec = null;
+    private ByteBuffer[] mInputBuffers = null;
+    private boolean mCodecHasSurface = false;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private boolean mInputDone = false;
+    private boolean mOutputDone = false;
+    private long mInputOffsetUs = 0;
+    private long mLastInputUs = 0;
+    private long mFrameUs = DEFAULT_FRAME_US;
+    private final ArrayDeque<Long> mLoopOffsets = new ArrayDeque<>();
+    private long mOutputOffsetUs = 0;
+    private int mPendingOutput = NO_OUTPUT;
+    private long mPendingTimeUs = 0;
+    private long mTimelineUs = 0;
+    private boolean mClockRunning = false;
+    private long mClockBaseUs = 0;
+    private long mClockBaseRealtimeUs = 0;
+    private float mSpeed = 1.0f;
+    private boolean mSeeking = false;
+    private boolean mSeekExact = false;
+    private boolean mSeekNotify = false;
+    private long mSeekTargetUs = 0;
+    private boolean mRenderedFirstFrame = false;
+
+    private final Runnable mStep = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            step();
+        }
+    };
+
+    private final Runnable mBufferingReport = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            reportBuffering();
+        }
+    };
+
+    /**
+     * Decodes on the given looper, which engines share. It is not quit by
+     * the engine.
+     */
+    public RCTAVPlayerCodecEngine(Context context, Looper decodeLooper)
+    {
+        mContext = context;
+        mCallbackHandler = new Handler(Looper.myLooper());
+        mHandler = new Handler(decodeLooper);
+    }
+
+    @Override
+    public void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    @Override
+    public void setDataSource(Context context, Uri uri, Map<String, String> headers)
+    {
+        mUri = uri;
+        mHeaders = headers;
+    }
+
+    @Override
+    public void setDataSource(String path)
+    {
+        mPath = path;
+    }
+
+    @Override
+    public void setDataSource(MediaDataSource dataSource)
+    {
+        mDataSource = dataSource;
+    }
+
+    @Override
+    public void prepareAsync()
+    {
+        final int generation = mGeneration;
+        final Uri uri = mUri;
+        final Map<String, String> headers = mHeaders;
+        final String path = mPath;
+        final MediaDataSource dataSource = mDataSource;
+        postDecode(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mActiveGeneration = generation;
+                prepare(uri, headers, path, dataSource);
+            }
+        });
+    }
+
+    @Override
+    public void start()
+    {
+        mPlaying = true;
+        postDecode(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mExtractor == null)
+                {
+                    return;
+                }
+
+                if (mOutputDone)
+                {
+                    // Like MediaPlayer, starting a completed source plays it again
+                    seek(0, false, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    mSeekNotify = false;
+                }
+                startClock(mTimelineUs);
+                schedule(0);
+            }
+        });
+    }
+
+    @Override
+    public void pause()
+    {
+        mPlaying = false;
+        postDecode(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mClockRunning = false;
+            }
+        });
+    }
+
+    @Override
+    public boolean isPlaying()
+    {
+        return mPlaying;
+    }
+
+    @Override
+    public void seekTo(final int msec, final int mode)
+    {
+        mPositionUs = msec * 1000L;
+        postDecode(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mExtractor == null)
+                {
+                    return;
+                }
+
+                int extractorMode = mode == SEEK_CLOSEST_SYNC
+                        ? MediaExtractor.SEEK_TO_CLOSEST_SYNC : MediaExtractor.SEEK_TO_PREVIOUS_SYNC;
+                seek(msec * 1000L, mode == SEEK_CLOSEST, extractorMode);
+            }
+        });
+    }
+
+    @Override
+    public int getCurrentPosition()
+    {
+        return (int) (mPositionUs / 1000);
+    }
+
+    @Override
+    public int getDuration()
+    {
+        return mDuration;
+    }
+
+    @Override
+    public int getVideoWidth()
+    {
+        return mVideoWidth;
+    }
+
+    @Override
+    public int getVideoHeight()
+    {
+        return mVideoHeight;
+    }
+
+    /**
+     * There is no audio to set the volume of.
+     */
+    @Override
+    public void setVolume(float volume)
+    {
+    }
+
+    @Override
+    public void setLooping(boolean looping)
+    {
+        mLooping = looping;
+    }
+
+    @Override
+    public boolean supportsPlaybackRate()
+    {
+        return true;
+    }
+
+    /**
+     * Only the clock is scaled and there is no audio to time-stretch, so
+     * every positive rate plays.
+     */
+    @Override
+    public boolean probePlaybackRate(float rate)
+    {
+        return rate > 0.0f;
+    }
+
+    /**
+     * Only the clock is scaled, so the pitch is ignored.
+     */
+    @Override
+    public void setPlaybackRate(final float speed, float pitch)
+    {
+        postDecode(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mClockRunning)
+                {
+                    startClock(clockUs());
+                }
+                mSpeed = speed;
+            }
+        });
+    }
+
+    @Override
+    public boolean setNextEngine(RCTAVPlayerEngine next)
+    {
+        return next == null;
+    }
+
+    @Override
+    public void setSurface(final Surface surface)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                changeSurface(surface);
+            }
+        });
+    }
+
+    @Override
+    public void reset()
+    {
+        mGeneration++;
+        mUri = null;
+        mHeaders = null;
+        mPath = null;
+        mDataSource = null;
+        mPlaying = false;
+        mDuration = 0;
+        mVideoWidth = 0;
+        mVideoHeight = 0;
+        mPositionUs = 0;
+        // Surface changes stay queued. They run after the teardown, which
+        // jumps the queue, and only take effect for the next source.
+        mHandler.removeCallbacksAndMessages(DECODE_TOKEN);
+        mHandler.removeCallbacks(mStep);
+        mHandler.removeCallbacks(mBufferingReport);
+        mHandler.postAtFrontOfQueue(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                teardown();
+            }
+        });
+    }
+
+    @Override
+    public void release()
+    {
+        reset();
+        mListener = null;
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mSurface = null;
+            }
+        });
+    }
+
+    private void postDecode(Runnable runnable)
+    {
+        mHandler.postAtTime(runnable, DECODE_TOKEN, SystemClock.uptimeMillis());
+    }
+
+    private void prepare(Uri uri, Map<String, String> headers, String path, MediaDataSource dataSource)
+    {
+        try
+        {
+            mExtractor = new MediaExtractor();
+            if (dataSource != null)
+            {
+                setExtractorDataSource(mExtractor, dataSource);
+            }
+            else if (uri != null)
+            {
+                mExtractor.setDataSource(mContext, uri, headers);
+            }
+            else
+            {
+                mExtractor.setDataSource(path);
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Cannot open source - " + e.getMessage());
+            fail(MediaPlayer.MEDIA_ERROR_IO);
+            return;
+        }
+
+        int track = -1;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++)
+        {
+            String mime = mExtractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/"))
+            {
+                track = i;
+                break;
+            }
+        }
+
+        if (track < 0)
+        {
+            Log.e(TAG, "Source has no video track");
+            fail(MediaPlayer.MEDIA_ERROR_UNSUPPORTED);
+            return;
+        }
+
+        mExtractor.selectTrack(track);
+        mFormat = mExtractor.getTrackFormat(track);
+        if (mFormat.containsKey(MediaFormat.KEY_DURATION))
+        {
+            mDuration = (int) (mFormat.getLong(MediaFormat.KEY_DURATION) / 1000);
+        }
+        mVideoWidth = mFormat.getInteger(MediaFormat.KEY_WIDTH);
+        mVideoHeight = mFormat.getInteger(MediaFormat.KEY_HEIGHT);
+
+        if (!createCodec())
+        {
+            return;
+        }
+
+        resetTimeline(0);
+        mRenderedFirstFrame = false;
+        notifyListener(EVENT_PREPARED, 0, 0);
+        if (mExtractor.getCachedDuration() < 0)
+        {
+            // Not streamed, everything is there
+            notifyListener(EVENT_BUFFERING_UPDATE, 100, 0);
+        }
+        else
+        {
+            // Also while paused, so a player waiting to start hears of it
+            reportBuffering();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void setExtractorDataSource(MediaExtractor extractor, MediaDataSource dataSource) throws IOException
+    {
+        extractor.setDataSource(dataSource);
+    }
+
+    private boolean createCodec()
+    {
+        try
+        {
+            mCodec = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
+            mCodec.configure(mFormat, mSurface, null, 0);
+            mCodec.start();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Most likely out of decoder instances
+            Log.e(TAG, "Cannot start decoder - " + e.getMessage());
+            releaseCodec();
+            fail(MEDIA_ERROR_NO_INIT);
+            return false;
+        }
+
+        mCodecHasSurface = mSurface != null;
+        mInputBuffers = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ? getInputBuffers(mCodec) : null;
+        mInputDone = false;
+        mOutputDone = false;
+        mPendingOutput = NO_OUTPUT;
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static ByteBuffer[] getInputBuffers(MediaCodec codec)
+    {
+        return codec.getInputBuffers();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ByteBuffer getInputBuffer(int index)
+    {
+        return mInputBuffers != null ? mInputBuffers[index] : mCodec.getInputBuffer(index);
+    }
+
+    private void releaseCodec()
+    {
+        if (mCodec != null)
+        {
+            try
+            {
+                mCodec.stop();
+            }
+            catch (IllegalStateException e)
+            {
+                // Released below either way
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+        mInputBuffers = null;
+        mPendingOutput = NO_OUTPUT;
+    }
+
+    private void teardown()
+    {
+        mHandler.removeCallbacks(mStep);
+        mHandler.removeCallbacks(mBufferingReport);
+        releaseCodec();
+        if (mExtractor != null)
+        {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        mFormat = null;
+        mClockRunning = false;
+        mSeeking = false;
+        mSpeed = 1.0f;
+    }
+
+    private void changeSurface(Surface surface)
+    {
+        Surface previous = mSurface;
+        mSurface = surface;
+        if (mCodec == null || surface == previous)
+        {
+            return;
+        }
+
+        if (surface != null && mCodecHasSurface && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        {
+            setOutputSurface(mCodec, surface);
+        }
+        else
+        {
+            // The decoder is set up again, which keeps the extractor
+            releaseCodec();
+            if (!createCodec())
+            {
+                return;
+            }
+        }
+
+        // Redraw the current frame on the new surface
+        seek(mTimelineUs - mOutputOffsetUs, true, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mSeekNotify = false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void setOutputSurface(MediaCodec codec, Surface surface)
+    {
+        codec.setOutputSurface(surface);
+    }
+
+    private void seek(long timeUs, boolean exact, int extractorMode)
+    {
+        if (mCodec == null)
+        {
+            return;
+        }
+
+        try
+        {
+            mCodec.flush();
+        }
+        catch (IllegalStateException e)
+        {
+            fail(MediaPlayer.MEDIA_ERROR_MALFORMED);
+            return;
+        }
+        mExtractor.seekTo(timeUs, extractorMode);
+        mInputDone = false;
+        mOutputDone = false;
+        mPendingOutput = NO_OUTPUT;
+        resetTimeline(timeUs);
+        mSeeking = true;
+        mSeekExact = exact;
+        mSeekTargetUs = timeUs;
+        mSeekNotify = true;
+        mClockRunning = false;
+        schedule(0);
+
+        if (mExtractor.getCachedDuration() >= 0)
+        {
+            // What is buffered ahead changes with the position
+            mHandler.removeCallbacks(mBufferingReport);
+            reportBuffering();
+        }
+    }
+
+    private void resetTimeline(long timeUs)
+    {
+        mInputOffsetUs = 0;
+        mOutputOffsetUs = 0;
+        mLastInputUs = 0;
+        mLoopOffsets.clear();
+        mTimelineUs = timeUs;
+        mPositionUs = timeUs;
+    }
+
+    private void startClock(long timelineUs)
+    {
+        mClockBaseUs = timelineUs;
+        mClockBaseRealtimeUs = System.nanoTime() / 1000;
+        mClockRunning = true;
+    }
+
+    private long clockUs()
+    {
+        if (!mClockRunning)
+        {
+            return mTimelineUs;
+        }
+
+        return mClockBaseUs + (long) ((System.nanoTime() / 1000 - mClockBaseRealtimeUs) * mSpeed);
+    }
+
+    private void schedule(long delayMs)
+    {
+        mHandler.removeCallbacks(mStep);
+        mHandler.postDelayed(mStep, delayMs);
+    }
+
+    private void step()
+    {
+        if (mCodec == null || !(mPlaying || mSeeking))
+        {
+            return;
+        }
+
+        long delayMs;
+        try
+        {
+            feedInput();
+            delayMs = drainOutput();
+        }
+        catch (IllegalStateException e)
+        {
+            Log.e(TAG, "Decoder failed - " + e.getMessage());
+            fail(MediaPlayer.MEDIA_ERROR_MALFORMED);
+            return;
+        }
+
+        if (delayMs >= 0)
+        {
+            schedule(delayMs);
+        }
+    }
+
+    private void feedInput()
+    {
+        while (!mInputDone)
+        {
+            int index = mCodec.dequeueInputBuffer(0);
+            if (index < 0)
+            {
+                return;
+            }
+
+            ByteBuffer buffer = getInputBuffer(index);
+            int size = mExtractor.readSampleData(buffer, 0);
+            if (size < 0 && mLooping && !mSeeking && mLastInputUs > 0)
+            {
+                // Continue with the first frame right after the last one, the
+                // decoder never sees the loop
+                mInputOffsetUs += mLastInputUs + mFrameUs;
+                mLoopOffsets.addLast(mInputOffsetUs);
+                mLastInputUs = 0;
+                mExtractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                size = mExtractor.readSampleData(buffer, 0);
+            }
+
+            if (size < 0)
+            {
+                mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+                return;
+            }
+
+            long sampleUs = mExtractor.getSampleTime();
+            if (sampleUs > mLastInputUs)
+            {
+                mFrameUs = Math.min(sampleUs - mLastInputUs, DEFAULT_FRAME_US * 3);
+                mLastInputUs = sampleUs;
+            }
+            mCodec.queueInputBuffer(index, 0, size, sampleUs + mInputOffsetUs, 0);
+            mExtractor.advance();
+        }
+    }
+
+    /**
+     * Renders what is due. Returns the delay until the next step, or -1 if
+     * there is nothing to do until started or seeked again.
+     */
+    private long drainOutput()
+    {
+        while (true)
+        {
+            if (mPendingOutput == NO_OUTPUT)
+            {
+                int index = mCodec.dequeueOutputBuffer(mBufferInfo, 0);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER)
+                {
+                    return IDLE_DELAY_MS;
+                }
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+                {
+                    MediaFormat format = mCodec.getOutputFormat();
+                    mVideoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+                    mVideoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+                    continue;
+                }
+                if (index < 0)
+                {
+                    // Output buffers changed, which surface output does not use
+                    continue;
+                }
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                {
+                    mCodec.releaseOutputBuffer(index, false);
+                    onOutputDone();
+                    return -1;
+                }
+
+                mPendingOutput = index;
+                mPendingTimeUs = mBufferInfo.presentationTimeUs;
+            }
+
+            if (mSeeking)
+            {
+                if (mSeekExact && mPendingTimeUs < mSeekTargetUs)
+                {
+                    dropPending();
+                    continue;
+                }
+
+                renderPending();
+                mSeeking = false;
+                if (mSeekNotify)
+                {
+                    notifyListener(EVENT_SEEK_COMPLETE, 0, 0);
+                }
+                if (!mPlaying)
+                {
+                    return -1;
+                }
+                startClock(mTimelineUs);
+                continue;
+            }
+
+            if (!mPlaying)
+            {
+                // Kept until started again
+                return -1;
+            }
+
+            long earlyUs = mPendingTimeUs - clockUs();
+            if (earlyUs > 1000)
+            {
+                return Math.max(1, (long) (earlyUs / mSpeed / 1000));
+            }
+
+            if (-earlyUs > LATE_FRAME_US)
+            {
+                dropPending();
+            }
+            else
+            {
+                renderPending();
+            }
+        }
+    }
+
+    private void renderPending()
+    {
+        mCodec.releaseOutputBuffer(mPendingOutput, true);
+        mPendingOutput = NO_OUTPUT;
+        mTimelineUs = mPendingTimeUs;
+        while (!mLoopOffsets.isEmpty() && mTimelineUs >= mLoopOffsets.peekFirst())
+        {
+            mOutputOffsetUs = mLoopOffsets.pollFirst();
+        }
+        mPositionUs = mTimelineUs - mOutputOffsetUs;
+
+        if (!mRenderedFirstFrame)
+        {
+            mRenderedFirstFrame = true;
+            notifyListener(EVENT_INFO, MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START, 0);
+        }
+    }
+
+    private void dropPending()
+    {
+        mCodec.releaseOutputBuffer(mPendingOutput, false);
+        mPendingOutput = NO_OUTPUT;
+    }
+
+    private void onOutputDone()
+    {
+        mOutputDone = true;
+        mClockRunning = false;
+        if (mSeeking)
+        {
+            // Sought past the last frame
+            mSeeking = false;
+            if (mSeekNotify)
+            {
+                notifyListener(EVENT_SEEK_COMPLETE, 0, 0);
+            }
+        }
+        if (mPlaying)
+        {
+            mPlaying = false;
+            notifyListener(EVENT_COMPLETION, 0, 0);
+        }
+    }
+
+    private void reportBuffering()
+    {
+        if (mExtractor == null || mDuration <= 0)
+        {
+            return;
+        }
+
+        long cachedUs = mExtractor.getCachedDuration();
+        long bufferedMs = (mPositionUs + Math.max(cachedUs, 0)) / 1000;
+        int percent = (int) Math.min(100, bufferedMs * 100 / mDuration);
+        notifyListener(EVENT_BUFFERING_UPDATE, percent, 0);
+        if (percent < 100)
+        {
+            mHandler.postDelayed(mBufferingReport, BUFFERING_UPDATE_MS);
+        }
+    }
+
+    private void fail(int extra)
+    {
+        mPlaying = false;
+        mClockRunning = false;
+        mHandler.removeCallbacks(mStep);
+        releaseCodec();
+        notifyListener(EVENT_ERROR, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra);
+    }
+
+    /**
+     * Posts to the creating thread. Events of a source that has been reset
+     * in the meantime are dropped there.
+     */
+    private void notifyListener(final int event, final int arg1, final int arg2)
+    {
+        final int generation = mActiveGeneration;
+        mCallbackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Listener listener = mListener;
+                if (listener == null || generation != mGeneration)
+                {
+                    return;
+                }
+
+                switch (event)
+                {
+                    case EVENT_PREPARED:
+                        listener.onPrepared(RCTAVPlayerCodecEngine.this);
+                        break;
+                    case EVENT_COMPLETION:
+                        listener.onCompletion(RCTAVPlayerCodecEngine.this);
+                        break;
+                    case EVENT_SEEK_COMPLETE:
+                        listener.onSeekComplete(RCTAVPlayerCodecEngine.this);
+                        break;
+                    case EVENT_BUFFERING_UPDATE:
+                        listener.onBufferingUpdate(RCTAVPlayerCodecEngine.this, arg1);
+                        break;
+                    case EVENT_INFO:
+                        listener.onInfo(RCTAVPlayerCodecEngine.this, arg1, arg2);
+                        break;
+                    case EVENT_ERROR:
+                        listener.onError(RCTAVPlayerCodecEngine.this, arg1, arg2);
+                        break;
+                }
+            }
+        });
+    }
+}
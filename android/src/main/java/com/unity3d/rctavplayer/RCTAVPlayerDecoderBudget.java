@@ -0,0 +1,306 @@
+package com.unity3d.rctavplayer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+
+/**
+ * Caps how many players hold a decoder at once. Hardware decoders run out
+ * long before memory does, and MediaPlayer reports that as a generic error
+ * (what 1, extra -19) or just renders black.
+ *
+ * Players acquire a slot before opening a source. When the budget is full
+ * the lowest ranked other player is demoted: it releases its decoder and
+ * remembers where it was, and is restored when it is shown or played again.
+ * Preloaded players rank lowest, then players without a visible layer, then
+ * paused ones, and the least recently used goes first among equals.
+ * Preloads never demote anything, they only use spare slots. Neither does
+ * the next source a player prepares for its queue, and those slots are the
+ * first taken back when another player needs one.
+ *
+ * Only used from the playback thread.
+ */
+public class RCTAVPlayerDecoderBudget
+{
+    private static final String TAG = RCTAVPlayerDecoderBudget.class.getSimpleName();
+
+    // Reported instance limits are often optimistic, so detection only ever
+    // lowers this
+    public static final int DEFAULT_MAX_DECODERS = 4;
+    private static final String VIDEO_MIME_TYPE = "video/avc";
+
+    private static final String PROP_MAX = "max";
+    private static final String PROP_ACTIVE = "active";
+    private static final String PROP_DEMOTIONS = "demotions";
+    private static final String PROP_EXHAUSTED = "exhausted";
+
+    private final ArrayList<RCTAVPlayer> mActive = new ArrayList<>();
+    // Players holding a second decoder for the head of their queue
+    private final ArrayList<RCTAVPlayer> mNext = new ArrayList<>();
+    private int mMaxDecoders = detectMaxDecoders();
+    private long mDemotions = 0;
+    private long mExhausted = 0;
+
+    public void setMaxDecoders(int maxDecoders)
+    {
+        if (maxDecoders <= 0)
+        {
+            Log.w(TAG, "Ignoring invalid decoder budget " + maxDecoders);
+            return;
+        }
+
+        mMaxDecoders = maxDecoders;
+        trim(null);
+    }
+
+    public int getMaxDecoders()
+    {
+        return mMaxDecoders;
+    }
+
+    /**
+     * Reserves a decoder for the player. Returns false if there is no room,
+     * which only happens for preloads.
+     */
+    public boolean acquire(RCTAVPlayer player)
+    {
+        if (mActive.contains(player))
+        {
+            return true;
+        }
+
+        if (player.isPreloading() && size() >= mMaxDecoders)
+        {
+            Log.d(TAG, "No spare decoder for preloading " + player);
+            return false;
+        }
+
+        // Counted before demoting, so a preload started by a demotion cannot
+        // take the slot being freed
+        mActive.add(player);
+        trim(player);
+        return true;
+    }
+
+    public void release(RCTAVPlayer player)
+    {
+        mActive.remove(player);
+    }
+
+    /**
+     * Reserves a decoder for the source the player has queued next. Returns
+     * false if there is no spare slot.
+     */
+    public boolean acquireNext(RCTAVPlayer player)
+    {
+        if (mNext.contains(player))
+        {
+            return true;
+        }
+
+        if (size() >= mMaxDecoders)
+        {
+            Log.d(TAG, "No spare decoder for the queue of " + player);
+            return false;
+        }
+
+        mNext.add(player);
+        return true;
+    }
+
+    public void releaseNext(RCTAVPlayer player)
+    {
+        mNext.remove(player);
+    }
+
+    /**
+     * The player failed because the device ran out of decoders below the
+     * budget. Lowers the budget to what actually fit and makes room for the
+     * player. Returns false if nothing could be freed.
+     */
+    public boolean onExhausted(RCTAVPlayer player)
+    {
+        mExhausted++;
+        int fitted = Math.max(size() - 1, 1);
+        if (fitted < mMaxDecoders)
+        {
+            Log.w(TAG, "Decoders exhausted, lowering budget " + mMaxDecoders + " -> " + fitted);
+            mMaxDecoders = fitted;
+        }
+
+        if (!mActive.contains(player))
+        {
+            mActive.add(player);
+        }
+        int before = size();
+        trim(player);
+
+        return size() < before;
+    }
+
+    /**
+     * Demotes players to free memory. Paused players off screen always go,
+     * with all set every player not playing on screen does. Returns how
+     * many were demoted.
+     */
+    public int demoteForMemory(boolean all)
+    {
+        while (!mNext.isEmpty())
+        {
+            mNext.remove(mNext.size() - 1).dropNext();
+        }
+
+        int demoted = 0;
+        for (int i = mActive.size() - 1; i >= 0; i--)
+        {
+            RCTAVPlayer player = mActive.get(i);
+            boolean onScreen = player.isOnScreen();
+            boolean playing = player.isPlaying();
+            if ((!onScreen && !playing) || (all && !(onScreen && playing)))
+            {
+                Log.d(TAG, "Memory low, demoting " + player);
+                mActive.remove(i);
+                mDemotions++;
+                player.demote();
+                demoted++;
+            }
+        }
+
+        return demoted;
+    }
+
+    public void clear()
+    {
+        mActive.clear();
+        mNext.clear();
+    }
+
+    public WritableMap getStats()
+    {
+        WritableMap stats = Arguments.createMap();
+        stats.putInt(PROP_MAX, mMaxDecoders);
+        stats.putInt(PROP_ACTIVE, size());
+        stats.putDouble(PROP_DEMOTIONS, mDemotions);
+        stats.putDouble(PROP_EXHAUSTED, mExhausted);
+
+        return stats;
+    }
+
+    private int size()
+    {
+        return mActive.size() + mNext.size();
+    }
+
+    private void trim(RCTAVPlayer keep)
+    {
+        while (size() > mMaxDecoders && !mNext.isEmpty())
+        {
+            RCTAVPlayer player = mNext.remove(mNext.size() - 1);
+            Log.d(TAG, "Decoder budget full, dropping the queued source of " + player);
+            player.dropNext();
+        }
+
+        while (size() > mMaxDecoders)
+        {
+            RCTAVPlayer victim = lowestRanked(keep);
+            if (victim == null)
+            {
+                return;
+            }
+
+            Log.d(TAG, "Decoder budget full, demoting " + victim);
+            mActive.remove(victim);
+            mDemotions++;
+            victim.demote();
+        }
+    }
+
+    private RCTAVPlayer lowestRanked(RCTAVPlayer keep)
+    {
+        RCTAVPlayer lowest = null;
+        int lowestRank = Integer.MAX_VALUE;
+        for (int i = 0; i < mActive.size(); i++)
+        {
+            RCTAVPlayer player = mActive.get(i);
+            if (player == keep)
+            {
+                continue;
+            }
+
+            int rank = rank(player);
+            if (lowest == null || rank < lowestRank
+                    || (rank == lowestRank && player.getLastUsedTime() < lowest.getLastUsedTime()))
+            {
+                lowest = player;
+                lowestRank = rank;
+            }
+        }
+
+        return lowest;
+    }
+
+    private static int rank(RCTAVPlayer player)
+    {
+        if (player.isPreloading())
+        {
+            return 0;
+        }
+
+        return 1 + (player.isVisible() ? 2 : 0) + (player.isPlaying() ? 1 : 0);
+    }
+
+    private static int detectMaxDecoders()
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+        {
+            return DEFAULT_MAX_DECODERS;
+        }
+
+        try
+        {
+            int reported = getMaxSupportedInstances();
+            if (reported > 0)
+            {
+                Log.d(TAG, "Decoder reports " + reported + " instances");
+                return Math.min(reported, DEFAULT_MAX_DECODERS);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            Log.w(TAG, "Cannot query decoder limits - " + e.getMessage());
+        }
+
+        return DEFAULT_MAX_DECODERS;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int getMaxSupportedInstances()
+    {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos())
+        {
+            if (info.isEncoder())
+            {
+                continue;
+            }
+
+            for (String type : info.getSupportedTypes())
+            {
+                if (VIDEO_MIME_TYPE.equalsIgnoreCase(type))
+                {
+                    // The first match is the preferred, usually hardware, one
+                    return info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                }
+            }
+        }
+
+        return 0;
+    }
+}
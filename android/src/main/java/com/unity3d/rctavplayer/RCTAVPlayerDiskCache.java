@@ -0,0 +1,282 @@
+package com.unity3d.rctavplayer;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Size-capped LRU cache of media files on disk. Each url is stored as a data
+ * file that grows from offset zero, so a partially downloaded file can be
+ * resumed, and a small meta file holding the total length and content type.
+ * An entry is complete once its data file reaches the total length.
+ */
+public class RCTAVPlayerDiskCache
+{
+    private static final String TAG = RCTAVPlayerDiskCache.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024L * 1024L;
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+    private static final String META_PROP_LENGTH = "length";
+    private static final String META_PROP_CONTENT_TYPE = "contentType";
+
+    public static class Entry
+    {
+        public final String key;
+        public final File dataFile;
+        public final File metaFile;
+        public long totalLength = -1;
+        public String contentType = null;
+
+        Entry(String key, File dataFile, File metaFile)
+        {
+            this.key = key;
+            this.dataFile = dataFile;
+            this.metaFile = metaFile;
+        }
+
+        public long getCachedLength()
+        {
+            return dataFile.length();
+        }
+
+        public boolean isComplete()
+        {
+            return totalLength > 0 && dataFile.length() >= totalLength;
+        }
+    }
+
+    private final File mDirectory;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private final Set<String> mWriters = new HashSet<>();
+
+    public RCTAVPlayerDiskCache(File directory)
+    {
+        mDirectory = directory;
+        if (!mDirectory.exists() && !mDirectory.mkdirs())
+        {
+            Log.e(TAG, "Cannot create cache directory " + mDirectory);
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized Entry open(String url)
+    {
+        String key = keyFor(url);
+        Entry entry = new Entry(key, new File(mDirectory, key + DATA_SUFFIX), new File(mDirectory, key + META_SUFFIX));
+        readMeta(entry);
+        if (entry.dataFile.exists())
+        {
+            // Touch for LRU ordering
+            entry.dataFile.setLastModified(System.currentTimeMillis());
+        }
+
+        return entry;
+    }
+
+    public synchronized void setMeta(Entry entry, long totalLength, String contentType)
+    {
+        if (entry.totalLength != totalLength && entry.dataFile.length() > 0)
+        {
+            // The remote file changed under us, start over
+            Log.w(TAG, "Length changed for cache entry " + entry.key + ", discarding partial data");
+            entry.dataFile.delete();
+        }
+
+        entry.totalLength = totalLength;
+        entry.contentType = contentType;
+
+        Properties properties = new Properties();
+        properties.setProperty(META_PROP_LENGTH, Long.toString(totalLength));
+        if (contentType != null)
+        {
+            properties.setProperty(META_PROP_CONTENT_TYPE, contentType);
+        }
+
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(entry.metaFile);
+            properties.store(out, null);
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Cannot write cache meta for " + entry.key + " - " + e.getMessage());
+        }
+        finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Only one connection may append to an entry at a time. Others stream
+     * straight from the network without writing.
+     */
+    public synchronized boolean lockForWriting(Entry entry)
+    {
+        return mWriters.add(entry.key);
+    }
+
+    public synchronized void unlockForWriting(Entry entry)
+    {
+        mWriters.remove(entry.key);
+        trim();
+    }
+
+    public synchronized void clear()
+    {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        for (File file : files)
+        {
+            String key = file.getName().replace(DATA_SUFFIX, "").replace(META_SUFFIX, "");
+            if (!mWriters.contains(key))
+            {
+                file.delete();
+            }
+        }
+    }
+
+    private void trim()
+    {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files)
+        {
+            total += file.length();
+        }
+
+        if (total <= mMaxBytes)
+        {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (File file : files)
+        {
+            if (total <= mMaxBytes)
+            {
+                break;
+            }
+
+            String name = file.getName();
+            if (!name.endsWith(DATA_SUFFIX))
+            {
+                continue;
+            }
+
+            String key = name.substring(0, name.length() - DATA_SUFFIX.length());
+            if (mWriters.contains(key))
+            {
+                continue;
+            }
+
+            File metaFile = new File(mDirectory, key + META_SUFFIX);
+            total -= file.length() + metaFile.length();
+            file.delete();
+            metaFile.delete();
+            Log.d(TAG, "Evicted cache entry " + key);
+        }
+    }
+
+    private void readMeta(Entry entry)
+    {
+        if (!entry.metaFile.exists())
+        {
+            return;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(entry.metaFile);
+            properties.load(in);
+            entry.totalLength = Long.parseLong(properties.getProperty(META_PROP_LENGTH, "-1"));
+            entry.contentType = properties.getProperty(META_PROP_CONTENT_TYPE);
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            Log.w(TAG, "Cannot read cache meta for " + entry.key + " - " + e.getMessage());
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    static String keyFor(String url)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash)
+            {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException | IOException e)
+        {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null)
+        {
+            return;
+        }
+
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.unity3d.rctavplayer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.net.Uri;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The decoder behind an RCTAVPlayer. Modelled on the parts of MediaPlayer
+ * the player uses, so the MediaPlayer engine is a thin wrapper and other
+ * engines report through the same error and info codes.
+ *
+ * Engines are created and driven on the playback thread and call their
+ * listener there. Layers only hand them a surface and read the video size,
+ * from the UI thread.
+ */
+public interface RCTAVPlayerEngine
+{
+    String MEDIA_PLAYER = "mediaplayer";
+    String MEDIA_CODEC = "mediacodec";
+
+    int SEEK_DEFAULT = 0;
+    int SEEK_CLOSEST_SYNC = 1;
+    int SEEK_CLOSEST = 2;
+
+    // Native NO_INIT, what a decoder allocation failure surfaces as
+    int MEDIA_ERROR_NO_INIT = -19;
+
+    interface Listener
+    {
+        void onPrepared(RCTAVPlayerEngine engine);
+        void onCompletion(RCTAVPlayerEngine engine);
+        void onSeekComplete(RCTAVPlayerEngine engine);
+        void onBufferingUpdate(RCTAVPlayerEngine engine, int percent);
+        boolean onInfo(RCTAVPlayerEngine engine, int what, int extra);
+        boolean onError(RCTAVPlayerEngine engine, int what, int extra);
+    }
+
+    void setListener(Listener listener);
+
+    void setDataSource(Context context, Uri uri, Map<String, String> headers) throws IOException;
+
+    void setDataSource(String path) throws IOException;
+
+    @TargetApi(Build.VERSION_CODES.M)
+    void setDataSource(MediaDataSource dataSource) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    boolean isPlaying();
+
+    /**
+     * Seeks with one of the SEEK_ modes. Engines without seek modes treat
+     * all of them as SEEK_DEFAULT.
+     */
+    void seekTo(int msec, int mode);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    int getVideoWidth();
+
+    int getVideoHeight();
+
+    void setVolume(float volume);
+
+    void setLooping(boolean looping);
+
+    boolean supportsPlaybackRate();
+
+    /**
+     * Whether the prepared source can play at the given rate with its audio
+     * time-stretched. Reported to JS as canPlayFastForward and
+     * canPlaySlowForward.
+     */
+    boolean probePlaybackRate(float rate);
+
+    void setPlaybackRate(float speed, float pitch);
+
+    /**
+     * Chains a prepared engine to start when this one completes. Returns
+     * false if the engines cannot be chained; null unchains.
+     */
+    boolean setNextEngine(RCTAVPlayerEngine next);
+
+    void setSurface(Surface surface);
+
+    /**
+     * Drops the source and frees the decoder, the engine can be given a new
+     * source afterwards.
+     */
+    void reset();
+
+    void release();
+}
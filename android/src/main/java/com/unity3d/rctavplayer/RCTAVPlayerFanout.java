@@ -0,0 +1,510 @@
+package com.unity3d.rctavplayer;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets several layers show one player. The engine decodes into the input
+ * surface, a SurfaceTexture bound to an external GL texture, and every new
+ * frame is drawn into the SurfaceTextures of all outputs. There is one
+ * decoder and one copy of each frame, however many layers there are.
+ *
+ * GL runs on a thread of its own. Calls are posted to it and never wait,
+ * they report back on the caller's handler once done. A SurfaceTexture
+ * dropped from the outputs is only drawn into until then.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+public class RCTAVPlayerFanout implements SurfaceTexture.OnFrameAvailableListener
+{
+    private static final String TAG = RCTAVPlayerFanout.class.getSimpleName();
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
+            "}\n";
+
+    // Triangle strip over the whole viewport, x, y, s, t per vertex
+    private static final float[] QUAD = {
+            -1f, -1f, 0f, 0f,
+            1f, -1f, 1f, 0f,
+            -1f, 1f, 0f, 1f,
+            1f, 1f, 1f, 1f,
+    };
+    private static final int FLOAT_SIZE = 4;
+    private static final int VERTEX_STRIDE = 4 * FLOAT_SIZE;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mCallbackHandler;
+
+    // GL thread only
+    private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig mEglConfig = null;
+    private EGLSurface mPbuffer = EGL14.EGL_NO_SURFACE;
+    private int mProgram = 0;
+    private int mTexture = 0;
+    private int mPositionLocation = -1;
+    private int mTexCoordLocation = -1;
+    private int mTexMatrixLocation = -1;
+    private final float[] mTexMatrix = new float[16];
+    private final int[] mSize = new int[2];
+    private FloatBuffer mQuad = null;
+    private SurfaceTexture mInputTexture = null;
+    private final Map<SurfaceTexture, EGLSurface> mOutputs = new LinkedHashMap<>();
+    private final List<SurfaceTexture> mPending = new ArrayList<>();
+    private boolean mHasFrame = false;
+
+    private volatile Surface mInputSurface = null;
+    private volatile boolean mReleased = false;
+
+    private final Runnable mDraw = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            draw(true);
+        }
+    };
+
+    public static boolean isSupported()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+    }
+
+    /**
+     * Starts setting up GL and the input surface, then posts done to the
+     * callback handler. Without an input surface by then setup failed, and
+     * the caller has to make do with a single output.
+     */
+    public RCTAVPlayerFanout(Handler callbackHandler, Runnable done)
+    {
+        mCallbackHandler = callbackHandler;
+        mThread = new HandlerThread("RCTAVPlayerFanout", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!setup())
+                {
+                    teardown();
+                }
+            }
+        }, done);
+    }
+
+    /**
+     * The surface for the engine to decode into, null until set up.
+     */
+    public Surface getInputSurface()
+    {
+        return mInputSurface;
+    }
+
+    /**
+     * Replaces the set of SurfaceTextures frames are drawn into, then posts
+     * done to the callback handler. The last frame is drawn into new outputs
+     * right away. An output still connected to something else is retried
+     * with every frame until it is free.
+     */
+    public void setOutputs(List<SurfaceTexture> outputs, Runnable done)
+    {
+        final List<SurfaceTexture> copy = new ArrayList<>(outputs);
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                updateOutputs(copy);
+            }
+        }, done);
+    }
+
+    /**
+     * Lets go of every output and GL, then posts done to the callback
+     * handler. The engine has to let go of the input surface first.
+     */
+    public void release(Runnable done)
+    {
+        if (mReleased)
+        {
+            mCallbackHandler.post(done);
+            return;
+        }
+
+        mReleased = true;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                teardown();
+                mThread.quit();
+            }
+        }, done);
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture)
+    {
+        // Called on an arbitrary thread before API 21. Frames that come in
+        // before a draw are latched by it together.
+        mHandler.removeCallbacks(mDraw);
+        mHandler.post(mDraw);
+    }
+
+    private void post(final Runnable runnable, final Runnable done)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    runnable.run();
+                }
+                finally
+                {
+                    mCallbackHandler.post(done);
+                }
+            }
+        });
+    }
+
+    private boolean setup()
+    {
+        mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (mEglDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(mEglDisplay, version, 0, version, 1))
+        {
+            Log.e(TAG, "Cannot initialize EGL");
+            mEglDisplay = EGL14.EGL_NO_DISPLAY;
+            return false;
+        }
+
+        int[] configAttribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mEglDisplay, configAttribs, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] == 0)
+        {
+            Log.e(TAG, "No EGL config for RGBA8888");
+            return false;
+        }
+        mEglConfig = configs[0];
+
+        int[] contextAttribs = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE };
+        mEglContext = EGL14.eglCreateContext(mEglDisplay, mEglConfig, EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        if (mEglContext == EGL14.EGL_NO_CONTEXT)
+        {
+            Log.e(TAG, "Cannot create EGL context - " + EGL14.eglGetError());
+            return false;
+        }
+
+        // Something to be current on while no output is
+        int[] pbufferAttribs = { EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE };
+        mPbuffer = EGL14.eglCreatePbufferSurface(mEglDisplay, mEglConfig, pbufferAttribs, 0);
+        if (mPbuffer == EGL14.EGL_NO_SURFACE || !EGL14.eglMakeCurrent(mEglDisplay, mPbuffer, mPbuffer, mEglContext))
+        {
+            Log.e(TAG, "Cannot make EGL context current - " + EGL14.eglGetError());
+            return false;
+        }
+
+        mProgram = createProgram();
+        if (mProgram == 0)
+        {
+            return false;
+        }
+        mPositionLocation = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTexCoordLocation = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+        mTexMatrixLocation = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+
+        mQuad = ByteBuffer.allocateDirect(QUAD.length * FLOAT_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mQuad.put(QUAD).position(0);
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mTexture = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        mInputTexture = new SurfaceTexture(mTexture);
+        mInputTexture.setOnFrameAvailableListener(this);
+        mInputSurface = new Surface(mInputTexture);
+        return true;
+    }
+
+    private int createProgram()
+    {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        if (vertexShader == 0 || fragmentShader == 0)
+        {
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        // Freed along with the program
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE)
+        {
+            Log.e(TAG, "Cannot link program - " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+
+        return program;
+    }
+
+    private static int compileShader(int type, String source)
+    {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0)
+        {
+            Log.e(TAG, "Cannot compile shader - " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
+
+        return shader;
+    }
+
+    private void updateOutputs(List<SurfaceTexture> outputs)
+    {
+        if (mEglContext == EGL14.EGL_NO_CONTEXT)
+        {
+            return;
+        }
+
+        Iterator<Map.Entry<SurfaceTexture, EGLSurface>> it = mOutputs.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<SurfaceTexture, EGLSurface> entry = it.next();
+            if (!outputs.contains(entry.getKey()))
+            {
+                destroyOutput(entry.getValue());
+                it.remove();
+            }
+        }
+
+        mPending.clear();
+        for (SurfaceTexture output: outputs)
+        {
+            if (!mOutputs.containsKey(output))
+            {
+                mPending.add(output);
+            }
+        }
+
+        if (connectPending() && mHasFrame)
+        {
+            draw(false);
+        }
+    }
+
+    /**
+     * Creates window surfaces for pending outputs. Returns whether any was
+     * added.
+     */
+    private boolean connectPending()
+    {
+        boolean added = false;
+        int[] surfaceAttribs = { EGL14.EGL_NONE };
+        Iterator<SurfaceTexture> it = mPending.iterator();
+        while (it.hasNext())
+        {
+            SurfaceTexture output = it.next();
+            EGLSurface surface = EGL14.eglCreateWindowSurface(mEglDisplay, mEglConfig, output, surfaceAttribs, 0);
+            if (surface == EGL14.EGL_NO_SURFACE)
+            {
+                // Most likely the engine has not let go of it yet
+                Log.d(TAG, "Output not free yet - " + EGL14.eglGetError());
+                continue;
+            }
+            mOutputs.put(output, surface);
+            it.remove();
+            added = true;
+        }
+
+        return added;
+    }
+
+    private void destroyOutput(EGLSurface surface)
+    {
+        // An output must not be current when destroyed
+        EGL14.eglMakeCurrent(mEglDisplay, mPbuffer, mPbuffer, mEglContext);
+        EGL14.eglDestroySurface(mEglDisplay, surface);
+    }
+
+    /**
+     * Draws the current frame into every output, after latching the newest
+     * frame of the input if there is one.
+     */
+    private void draw(boolean latch)
+    {
+        if (mInputTexture == null)
+        {
+            return;
+        }
+
+        if (latch)
+        {
+            if (!mPending.isEmpty())
+            {
+                connectPending();
+            }
+            EGL14.eglMakeCurrent(mEglDisplay, mPbuffer, mPbuffer, mEglContext);
+            mInputTexture.updateTexImage();
+            mInputTexture.getTransformMatrix(mTexMatrix);
+            mHasFrame = true;
+        }
+
+        for (EGLSurface surface: mOutputs.values())
+        {
+            if (!EGL14.eglMakeCurrent(mEglDisplay, surface, surface, mEglContext))
+            {
+                Log.w(TAG, "Cannot draw into output - " + EGL14.eglGetError());
+                continue;
+            }
+
+            EGL14.eglQuerySurface(mEglDisplay, surface, EGL14.EGL_WIDTH, mSize, 0);
+            EGL14.eglQuerySurface(mEglDisplay, surface, EGL14.EGL_HEIGHT, mSize, 1);
+            GLES20.glViewport(0, 0, mSize[0], mSize[1]);
+            drawQuad();
+            EGL14.eglSwapBuffers(mEglDisplay, surface);
+        }
+    }
+
+    private void drawQuad()
+    {
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
+        GLES20.glUniformMatrix4fv(mTexMatrixLocation, 1, false, mTexMatrix, 0);
+
+        mQuad.position(0);
+        GLES20.glVertexAttribPointer(mPositionLocation, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE, mQuad);
+        GLES20.glEnableVertexAttribArray(mPositionLocation);
+        mQuad.position(2);
+        GLES20.glVertexAttribPointer(mTexCoordLocation, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE, mQuad);
+        GLES20.glEnableVertexAttribArray(mTexCoordLocation);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private void teardown()
+    {
+        mHandler.removeCallbacks(mDraw);
+        if (mEglDisplay == EGL14.EGL_NO_DISPLAY)
+        {
+            return;
+        }
+
+        for (EGLSurface surface: mOutputs.values())
+        {
+            destroyOutput(surface);
+        }
+        mOutputs.clear();
+        mPending.clear();
+
+        if (mInputSurface != null)
+        {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+        if (mInputTexture != null)
+        {
+            mInputTexture.setOnFrameAvailableListener(null);
+            mInputTexture.release();
+            mInputTexture = null;
+        }
+        if (mTexture != 0)
+        {
+            GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+            mTexture = 0;
+        }
+        if (mProgram != 0)
+        {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+
+        EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (mPbuffer != EGL14.EGL_NO_SURFACE)
+        {
+            EGL14.eglDestroySurface(mEglDisplay, mPbuffer);
+            mPbuffer = EGL14.EGL_NO_SURFACE;
+        }
+        if (mEglContext != EGL14.EGL_NO_CONTEXT)
+        {
+            EGL14.eglDestroyContext(mEglDisplay, mEglContext);
+            mEglContext = EGL14.EGL_NO_CONTEXT;
+        }
+        // The display is shared with the rest of the app, so it is not
+        // terminated
+        EGL14.eglReleaseThread();
+        mEglDisplay = EGL14.EGL_NO_DISPLAY;
+    }
+}
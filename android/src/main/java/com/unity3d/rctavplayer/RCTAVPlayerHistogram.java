@@ -0,0 +1,114 @@
+package com.unity3d.rctavplayer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Fixed-bucket histogram of millisecond timings. Percentiles are reported as
+ * the upper bound of the bucket they fall in, which is plenty for tracking
+ * startup and seek latency trends.
+ */
+public class RCTAVPlayerHistogram
+{
+    private static final long[] BOUNDS_MS = {
+            25, 50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000, 30000
+    };
+
+    private static final String PROP_COUNT = "count";
+    private static final String PROP_MEAN = "mean";
+    private static final String PROP_MAX = "max";
+    private static final String PROP_P50 = "p50";
+    private static final String PROP_P95 = "p95";
+    private static final String PROP_P99 = "p99";
+    private static final String PROP_BOUNDS = "bounds";
+    private static final String PROP_BUCKETS = "buckets";
+
+    // The last bucket holds everything above the largest bound
+    private final long[] mBuckets = new long[BOUNDS_MS.length + 1];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMax = 0;
+
+    public synchronized void record(long valueMs)
+    {
+        if (valueMs < 0)
+        {
+            return;
+        }
+
+        int i = 0;
+        while (i < BOUNDS_MS.length && valueMs > BOUNDS_MS[i])
+        {
+            i++;
+        }
+        mBuckets[i]++;
+        mCount++;
+        mSum += valueMs;
+        mMax = Math.max(mMax, valueMs);
+    }
+
+    public synchronized long percentile(double fraction)
+    {
+        if (mCount == 0)
+        {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(mCount * fraction);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++)
+        {
+            seen += mBuckets[i];
+            if (seen >= target)
+            {
+                return Math.min(BOUNDS_MS[i], mMax);
+            }
+        }
+
+        return mMax;
+    }
+
+    public synchronized long getCount()
+    {
+        return mCount;
+    }
+
+    public synchronized void reset()
+    {
+        for (int i = 0; i < mBuckets.length; i++)
+        {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    public synchronized WritableMap toMap()
+    {
+        WritableMap map = Arguments.createMap();
+        map.putDouble(PROP_COUNT, mCount);
+        map.putDouble(PROP_MEAN, mCount > 0 ? (double) mSum / mCount : 0);
+        map.putDouble(PROP_MAX, mMax);
+        map.putDouble(PROP_P50, percentile(0.50));
+        map.putDouble(PROP_P95, percentile(0.95));
+        map.putDouble(PROP_P99, percentile(0.99));
+
+        WritableArray bounds = Arguments.createArray();
+        for (long bound : BOUNDS_MS)
+        {
+            bounds.pushDouble(bound);
+        }
+        map.putArray(PROP_BOUNDS, bounds);
+
+        WritableArray buckets = Arguments.createArray();
+        for (long bucket : mBuckets)
+        {
+            buckets.pushDouble(bucket);
+        }
+        map.putArray(PROP_BUCKETS, buckets);
+
+        return map;
+    }
+}
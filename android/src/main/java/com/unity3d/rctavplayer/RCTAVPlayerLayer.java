@@ -1,9 +1,16 @@
 package com.unity3d.rctavplayer;
 
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
-import android.media.MediaPlayer;
 import android.util.Log;
+import android.view.Surface;
+import android.view.ViewTreeObserver;
 
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.uimanager.ThemedReactContext;
 import com.yqritc.scalablevideoview.ScalableType;
 import com.yqritc.scalablevideoview.ScalableVideoView;
@@ -11,13 +18,66 @@ import com.yqritc.scalablevideoview.ScalableVideoView;
 /**
  * Created by Üstün Ergenoglu on 24/08/16.
  */
-public class RCTAVPlayerLayer extends ScalableVideoView implements RCTAVPlayer.Listener
+public class RCTAVPlayerLayer extends ScalableVideoView implements RCTAVPlayer.Listener,
+        RCTAVPlayerThumbnails.Listener
 {
     private static final String TAG = RCTAVPlayerLayer.class.getSimpleName();
 
+    // Posters stand in for a moment, a small readback is enough
+    private static final int MAX_POSTER_SIZE = 480;
+
+    private static final String PROP_POSTER_URI = "uri";
+    private static final String PROP_POSTER_TIME = "time";
+    private static final String PROP_POSTER_MAX_SIZE = "maxSize";
+
+    private static final String PROP_VISIBILITY_PLAY = "play";
+    private static final String PROP_VISIBILITY_PAUSE = "pause";
+    private static final String PROP_VISIBILITY_PRELOAD = "preload";
+    private static final float DEFAULT_PLAY_THRESHOLD = 0.5f;
+    private static final float DEFAULT_PAUSE_THRESHOLD = 0.2f;
+    private static final float DEFAULT_PRELOAD_MARGIN = 1.0f;
+
     private ThemedReactContext mThemedReactContext = null;
     private ScalableType mResizeMode = ScalableType.FIT_XY;
-    private RCTAVPlayer mAVPlayer = null;
+    // The player is resolved through its handle on every use, so a layer
+    // never holds on to a player that was removed, or drives the new player
+    // JS registered under the same uuid
+    private RCTAVPlayerModule mModule = null;
+    private RCTAVPlayerRegistry.Handle mPlayerHandle = null;
+    private boolean mAttachedToWindow = false;
+    private String mPlayerUuid = null;
+    private boolean mHasFrame = false;
+    private String mThumbnailKey = null;
+    private Bitmap mThumbnail = null;
+    // The last poster captured here, refilled while its player still uses it
+    private Bitmap mCapturedPoster = null;
+    private boolean mTrackVisibility = false;
+    private float mPlayThreshold = DEFAULT_PLAY_THRESHOLD;
+    private float mPauseThreshold = DEFAULT_PAUSE_THRESHOLD;
+    private float mPreloadMargin = DEFAULT_PRELOAD_MARGIN;
+    private boolean mListeningForVisibility = false;
+    private int mVisibility = RCTAVPlayer.VISIBILITY_UNKNOWN;
+    private final Rect mVisibleRect = new Rect();
+    private final Rect mWindowRect = new Rect();
+    private final int[] mLocation = new int[2];
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollListener = new ViewTreeObserver.OnScrollChangedListener()
+    {
+        @Override
+        public void onScrollChanged()
+        {
+            updateVisibility();
+        }
+    };
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener()
+    {
+        @Override
+        public void onGlobalLayout()
+        {
+            updateVisibility();
+        }
+    };
 
     public enum Events
     {
@@ -25,8 +85,19 @@ public class RCTAVPlayerLayer extends ScalableVideoView implements RCTAVPlayer.L
         EVENT_LOAD("onVideoLoad"),
         EVENT_ERROR("onVideoError"),
         EVENT_PROGRESS("onVideoProgress"),
+        EVENT_PROGRESS_BATCH("onVideoProgressBatch"),
         EVENT_SEEK("onVideoSeek"),
-        EVENT_END("onVideoEnd");
+        EVENT_END("onVideoEnd"),
+        EVENT_LOOP("onVideoLoop"),
+        EVENT_VISIBILITY("onVideoVisibility"),
+        EVENT_BUFFERING("onVideoBuffering"),
+        EVENT_RENDITION("onVideoRendition"),
+        EVENT_MEMORY_TRIM("onVideoMemoryTrim"),
+        EVENT_ITEM_LOAD_START("onVideoItemLoadStart"),
+        EVENT_ITEM_LOAD("onVideoItemLoad"),
+        EVENT_ITEM_ERROR("onVideoItemError"),
+        EVENT_ITEM_CHANGE("onVideoItemChange"),
+        EVENT_METRICS("onVideoMetrics");
 
         private final String mName;
 
@@ -61,23 +132,50 @@ public class RCTAVPlayerLayer extends ScalableVideoView implements RCTAVPlayer.L
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height)
     {
-        try
+        mHasFrame = false;
+        RCTAVPlayer player = getAVPlayer();
+        // Only while no decoder can be connected to the surface, which
+        // happens below
+        if (player == null || !player.isMediaPlayerValid())
         {
-            super.onSurfaceTextureAvailable(surfaceTexture, width, height);
-            setResizeModeModifier(mResizeMode);
-        } catch (IllegalStateException e)
+            Bitmap poster = player != null ? player.getPoster() : null;
+            if (poster != null)
+            {
+                drawPoster(surfaceTexture, poster, width, height, false);
+            }
+            else if (mThumbnail != null)
+            {
+                drawPoster(surfaceTexture, mThumbnail, width, height, true);
+            }
+        }
+
+        if (player != null && mAttachedToWindow)
         {
-            // This happens sometimes when the video view is attached but for some reason the media
-            // player is not valid. It causes a crash when a ScrollView with multiple video views is
-            // scrolled quickly.
-            Log.w(TAG, "Cannot set surface for media player. This is most probably harmless.");
+            // Shared with other layers of the player if there are any
+            setOutput(surfaceTexture);
         }
+        setResizeModeModifier(mResizeMode);
     }
 
     @Override
     protected void onDetachedFromWindow()
     {
-        mMediaPlayer = null;
+        // The surface is gone once detached. The poster is only worth a
+        // readback if it goes into the snapshot a resumed source starts from.
+        RCTAVPlayer detached = getAVPlayer();
+        if (detached != null && detached.isResumable())
+        {
+            capturePoster();
+        }
+        mAttachedToWindow = false;
+        stopVisibilityTracking();
+        updateVisibility();
+        RCTAVPlayer player = getAVPlayer();
+        if (player != null)
+        {
+            setOutput(null);
+            player.onLayerDetached();
+        }
         super.onDetachedFromWindow();
     }
 
@@ -85,20 +183,65 @@ public class RCTAVPlayerLayer extends ScalableVideoView implements RCTAVPlayer.L
     protected void onAttachedToWindow()
     {
         super.onAttachedToWindow();
-        if (mAVPlayer != null)
+        mAttachedToWindow = true;
+        RCTAVPlayer player = getAVPlayer();
+        if (player != null)
         {
-            mMediaPlayer = mAVPlayer.getMediaPlayer();
+            if (isAvailable())
+            {
+                setOutput(getSurfaceTexture());
+            }
+            player.onLayerAttached();
+            promotePlayer(player);
+
+            // To set the preview in the window
+            player.requestPreviewFrame();
         }
-        else
+        startVisibilityTracking();
+    }
+
+    /**
+     * The engine may draw into the surface until the playback thread takes
+     * it off, so the texture is released there instead of by the view.
+     */
+    @Override
+    public boolean onSurfaceTextureDestroyed(final SurfaceTexture surfaceTexture)
+    {
+        RCTAVPlayerModule module = mThemedReactContext.getNativeModule(RCTAVPlayerModule.class);
+        if (module == null)
         {
-            return;
+            return true;
         }
 
-        // To set the preview in the window
-        if (mMediaPlayer != null && mAVPlayer.isMediaPlayerValid() && !mMediaPlayer.isPlaying())
+        final RCTAVPlayerModule playerModule = module;
+        final RCTAVPlayerRegistry.Handle handle = mPlayerHandle;
+        boolean posted = module.runOnPlaybackThread(new Runnable()
         {
-            mMediaPlayer.seekTo(50);
-        }
+            @Override
+            public void run()
+            {
+                // A removed player already let go of the surface
+                RCTAVPlayer player = handle != null ? playerModule.getPlayer(handle) : null;
+                if (player != null)
+                {
+                    player.releaseOutput(RCTAVPlayerLayer.this, surfaceTexture);
+                }
+                else
+                {
+                    surfaceTexture.release();
+                }
+            }
+        });
+        // Once the playback thread has quit its players are released, so
+        // the view can release the texture itself
+        return !posted;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface)
+    {
+        super.onSurfaceTextureUpdated(surface);
+        mHasFrame = true;
     }
 
     @Override
@@ -109,6 +252,51 @@ public class RCTAVPlayerLayer extends ScalableVideoView implements RCTAVPlayer.L
         setResizeModeModifier(mResizeMode);
     }
 
+    /**
+     * ScalableVideoView scales with the video size. The player caches it
+     * on the playback thread, the engine is not queried from here.
+     */
+    @Override
+    public int getVideoWidth()
+    {
+        RCTAVPlayer player = getAVPlayer();
+        return player != null ? player.getVideoWidth() : 0;
+    }
+
+    @Override
+    public int getVideoHeight()
+    {
+        RCTAVPlayer player = getAVPlayer();
+        return player != null ? player.getVideoHeight() : 0;
+    }
+
+    /**
+     * The player this layer shows, or null if there is none or it has been
+     * removed since.
+     */
+    private RCTAVPlayer getAVPlayer()
+    {
+        return mPlayerHandle != null ? mModule.getPlayer(mPlayerHandle) : null;
+    }
+
+    /**
+     * Hands the surface to the player on the playback thread, which owns
+     * the engine drawing into it. Dropped if the player is removed first.
+     */
+    private void setOutput(final SurfaceTexture surfaceTexture)
+    {
+        final RCTAVPlayerModule module = mModule;
+        final RCTAVPlayerRegistry.Handle handle = mPlayerHandle;
+        module.runOnPlayer(handle, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                module.getPlayer(handle).setOutput(RCTAVPlayerLayer.this, surfaceTexture);
+            }
+        });
+    }
+
     @Override
     public void onPrepared(RCTAVPlayer player)
     {
@@ -125,70 +313,444 @@ public class RCTAVPlayerLayer extends ScalableVideoView implements RCTAVPlayer.L
         });
     }
 
+    @Override
+    public void onDemoted(RCTAVPlayer player)
+    {
+        // Called on the playback thread. The view keeps showing the last
+        // frame after the decoder is gone.
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                capturePoster();
+            }
+        });
+    }
+
+    @Override
+    public void onEngineChanged(final RCTAVPlayer player)
+    {
+        // Called on the playback thread, which already connected the new
+        // engine to the surface. The video size may have changed.
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (player == getAVPlayer() && mAttachedToWindow)
+                {
+                    setResizeModeModifier(mResizeMode);
+                }
+            }
+        });
+    }
+
     @Override
     public void onDestroyed()
     {
-        mMediaPlayer = null;
+        // Called on the playback thread, which already took the surfaces
+        // off the engine. The handle no longer resolves from now on.
+    }
+
+    /**
+     * Shows a frame of the given source, {uri, time, maxSize}, until a
+     * player draws. Frames come from RCTAVPlayerThumbnails, so tiles without
+     * a live player are not blank.
+     */
+    public void setPoster(ReadableMap poster)
+    {
+        mThumbnailKey = null;
+        mThumbnail = null;
+
+        RCTAVPlayerModule module = mThemedReactContext.getNativeModule(RCTAVPlayerModule.class);
+        if (poster == null || !poster.hasKey(PROP_POSTER_URI) || module == null)
+        {
+            return;
+        }
+
+        String uri = poster.getString(PROP_POSTER_URI);
+        int timeMs = poster.hasKey(PROP_POSTER_TIME) ? (int) (poster.getDouble(PROP_POSTER_TIME) * 1000) : 0;
+        int maxSize = poster.hasKey(PROP_POSTER_MAX_SIZE)
+                ? poster.getInt(PROP_POSTER_MAX_SIZE) : RCTAVPlayerThumbnails.DEFAULT_MAX_SIZE;
+
+        RCTAVPlayerThumbnails thumbnails = module.getThumbnails();
+        mThumbnailKey = RCTAVPlayerThumbnails.keyFor(uri, timeMs, maxSize);
+        Bitmap cached = thumbnails.getCached(mThumbnailKey);
+        if (cached != null)
+        {
+            onThumbnail(mThumbnailKey, cached);
+        }
+        else
+        {
+            thumbnails.request(uri, timeMs, maxSize, this);
+        }
+    }
+
+    @Override
+    public void onThumbnail(String key, Bitmap bitmap)
+    {
+        if (bitmap == null || !key.equals(mThumbnailKey))
+        {
+            return;
+        }
+
+        mThumbnail = bitmap;
+        // With a player bound the surface may already be connected to its
+        // decoder, then the poster waits for the next surface
+        if (getAVPlayer() == null && isAvailable())
+        {
+            drawPoster(getSurfaceTexture(), bitmap, getWidth(), getHeight(), true);
+        }
+    }
+
+    /**
+     * Keeps a downscaled copy of the frame on screen, so it can be shown
+     * again when the player is restored or resumed.
+     */
+    private void capturePoster()
+    {
+        int width = getWidth();
+        int height = getHeight();
+        RCTAVPlayer player = getAVPlayer();
+        if (player == null || !mHasFrame || !isAvailable() || width == 0 || height == 0)
+        {
+            return;
+        }
+
+        float scale = Math.min(1.0f, (float) MAX_POSTER_SIZE / Math.max(width, height));
+        int posterWidth = Math.round(width * scale);
+        int posterHeight = Math.round(height * scale);
+        Bitmap poster = mCapturedPoster;
+        if (poster != null && player.getPoster() == poster
+                && poster.getWidth() == posterWidth && poster.getHeight() == posterHeight)
+        {
+            // Nothing else holds it, so it is drawn over in place
+            poster = getBitmap(poster);
+        }
+        else
+        {
+            poster = getBitmap(posterWidth, posterHeight);
+        }
+
+        if (poster != null)
+        {
+            mCapturedPoster = poster;
+            player.setPoster(poster);
+        }
+    }
+
+    /**
+     * Draws the poster straight into the surface. The CPU connection is
+     * dropped again when the Surface is released, so the media player can
+     * still attach to it. Video frames are fitted to the resize mode,
+     * captured frames already are.
+     */
+    private void drawPoster(SurfaceTexture surfaceTexture, Bitmap poster, int width, int height, boolean fit)
+    {
+        Surface surface = new Surface(surfaceTexture);
+        try
+        {
+            Canvas canvas = surface.lockCanvas(null);
+            // The view transform set for the last video is applied on top of
+            // the surface, undo it
+            Matrix inverse = new Matrix();
+            if (getTransform(null).invert(inverse))
+            {
+                canvas.concat(inverse);
+            }
+            canvas.drawColor(0xff000000);
+            Rect dst = fit ? fitRect(poster, width, height) : new Rect(0, 0, width, height);
+            canvas.drawBitmap(poster, null, dst, new Paint(Paint.FILTER_BITMAP_FLAG));
+            surface.unlockCanvasAndPost(canvas);
+            mHasFrame = true;
+        }
+        catch (RuntimeException e)
+        {
+            Log.w(TAG, "Cannot draw poster - " + e.getMessage());
+        }
+        finally
+        {
+            surface.release();
+        }
+    }
+
+    private Rect fitRect(Bitmap bitmap, int width, int height)
+    {
+        float scaleX = (float) width / bitmap.getWidth();
+        float scaleY = (float) height / bitmap.getHeight();
+        float scale;
+        switch (mResizeMode)
+        {
+            case FIT_XY:
+                return new Rect(0, 0, width, height);
+            case LEFT_TOP:
+                return new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            case CENTER_CROP:
+                scale = Math.max(scaleX, scaleY);
+                break;
+            default:
+                scale = Math.min(scaleX, scaleY);
+                break;
+        }
+
+        int w = Math.round(bitmap.getWidth() * scale);
+        int h = Math.round(bitmap.getHeight() * scale);
+        int left = (width - w) / 2;
+        int top = (height - h) / 2;
+        return new Rect(left, top, left + w, top + h);
     }
 
     public void setResizeModeModifier(final ScalableType resizeMode)
     {
         mResizeMode = resizeMode;
 
-        if (mAVPlayer != null && mAVPlayer.isMediaPlayerValid())
+        final RCTAVPlayer player = getAVPlayer();
+        if (player != null && player.isMediaPlayerValid())
         {
-            Log.d(TAG, "setResizeModifier " + mAVPlayer);
+            Log.d(TAG, "setResizeModifier " + player);
             mThemedReactContext.runOnUiQueueThread(new Runnable()
             {
                 @Override
                 public void run()
                 {
-                    // If mMediaPlayer becomes null when scrolling fast enough and this is not yet
-                    // run.
-                    if (mMediaPlayer != null && mAVPlayer.isMediaPlayerValid())
+                    // The layer may have let go of the player when scrolling
+                    // fast enough and this is not yet run
+                    if (player == getAVPlayer() && player.isMediaPlayerValid())
                     {
                         setScalableType(resizeMode);
                     }
                     else
                     {
-                        Log.w(TAG, "mMediaPlayer became null before getting ready...");
+                        Log.w(TAG, "Player went away before getting ready...");
                     }
                 }
             });
         }
     }
 
-    private void setPlayer(MediaPlayer mediaPlayer)
+    /**
+     * Tracks how much of the layer is on screen and pauses the player while
+     * it is not, {play, pause, preload}. It plays once the visible fraction
+     * reaches play, pauses once it drops below pause, and gets the decoder
+     * back ahead of time within preload layer sizes of the window. Null
+     * stops tracking. Only changes reach the playback thread and JS.
+     */
+    public void setVisibilityThresholds(ReadableMap thresholds)
+    {
+        mTrackVisibility = thresholds != null;
+        if (thresholds != null)
+        {
+            mPlayThreshold = thresholds.hasKey(PROP_VISIBILITY_PLAY)
+                    ? (float) thresholds.getDouble(PROP_VISIBILITY_PLAY) : DEFAULT_PLAY_THRESHOLD;
+            mPauseThreshold = thresholds.hasKey(PROP_VISIBILITY_PAUSE)
+                    ? (float) thresholds.getDouble(PROP_VISIBILITY_PAUSE) : DEFAULT_PAUSE_THRESHOLD;
+            mPreloadMargin = thresholds.hasKey(PROP_VISIBILITY_PRELOAD)
+                    ? (float) thresholds.getDouble(PROP_VISIBILITY_PRELOAD) : DEFAULT_PRELOAD_MARGIN;
+            mPauseThreshold = Math.min(mPauseThreshold, mPlayThreshold);
+            startVisibilityTracking();
+        }
+        else
+        {
+            stopVisibilityTracking();
+        }
+        updateVisibility();
+    }
+
+    private void startVisibilityTracking()
+    {
+        if (!mTrackVisibility || !mAttachedToWindow || mListeningForVisibility)
+        {
+            return;
+        }
+
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnScrollChangedListener(mScrollListener);
+        observer.addOnGlobalLayoutListener(mLayoutListener);
+        mListeningForVisibility = true;
+    }
+
+    private void stopVisibilityTracking()
+    {
+        if (!mListeningForVisibility)
+        {
+            return;
+        }
+
+        ViewTreeObserver observer = getViewTreeObserver();
+        if (observer.isAlive())
+        {
+            observer.removeOnScrollChangedListener(mScrollListener);
+            observer.removeOnGlobalLayoutListener(mLayoutListener);
+        }
+        mListeningForVisibility = false;
+    }
+
+    private void updateVisibility()
+    {
+        int visibility = mTrackVisibility ? measureVisibility() : RCTAVPlayer.VISIBILITY_UNKNOWN;
+        if (visibility == mVisibility)
+        {
+            return;
+        }
+
+        mVisibility = visibility;
+        reportVisibility(getAVPlayer(), visibility);
+    }
+
+    private void reportVisibility(final RCTAVPlayer player, final int visibility)
+    {
+        if (player == null)
+        {
+            return;
+        }
+
+        player.runOnPlaybackThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                player.setLayerVisibility(RCTAVPlayerLayer.this, visibility);
+            }
+        });
+    }
+
+    /**
+     * Runs on every scroll frame, so it only compares rectangles. Between
+     * the pause and play thresholds the layer keeps its state, so a layer
+     * at the edge does not flip back and forth.
+     */
+    private int measureVisibility()
     {
-        mMediaPlayer = mediaPlayer;
+        int width = getWidth();
+        int height = getHeight();
+        if (!mAttachedToWindow || !isShown() || width == 0 || height == 0)
+        {
+            return RCTAVPlayer.VISIBILITY_OFFSCREEN;
+        }
+
+        float fraction = 0f;
+        if (getGlobalVisibleRect(mVisibleRect))
+        {
+            fraction = (float) mVisibleRect.width() * mVisibleRect.height() / ((float) width * height);
+        }
+
+        if (fraction >= mPlayThreshold
+                || (mVisibility == RCTAVPlayer.VISIBILITY_VISIBLE && fraction >= mPauseThreshold))
+        {
+            return RCTAVPlayer.VISIBILITY_VISIBLE;
+        }
 
-        if (mMediaPlayer != null && mAVPlayer != null && mAVPlayer.isMediaPlayerValid())
+        if (fraction > 0f)
         {
-            setResizeModeModifier(mResizeMode);
+            return RCTAVPlayer.VISIBILITY_NEAR;
         }
+
+        if (mPreloadMargin > 0f)
+        {
+            getLocationOnScreen(mLocation);
+            getWindowVisibleDisplayFrame(mWindowRect);
+            int marginX = (int) (width * mPreloadMargin);
+            int marginY = (int) (height * mPreloadMargin);
+            if (mWindowRect.intersects(mLocation[0] - marginX, mLocation[1] - marginY,
+                    mLocation[0] + width + marginX, mLocation[1] + height + marginY))
+            {
+                return RCTAVPlayer.VISIBILITY_NEAR;
+            }
+        }
+
+        return RCTAVPlayer.VISIBILITY_OFFSCREEN;
     }
 
     public void setPlayerUuid(String uuid)
     {
-        if (mAVPlayer != null)
+        mPlayerUuid = uuid;
+        setPlayerUuid(uuid, true);
+    }
+
+    private void setPlayerUuid(final String uuid, boolean retry)
+    {
+        // A removed player already dropped this layer with its listeners
+        RCTAVPlayer previous = getAVPlayer();
+        if (previous != null)
         {
-            mAVPlayer.removeListener(this);
-            setPlayer(null);
-            mAVPlayer = null;
+            if (mAttachedToWindow)
+            {
+                setOutput(null);
+                previous.onLayerDetached();
+            }
+            previous.removeListener(this);
+            reportVisibility(previous, RCTAVPlayer.VISIBILITY_UNKNOWN);
         }
+        mVisibility = RCTAVPlayer.VISIBILITY_UNKNOWN;
+        mPlayerHandle = null;
 
         Log.d(TAG, "Setting player with uuid " + uuid + " to layer " + this);
-        RCTAVPlayer avPlayer = RCTAVPlayerModule.getPlayer(uuid);
+        RCTAVPlayerModule module = mThemedReactContext.getNativeModule(RCTAVPlayerModule.class);
+        RCTAVPlayerRegistry.Handle handle = module != null ? module.getPlayerHandle(uuid) : null;
+        RCTAVPlayer avPlayer = handle != null ? module.getPlayer(handle) : null;
+        if (avPlayer == null && retry && module != null)
+        {
+            // Players are created on the playback thread, which may not have
+            // got to it yet. Look again once it has run what is queued.
+            module.runOnPlaybackThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    post(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            if (uuid.equals(mPlayerUuid) && mPlayerHandle == null)
+                            {
+                                setPlayerUuid(uuid, false);
+                            }
+                        }
+                    });
+                }
+            });
+            return;
+        }
+
         if (avPlayer == null)
         {
             Log.e(TAG, "Cannot find player with uuid: " + uuid);
             return;
         }
 
-        mAVPlayer = avPlayer;
+        mModule = module;
+        mPlayerHandle = handle;
+        setResizeModeModifier(mResizeMode);
+        avPlayer.addListener(this);
+        updateVisibility();
+
+        if (mAttachedToWindow)
+        {
+            if (isAvailable())
+            {
+                setOutput(getSurfaceTexture());
+            }
+            avPlayer.onLayerAttached();
+            promotePlayer(avPlayer);
+        }
+    }
+
+    private void promotePlayer(final RCTAVPlayer avPlayer)
+    {
+        if (!avPlayer.isPreloading())
+        {
+            return;
+        }
 
-        MediaPlayer mp = mAVPlayer.getMediaPlayer();
-        setPlayer(mp);
-        mAVPlayer.addListener(this);
+        avPlayer.runOnPlaybackThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                avPlayer.promote();
+            }
+        });
     }
 }
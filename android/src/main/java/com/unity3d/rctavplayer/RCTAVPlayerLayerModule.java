@@ -1,5 +1,6 @@
 package com.unity3d.rctavplayer;
 
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.common.MapBuilder;
 import com.facebook.react.uimanager.SimpleViewManager;
 import com.facebook.react.uimanager.ThemedReactContext;
@@ -17,6 +18,8 @@ public class RCTAVPlayerLayerModule extends SimpleViewManager<RCTAVPlayerLayer>
 {
     private static final String PROP_RESIZE_MODE = "resizeMode";
     private static final String PROP_PLAYER_UUID = "playerUuid";
+    private static final String PROP_POSTER = "poster";
+    private static final String PROP_VISIBILITY_THRESHOLDS = "visibilityThresholds";
 
     @Override
     public String getName()
@@ -64,4 +67,16 @@ public class RCTAVPlayerLayerModule extends SimpleViewManager<RCTAVPlayerLayer>
     {
         avPlayerLayer.setPlayerUuid(playerUuid);
     }
+
+    @ReactProp(name = PROP_POSTER)
+    public void setPoster(final RCTAVPlayerLayer avPlayerLayer, @Nullable final ReadableMap poster)
+    {
+        avPlayerLayer.setPoster(poster);
+    }
+
+    @ReactProp(name = PROP_VISIBILITY_THRESHOLDS)
+    public void setVisibilityThresholds(final RCTAVPlayerLayer avPlayerLayer, @Nullable final ReadableMap thresholds)
+    {
+        avPlayerLayer.setVisibilityThresholds(thresholds);
+    }
 }
@@ -0,0 +1,160 @@
+package com.unity3d.rctavplayer;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MediaDataSource reading straight from a memory-mapped file. Players opening
+ * the same file share one read-only mapping, which is dropped when the last
+ * of them closes its data source.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class RCTAVPlayerMappedDataSource extends MediaDataSource
+{
+    private static final String TAG = RCTAVPlayerMappedDataSource.class.getSimpleName();
+
+    private static class Mapping
+    {
+        final MappedByteBuffer buffer;
+        int refCount = 0;
+
+        Mapping(MappedByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+    }
+
+    private static final Map<String, Mapping> sMappings = new HashMap<>();
+
+    private final String mPath;
+    private final Mapping mMapping;
+    private final ByteBuffer mBuffer;
+    private boolean mClosed = false;
+
+    private RCTAVPlayerMappedDataSource(String path, Mapping mapping)
+    {
+        mPath = path;
+        mMapping = mapping;
+        // Each data source gets its own position over the shared mapping
+        mBuffer = mapping.buffer.duplicate();
+    }
+
+    /**
+     * Maps the file or reuses an existing mapping of it. Returns null when
+     * the file cannot be mapped, e.g. it is larger than 2 GB.
+     */
+    public static RCTAVPlayerMappedDataSource open(File file)
+    {
+        String path = file.getAbsolutePath();
+        synchronized (sMappings)
+        {
+            Mapping mapping = sMappings.get(path);
+            if (mapping == null || mapping.buffer.capacity() != file.length())
+            {
+                // A file replaced in place gets a fresh mapping
+                MappedByteBuffer buffer = map(file);
+                if (buffer == null)
+                {
+                    return null;
+                }
+                mapping = new Mapping(buffer);
+                sMappings.put(path, mapping);
+            }
+
+            mapping.refCount++;
+            return new RCTAVPlayerMappedDataSource(path, mapping);
+        }
+    }
+
+    private static MappedByteBuffer map(File file)
+    {
+        if (file.length() > Integer.MAX_VALUE)
+        {
+            Log.w(TAG, "File too large to map: " + file);
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Cannot map " + file + " - " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            RCTAVPlayerDiskCache.closeQuietly(raf);
+        }
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException
+    {
+        synchronized (mBuffer)
+        {
+            if (mClosed)
+            {
+                throw new IOException("Data source closed: " + mPath);
+            }
+            if (position < 0)
+            {
+                throw new IOException("Invalid position " + position + " in " + mPath);
+            }
+
+            int length = mBuffer.capacity();
+            if (position >= length)
+            {
+                return -1;
+            }
+
+            int count = (int) Math.min(size, length - position);
+            mBuffer.position((int) position);
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+    }
+
+    @Override
+    public long getSize() throws IOException
+    {
+        return mBuffer.capacity();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (mBuffer)
+        {
+            if (mClosed)
+            {
+                return;
+            }
+            mClosed = true;
+        }
+
+        synchronized (sMappings)
+        {
+            if (--mMapping.refCount <= 0 && sMappings.get(mPath) == mMapping)
+            {
+                sMappings.remove(mPath);
+            }
+        }
+    }
+}
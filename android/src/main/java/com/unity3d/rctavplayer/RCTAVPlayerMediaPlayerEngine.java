@@ -0,0 +1,324 @@
+package com.unity3d.rctavplayer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Engine backed by a pooled android.media.MediaPlayer. Plays everything the
+ * platform does, including audio, and chains with setNextMediaPlayer.
+ */
+public class RCTAVPlayerMediaPlayerEngine implements RCTAVPlayerEngine,
+        MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
+        MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnCompletionListener,
+        MediaPlayer.OnInfoListener, MediaPlayer.OnSeekCompleteListener
+{
+    private static final String TAG = RCTAVPlayerMediaPlayerEngine.class.getSimpleName();
+
+    // The speeds AudioTrack time-stretches without falling back
+    private static final float MIN_STRETCH_SPEED = 0.01f;
+    private static final float MAX_STRETCH_SPEED = 20.0f;
+
+    private final RCTAVPlayerMediaPlayerPool mPool;
+    private final MediaPlayer mMediaPlayer;
+    private Listener mListener = null;
+    // Whether the prepared source has audio, null until asked
+    private Boolean mHasAudioTrack = null;
+
+    public RCTAVPlayerMediaPlayerEngine(RCTAVPlayerMediaPlayerPool pool)
+    {
+        mPool = pool;
+        mMediaPlayer = pool.acquire();
+
+        mMediaPlayer.setOnPreparedListener(this);
+        mMediaPlayer.setOnBufferingUpdateListener(this);
+        mMediaPlayer.setOnErrorListener(this);
+        mMediaPlayer.setOnCompletionListener(this);
+        mMediaPlayer.setOnInfoListener(this);
+        mMediaPlayer.setOnSeekCompleteListener(this);
+    }
+
+    @Override
+    public void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    @Override
+    public void setDataSource(Context context, Uri uri, Map<String, String> headers) throws IOException
+    {
+        mMediaPlayer.setDataSource(context, uri, headers);
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException
+    {
+        mMediaPlayer.setDataSource(path);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public void setDataSource(MediaDataSource dataSource)
+    {
+        mMediaPlayer.setDataSource(dataSource);
+    }
+
+    @Override
+    public void prepareAsync()
+    {
+        mMediaPlayer.prepareAsync();
+    }
+
+    @Override
+    public void start()
+    {
+        mMediaPlayer.start();
+    }
+
+    @Override
+    public void pause()
+    {
+        mMediaPlayer.pause();
+    }
+
+    @Override
+    public boolean isPlaying()
+    {
+        return mMediaPlayer.isPlaying();
+    }
+
+    /**
+     * Before API 26 MediaPlayer has no seek modes and always seeks to a
+     * sync frame.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.O)
+    public void seekTo(int msec, int mode)
+    {
+        if (mode == SEEK_DEFAULT || Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+        {
+            mMediaPlayer.seekTo(msec);
+        }
+        else
+        {
+            mMediaPlayer.seekTo((long) msec, mode == SEEK_CLOSEST ? MediaPlayer.SEEK_CLOSEST : MediaPlayer.SEEK_CLOSEST_SYNC);
+        }
+    }
+
+    @Override
+    public int getCurrentPosition()
+    {
+        return mMediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration()
+    {
+        return mMediaPlayer.getDuration();
+    }
+
+    @Override
+    public int getVideoWidth()
+    {
+        return mMediaPlayer.getVideoWidth();
+    }
+
+    @Override
+    public int getVideoHeight()
+    {
+        return mMediaPlayer.getVideoHeight();
+    }
+
+    @Override
+    public void setVolume(float volume)
+    {
+        mMediaPlayer.setVolume(volume, volume);
+    }
+
+    @Override
+    public void setLooping(boolean looping)
+    {
+        mMediaPlayer.setLooping(looping);
+    }
+
+    @Override
+    public boolean supportsPlaybackRate()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Judged from the API level and the tracks of the prepared source,
+     * without touching the player: from API 23 on any non-zero speed also
+     * starts a prepared or paused MediaPlayer. Audio is time-stretched by
+     * AudioTrack within its speed range, video alone plays at any rate.
+     */
+    @Override
+    public boolean probePlaybackRate(float rate)
+    {
+        if (!supportsPlaybackRate() || rate <= 0.0f)
+        {
+            return false;
+        }
+
+        return !hasAudioTrack() || (rate >= MIN_STRETCH_SPEED && rate <= MAX_STRETCH_SPEED);
+    }
+
+    private boolean hasAudioTrack()
+    {
+        if (mHasAudioTrack == null)
+        {
+            mHasAudioTrack = findAudioTrack();
+        }
+
+        return mHasAudioTrack;
+    }
+
+    private boolean findAudioTrack()
+    {
+        MediaPlayer.TrackInfo[] tracks;
+        try
+        {
+            tracks = mMediaPlayer.getTrackInfo();
+        }
+        catch (RuntimeException e)
+        {
+            // Assume the stricter case
+            Log.w(TAG, "Cannot read track info - " + e.getMessage());
+            return true;
+        }
+
+        if (tracks == null)
+        {
+            return true;
+        }
+
+        for (MediaPlayer.TrackInfo track : tracks)
+        {
+            if (track.getTrackType() == MediaPlayer.TrackInfo.MEDIA_TRACK_TYPE_AUDIO)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * From API 23 on setting a non-zero speed also starts playback, so this
+     * is only called right before or during playback.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public void setPlaybackRate(float speed, float pitch)
+    {
+        PlaybackParams params = mMediaPlayer.getPlaybackParams();
+        if (params.getSpeed() == speed && params.getPitch() == pitch)
+        {
+            return;
+        }
+
+        params.setSpeed(speed);
+        params.setPitch(pitch);
+        params.setAudioFallbackMode(PlaybackParams.AUDIO_FALLBACK_MODE_DEFAULT);
+        mMediaPlayer.setPlaybackParams(params);
+    }
+
+    @Override
+    public boolean setNextEngine(RCTAVPlayerEngine next)
+    {
+        if (next == null)
+        {
+            mMediaPlayer.setNextMediaPlayer(null);
+            return true;
+        }
+
+        if (!(next instanceof RCTAVPlayerMediaPlayerEngine))
+        {
+            return false;
+        }
+
+        mMediaPlayer.setNextMediaPlayer(((RCTAVPlayerMediaPlayerEngine) next).mMediaPlayer);
+        return true;
+    }
+
+    @Override
+    public void setSurface(Surface surface)
+    {
+        mMediaPlayer.setSurface(surface);
+    }
+
+    @Override
+    public void reset()
+    {
+        mHasAudioTrack = null;
+        mMediaPlayer.reset();
+    }
+
+    /**
+     * Returns the media player to the pool, which resets it.
+     */
+    @Override
+    public void release()
+    {
+        mListener = null;
+        mPool.recycle(mMediaPlayer);
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp)
+    {
+        if (mListener != null)
+        {
+            mListener.onPrepared(this);
+        }
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp)
+    {
+        if (mListener != null)
+        {
+            mListener.onCompletion(this);
+        }
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp)
+    {
+        if (mListener != null)
+        {
+            mListener.onSeekComplete(this);
+        }
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent)
+    {
+        if (mListener != null)
+        {
+            mListener.onBufferingUpdate(this, percent);
+        }
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra)
+    {
+        return mListener != null && mListener.onInfo(this, what, extra);
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra)
+    {
+        return mListener == null || mListener.onError(this, what, extra);
+    }
+}
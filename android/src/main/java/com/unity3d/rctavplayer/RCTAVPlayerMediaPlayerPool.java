@@ -0,0 +1,150 @@
+package com.unity3d.rctavplayer;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Bounded pool of idle, reset MediaPlayer instances. Players returned to the
+ * pool are handed out again most recently used first, and the least recently
+ * used idle player is released once the pool grows over its maximum size.
+ */
+public class RCTAVPlayerMediaPlayerPool
+{
+    private static final String TAG = RCTAVPlayerMediaPlayerPool.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_SIZE = 4;
+
+    private static final String STATS_PROP_HITS = "hits";
+    private static final String STATS_PROP_MISSES = "misses";
+    private static final String STATS_PROP_EVICTIONS = "evictions";
+    private static final String STATS_PROP_IDLE = "idle";
+    private static final String STATS_PROP_MAX_SIZE = "maxSize";
+
+    /**
+     * Creates the media players the pool hands out. The seam a harness uses
+     * to drive the player lifecycle without a real decoder.
+     */
+    public interface Factory
+    {
+        MediaPlayer create();
+    }
+
+    private static final Factory DEFAULT_FACTORY = new Factory()
+    {
+        @Override
+        public MediaPlayer create()
+        {
+            return new MediaPlayer();
+        }
+    };
+
+    private final Factory mFactory;
+    private final Deque<MediaPlayer> mIdlePlayers = new ArrayDeque<>();
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mEvictions = 0;
+
+    public RCTAVPlayerMediaPlayerPool()
+    {
+        this(DEFAULT_FACTORY);
+    }
+
+    public RCTAVPlayerMediaPlayerPool(Factory factory)
+    {
+        mFactory = factory;
+    }
+
+    public synchronized MediaPlayer acquire()
+    {
+        MediaPlayer mediaPlayer = mIdlePlayers.pollLast();
+        if (mediaPlayer != null)
+        {
+            mHits++;
+            return mediaPlayer;
+        }
+
+        mMisses++;
+        return mFactory.create();
+    }
+
+    public synchronized void recycle(MediaPlayer mediaPlayer)
+    {
+        try
+        {
+            mediaPlayer.reset();
+            mediaPlayer.setSurface(null);
+        }
+        catch (IllegalStateException e)
+        {
+            Log.w(TAG, "Cannot reset media player, releasing it instead");
+            mediaPlayer.release();
+            return;
+        }
+
+        // Drop the references to the previous owner
+        mediaPlayer.setOnPreparedListener(null);
+        mediaPlayer.setOnBufferingUpdateListener(null);
+        mediaPlayer.setOnErrorListener(null);
+        mediaPlayer.setOnCompletionListener(null);
+        mediaPlayer.setOnInfoListener(null);
+        mediaPlayer.setOnSeekCompleteListener(null);
+
+        mIdlePlayers.offerLast(mediaPlayer);
+        trimToSize(mMaxSize);
+    }
+
+    public synchronized void setMaxSize(int maxSize)
+    {
+        if (maxSize < 0)
+        {
+            Log.w(TAG, "Ignoring invalid pool size " + maxSize);
+            return;
+        }
+
+        mMaxSize = maxSize;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Releases all idle players. Returns how many there were.
+     */
+    public synchronized int clear()
+    {
+        int released = mIdlePlayers.size();
+        for (MediaPlayer mediaPlayer : mIdlePlayers)
+        {
+            mediaPlayer.release();
+        }
+        mIdlePlayers.clear();
+        return released;
+    }
+
+    public synchronized WritableMap getStats()
+    {
+        WritableMap stats = Arguments.createMap();
+        stats.putInt(STATS_PROP_HITS, mHits);
+        stats.putInt(STATS_PROP_MISSES, mMisses);
+        stats.putInt(STATS_PROP_EVICTIONS, mEvictions);
+        stats.putInt(STATS_PROP_IDLE, mIdlePlayers.size());
+        stats.putInt(STATS_PROP_MAX_SIZE, mMaxSize);
+
+        return stats;
+    }
+
+    private void trimToSize(int size)
+    {
+        while (mIdlePlayers.size() > size)
+        {
+            MediaPlayer eldest = mIdlePlayers.pollFirst();
+            eldest.release();
+            mEvictions++;
+        }
+    }
+}
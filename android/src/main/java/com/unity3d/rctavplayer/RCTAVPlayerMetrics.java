@@ -0,0 +1,281 @@
+package com.unity3d.rctavplayer;
+
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Playback telemetry. Each RCTAVPlayer owns one instance that records
+ * startup, stall and seek timings and forwards every sample to the
+ * module-wide instance, so both levels can be queried from JS.
+ *
+ * Startup is split into prepare latency (source set to onPrepared) and first
+ * frame latency (source set, or promotion of a preloaded player, to
+ * MEDIA_INFO_VIDEO_RENDERING_START). The rebuffer ratio is stalled time over
+ * stalled plus playing time. MediaPlayer does not report dropped frames, so
+ * MEDIA_INFO_VIDEO_TRACK_LAGGING warnings are counted instead.
+ */
+public class RCTAVPlayerMetrics
+{
+    private static final String PROP_PREPARE = "prepareLatency";
+    private static final String PROP_FIRST_FRAME = "firstFrameLatency";
+    private static final String PROP_SEEK = "seekLatency";
+    private static final String PROP_REBUFFER = "rebufferDuration";
+    private static final String PROP_REBUFFER_COUNT = "rebufferCount";
+    private static final String PROP_REBUFFER_RATIO = "rebufferRatio";
+    private static final String PROP_PLAY_TIME = "playTime";
+    private static final String PROP_STALL_TIME = "stallTime";
+    private static final String PROP_LAGGING_COUNT = "videoLaggingCount";
+    private static final String PROP_ERROR_COUNT = "errorCount";
+
+    private final RCTAVPlayerMetrics mParent;
+
+    private final RCTAVPlayerHistogram mPrepareLatency = new RCTAVPlayerHistogram();
+    private final RCTAVPlayerHistogram mFirstFrameLatency = new RCTAVPlayerHistogram();
+    private final RCTAVPlayerHistogram mSeekLatency = new RCTAVPlayerHistogram();
+    private final RCTAVPlayerHistogram mRebufferDuration = new RCTAVPlayerHistogram();
+    private long mPlayTimeMs = 0;
+    private long mStallTimeMs = 0;
+    private long mLaggingCount = 0;
+    private long mErrorCount = 0;
+    private boolean mDirty = false;
+
+    // Per player state, timestamps from SystemClock.elapsedRealtime() or 0
+    private long mLoadStartTime = 0;
+    private boolean mFirstFrameSeen = false;
+    private long mPlayStartTime = 0;
+    private long mStallStartTime = 0;
+    private long mSeekStartTime = 0;
+
+    public RCTAVPlayerMetrics(RCTAVPlayerMetrics parent)
+    {
+        mParent = parent;
+    }
+
+    public synchronized void onLoadStart()
+    {
+        onStopped();
+        mLoadStartTime = SystemClock.elapsedRealtime();
+        mFirstFrameSeen = false;
+        mSeekStartTime = 0;
+    }
+
+    public synchronized void onPrepared()
+    {
+        if (mLoadStartTime != 0)
+        {
+            recordPrepareLatency(SystemClock.elapsedRealtime() - mLoadStartTime);
+        }
+    }
+
+    /**
+     * A preloaded player only becomes visible once promoted, so first frame
+     * latency is measured from there.
+     */
+    public synchronized void onPromoted()
+    {
+        if (!mFirstFrameSeen)
+        {
+            mLoadStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public synchronized void onFirstFrame()
+    {
+        if (!mFirstFrameSeen && mLoadStartTime != 0)
+        {
+            mFirstFrameSeen = true;
+            recordFirstFrameLatency(SystemClock.elapsedRealtime() - mLoadStartTime);
+        }
+    }
+
+    public synchronized void onPlaying()
+    {
+        if (mPlayStartTime == 0)
+        {
+            mPlayStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Playback paused, completed, was reset or released.
+     */
+    public synchronized void onStopped()
+    {
+        long now = SystemClock.elapsedRealtime();
+        if (mPlayStartTime != 0)
+        {
+            recordPlayTime(now - mPlayStartTime);
+            mPlayStartTime = 0;
+        }
+        if (mStallStartTime != 0)
+        {
+            recordStall(now - mStallStartTime);
+            mStallStartTime = 0;
+        }
+    }
+
+    public synchronized void onBufferingStart()
+    {
+        if (mStallStartTime != 0)
+        {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        mStallStartTime = now;
+        // Stalled time is not playing time
+        if (mPlayStartTime != 0)
+        {
+            recordPlayTime(now - mPlayStartTime);
+            mPlayStartTime = now;
+        }
+    }
+
+    public synchronized void onBufferingEnd()
+    {
+        if (mStallStartTime == 0)
+        {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        recordStall(now - mStallStartTime);
+        mStallStartTime = 0;
+        if (mPlayStartTime != 0)
+        {
+            mPlayStartTime = now;
+        }
+    }
+
+    public synchronized void onSeekStart()
+    {
+        // Only the first of overlapping seeks is timed
+        if (mSeekStartTime == 0)
+        {
+            mSeekStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public synchronized void onSeekComplete()
+    {
+        if (mSeekStartTime != 0)
+        {
+            recordSeekLatency(SystemClock.elapsedRealtime() - mSeekStartTime);
+            mSeekStartTime = 0;
+        }
+    }
+
+    public synchronized void onVideoLagging()
+    {
+        mLaggingCount++;
+        mDirty = true;
+        if (mParent != null)
+        {
+            mParent.onVideoLagging();
+        }
+    }
+
+    public synchronized void onError()
+    {
+        onStopped();
+        mErrorCount++;
+        mDirty = true;
+        if (mParent != null)
+        {
+            mParent.onError();
+        }
+    }
+
+    private synchronized void recordPrepareLatency(long ms)
+    {
+        mPrepareLatency.record(ms);
+        mDirty = true;
+        if (mParent != null)
+        {
+            mParent.recordPrepareLatency(ms);
+        }
+    }
+
+    private synchronized void recordFirstFrameLatency(long ms)
+    {
+        mFirstFrameLatency.record(ms);
+        mDirty = true;
+        if (mParent != null)
+        {
+            mParent.recordFirstFrameLatency(ms);
+        }
+    }
+
+    private synchronized void recordSeekLatency(long ms)
+    {
+        mSeekLatency.record(ms);
+        mDirty = true;
+        if (mParent != null)
+        {
+            mParent.recordSeekLatency(ms);
+        }
+    }
+
+    private synchronized void recordStall(long ms)
+    {
+        mRebufferDuration.record(ms);
+        mStallTimeMs += ms;
+        mDirty = true;
+        if (mParent != null)
+        {
+            mParent.recordStall(ms);
+        }
+    }
+
+    private synchronized void recordPlayTime(long ms)
+    {
+        mPlayTimeMs += ms;
+        if (mParent != null)
+        {
+            mParent.recordPlayTime(ms);
+        }
+    }
+
+    /**
+     * Returns whether anything was recorded since the last call.
+     */
+    public synchronized boolean takeDirty()
+    {
+        boolean dirty = mDirty;
+        mDirty = false;
+        return dirty;
+    }
+
+    public synchronized void reset()
+    {
+        mPrepareLatency.reset();
+        mFirstFrameLatency.reset();
+        mSeekLatency.reset();
+        mRebufferDuration.reset();
+        mPlayTimeMs = 0;
+        mStallTimeMs = 0;
+        mLaggingCount = 0;
+        mErrorCount = 0;
+        mDirty = false;
+    }
+
+    public synchronized WritableMap toMap()
+    {
+        WritableMap map = Arguments.createMap();
+        map.putMap(PROP_PREPARE, mPrepareLatency.toMap());
+        map.putMap(PROP_FIRST_FRAME, mFirstFrameLatency.toMap());
+        map.putMap(PROP_SEEK, mSeekLatency.toMap());
+        map.putMap(PROP_REBUFFER, mRebufferDuration.toMap());
+        map.putDouble(PROP_REBUFFER_COUNT, mRebufferDuration.getCount());
+        map.putDouble(PROP_PLAY_TIME, mPlayTimeMs);
+        map.putDouble(PROP_STALL_TIME, mStallTimeMs);
+        long total = mPlayTimeMs + mStallTimeMs;
+        map.putDouble(PROP_REBUFFER_RATIO, total > 0 ? (double) mStallTimeMs / total : 0);
+        map.putDouble(PROP_LAGGING_COUNT, mLaggingCount);
+        map.putDouble(PROP_ERROR_COUNT, mErrorCount);
+
+        return map;
+    }
+}
@@ -1,32 +1,121 @@
 package com.unity3d.rctavplayer;
 
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.util.List;
 
 /**
  * Created by Üstün Ergenoglu on 24/08/16.
  */
-public class RCTAVPlayerModule extends ReactContextBaseJavaModule
+public class RCTAVPlayerModule extends ReactContextBaseJavaModule implements ComponentCallbacks2
 {
     private static final String TAG = RCTAVPlayerModule.class.getSimpleName();
 
+    private static final String BATCH_PROP_UUID = "uuid";
+    private static final String BATCH_PROP_STATE = "state";
+
+    private static final String METRICS_PROP_MODULE = "module";
+    private static final String METRICS_PROP_PLAYERS = "players";
+    private static final int DEFAULT_METRICS_INTERVAL_MS = 30000;
+    private static final int SNAPSHOT_CACHE_BYTES = 8 * 1024 * 1024;
+
+    private static final String TRIM_PROP_LEVEL = "level";
+    private static final String TRIM_PROP_POOLED_RELEASED = "pooledReleased";
+    private static final String TRIM_PROP_PRELOADS_UNLOADED = "preloadsUnloaded";
+    private static final String TRIM_PROP_PLAYERS_DEMOTED = "playersDemoted";
+
+    /**
+     * A command run against one player on the playback thread. Returns an
+     * error message, or null on success.
+     */
+    private interface PlayerCommand
+    {
+        String run(RCTAVPlayer avPlayer);
+    }
+
     private ReactApplicationContext mContext;
-    private static Map<String, RCTAVPlayer> mPlayers = new HashMap<>();
+    private final RCTAVPlayerRegistry mRegistry = new RCTAVPlayerRegistry();
+    private RCTAVPlayerProgressTicker mProgressTicker;
+    private RCTAVPlayerMediaPlayerPool mMediaPlayerPool;
+    private RCTAVPlayerPreloader mPreloader;
+    private RCTAVPlayerDecoderBudget mDecoderBudget;
+    private final RCTAVPlayerBandwidthMeter mBandwidthMeter = new RCTAVPlayerBandwidthMeter();
+    private LruCache<String, RCTAVPlayerSnapshot> mSnapshots;
+    private RCTAVPlayerThumbnails mThumbnails;
+    private RCTAVPlayerCacheProxy mCacheProxy;
+    private long mCacheMaxBytes = RCTAVPlayerDiskCache.DEFAULT_MAX_BYTES;
+    private RCTAVPlayerMetrics mMetrics;
+    private Runnable mMetricsRunnable;
+    private int mMetricsIntervalMs = DEFAULT_METRICS_INTERVAL_MS;
+    private HandlerThread mPlaybackThread;
+    private Handler mPlaybackHandler;
+    // Decodes for every MediaCodec engine, started with the first one.
+    // Playback thread only.
+    private HandlerThread mCodecThread = null;
 
     public RCTAVPlayerModule(ReactApplicationContext reactContext)
     {
         super(reactContext);
         mContext = reactContext;
+
+        // MediaPlayer calls are blocking IPCs to the media server, so they run
+        // on a thread of their own. Players are created there too, which makes
+        // MediaPlayer deliver its callbacks on the same thread.
+        mPlaybackThread = new HandlerThread("RCTAVPlayerPlayback", Process.THREAD_PRIORITY_AUDIO);
+        mPlaybackThread.start();
+        mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+
+        mProgressTicker = new RCTAVPlayerProgressTicker(reactContext, mPlaybackThread.getLooper());
+        mMediaPlayerPool = new RCTAVPlayerMediaPlayerPool();
+        mPreloader = new RCTAVPlayerPreloader();
+        mDecoderBudget = new RCTAVPlayerDecoderBudget();
+        mThumbnails = new RCTAVPlayerThumbnails(reactContext, new File(reactContext.getCacheDir(), "rctavplayer-thumbnails"));
+        mSnapshots = new LruCache<String, RCTAVPlayerSnapshot>(SNAPSHOT_CACHE_BYTES)
+        {
+            @Override
+            protected int sizeOf(String uri, RCTAVPlayerSnapshot snapshot)
+            {
+                return snapshot.getByteCount();
+            }
+        };
+        mMetrics = new RCTAVPlayerMetrics(null);
+        mMetricsRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // Only send a summary when something new was recorded
+                if (mMetrics.takeDirty())
+                {
+                    WritableMap event = Arguments.createMap();
+                    event.putMap(METRICS_PROP_MODULE, mMetrics.toMap());
+                    mContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                            .emit(RCTAVPlayerLayer.Events.EVENT_METRICS.toString(), event);
+                }
+                mPlaybackHandler.postDelayed(mMetricsRunnable, mMetricsIntervalMs);
+            }
+        };
+        reactContext.registerComponentCallbacks(this);
     }
 
     @Override
@@ -36,162 +125,903 @@ public class RCTAVPlayerModule extends ReactContextBaseJavaModule
     }
 
     @ReactMethod
-    public void createVideoPlayer(String uuid)
+    public void createVideoPlayer(final String uuid)
     {
-        Log.d(TAG, "Creating player with uuid: " + uuid);
-        RCTAVPlayer avPlayer = new RCTAVPlayer(mContext);
-        avPlayer.setUuid(uuid);
-        mPlayers.put(uuid, avPlayer);
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Log.d(TAG, "Creating player with uuid: " + uuid);
+                RCTAVPlayer previous = mRegistry.get(uuid);
+                if (previous != null)
+                {
+                    Log.w(TAG, "Replacing player with uuid: " + uuid);
+                    previous.invalidate();
+                }
+
+                boolean first = mRegistry.isEmpty();
+                RCTAVPlayer avPlayer = new RCTAVPlayer(mContext, RCTAVPlayerModule.this);
+                avPlayer.setUuid(uuid);
+                RCTAVPlayerRegistry.Handle handle = mRegistry.register(uuid, avPlayer);
+                if (handle == null)
+                {
+                    // The context is going away
+                    avPlayer.invalidate();
+                    return;
+                }
+                avPlayer.setHandle(handle);
+
+                if (first && mMetricsIntervalMs > 0)
+                {
+                    mPlaybackHandler.removeCallbacks(mMetricsRunnable);
+                    mPlaybackHandler.postDelayed(mMetricsRunnable, mMetricsIntervalMs);
+                }
+            }
+        });
     }
 
     @ReactMethod
-    public void setSource(String playerUuid, ReadableMap source, Callback callback)
+    public void setSource(String playerUuid, final ReadableMap source, Callback callback)
     {
-        RCTAVPlayer avPlayer = mPlayers.get(playerUuid);
-        WritableArray result = Arguments.createArray();
-        if (avPlayer == null)
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
         {
-            result.pushString("ERROR: Player with uuid not found!");
-            callback.invoke(result);
-            return;
-        }
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setSource(source);
+                return null;
+            }
+        });
+    }
 
-        avPlayer.setSource(source);
-        result.pushNull();
-        result.pushString(playerUuid);
-        callback.invoke(result);
+    @ReactMethod
+    public void enqueue(String playerUuid, final ReadableMap source, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.enqueue(source);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void skipToNext(String playerUuid, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                return avPlayer.skipToNext() ? null : "ERROR: Queue is empty!";
+            }
+        });
+    }
+
+    @ReactMethod
+    public void clearQueue(String playerUuid, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.clearQueue();
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void preload(String playerUuid, final ReadableMap source, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                if (!avPlayer.canPreload())
+                {
+                    return "ERROR: Player already has an active source!";
+                }
+                mPreloader.preload(avPlayer, source);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setPreloadLimits(final int maxConcurrent, final int maxPrepared)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Log.d(TAG, "Setting preload limits to " + maxConcurrent + " concurrent, " + maxPrepared + " prepared");
+                mPreloader.setLimits(maxConcurrent, maxPrepared);
+            }
+        });
     }
 
     @ReactMethod
-    public void setRepeat(String playerUuid, boolean repeat, Callback callback)
+    public void applyState(String playerUuid, final ReadableMap state, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                String error = RCTAVPlayer.validateState(state);
+                if (error == null)
+                {
+                    avPlayer.applyState(state);
+                }
+                return error;
+            }
+        });
+    }
+
+    /**
+     * Applies a list of {uuid, state} entries. Every entry is validated
+     * before any is applied, so a bad entry leaves all players untouched.
+     */
+    @ReactMethod
+    public void applyBatch(final ReadableArray batch, final Callback callback)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                applyBatchOnPlaybackThread(batch, callback);
+            }
+        });
+    }
+
+    private void applyBatchOnPlaybackThread(ReadableArray batch, Callback callback)
     {
-        RCTAVPlayer avPlayer = mPlayers.get(playerUuid);
         WritableArray result = Arguments.createArray();
-        if (avPlayer == null)
+        RCTAVPlayer[] avPlayers = new RCTAVPlayer[batch.size()];
+        for (int i = 0; i < batch.size(); i++)
         {
-            result.pushString("ERROR: Player with uuid not found!");
-            callback.invoke(result);
-            return;
+            ReadableMap entry = batch.getMap(i);
+            String error = null;
+            if (!entry.hasKey(BATCH_PROP_UUID) || !entry.hasKey(BATCH_PROP_STATE))
+            {
+                error = "ERROR: Batch entry " + i + " needs a uuid and a state!";
+            }
+            else
+            {
+                avPlayers[i] = mRegistry.get(entry.getString(BATCH_PROP_UUID));
+                if (avPlayers[i] == null)
+                {
+                    error = "ERROR: Player with uuid not found!";
+                }
+                else
+                {
+                    error = RCTAVPlayer.validateState(entry.getMap(BATCH_PROP_STATE));
+                }
+            }
+
+            if (error != null)
+            {
+                result.pushString(error);
+                callback.invoke(result);
+                return;
+            }
         }
 
-        avPlayer.setRepeat(repeat);
+        for (int i = 0; i < avPlayers.length; i++)
+        {
+            avPlayers[i].applyState(batch.getMap(i).getMap(BATCH_PROP_STATE));
+        }
         result.pushNull();
-        result.pushString(playerUuid);
+        result.pushInt(avPlayers.length);
         callback.invoke(result);
     }
 
     @ReactMethod
-    public void setMuted(String playerUuid, boolean muted, Callback callback)
+    public void setRepeat(String playerUuid, final boolean repeat, Callback callback)
     {
-        RCTAVPlayer avPlayer = mPlayers.get(playerUuid);
-        WritableArray result = Arguments.createArray();
-        if (avPlayer == null)
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
         {
-            result.pushString("ERROR: Player with uuid not found!");
-            callback.invoke(result);
-            return;
-        }
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setRepeat(repeat);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setMuted(String playerUuid, final boolean muted, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setMuted(muted);
+                return null;
+            }
+        });
+    }
 
-        avPlayer.setMuted(muted);
+    @ReactMethod
+    public void setVolume(String playerUuid, final float volume, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setVolume(volume);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setRate(String playerUuid, final float rate, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setRate(rate);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setPreservesPitch(String playerUuid, final boolean preservesPitch, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setPreservesPitch(preservesPitch);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setSeek(String playerUuid, final float seek, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setSeek(seek);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setScrubbing(String playerUuid, final boolean scrubbing, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setScrubbing(scrubbing);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setStartupBuffer(String playerUuid, final int startupBufferMs, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setStartupBuffer(startupBufferMs);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Picks the playback engine of a player, "mediaplayer" or "mediacodec".
+     */
+    @ReactMethod
+    public void setEngine(String playerUuid, final String engine, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                String error = RCTAVPlayer.validateEngine(engine);
+                if (error == null)
+                {
+                    avPlayer.setEngine(engine);
+                }
+                return error;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setProgressIntervals(String playerUuid, final int visibleMs, final int hiddenMs, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                avPlayer.setProgressIntervals(visibleMs, hiddenMs);
+                return null;
+            }
+        });
+    }
+
+    @ReactMethod
+    public void setProgressUpdateInterval(int intervalMs)
+    {
+        Log.d(TAG, "Setting progress update interval to " + intervalMs + " ms");
+        mProgressTicker.setInterval(intervalMs);
+    }
+
+    @ReactMethod
+    public void setPlayerPoolSize(final int maxSize)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Log.d(TAG, "Setting media player pool size to " + maxSize);
+                mMediaPlayerPool.setMaxSize(maxSize);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getPlayerPoolStats(final Callback callback)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                WritableArray result = Arguments.createArray();
+                result.pushNull();
+                result.pushMap(mMediaPlayerPool.getStats());
+                callback.invoke(result);
+            }
+        });
+    }
+
+    /**
+     * Overrides the detected number of players that may hold a decoder.
+     */
+    @ReactMethod
+    public void setDecoderBudget(final int maxDecoders)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Log.d(TAG, "Setting decoder budget to " + maxDecoders);
+                mDecoderBudget.setMaxDecoders(maxDecoders);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getDecoderBudgetStats(final Callback callback)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                WritableArray result = Arguments.createArray();
+                result.pushNull();
+                result.pushMap(mDecoderBudget.getStats());
+                callback.invoke(result);
+            }
+        });
+    }
+
+    /**
+     * Calls back with the estimated network bandwidth in bits per second,
+     * used to pick between the renditions of a source.
+     */
+    @ReactMethod
+    public void getBandwidthEstimate(Callback callback)
+    {
+        WritableArray result = Arguments.createArray();
         result.pushNull();
-        result.pushString(playerUuid);
+        result.pushDouble(mBandwidthMeter.getEstimate());
         callback.invoke(result);
     }
 
+    /**
+     * Calls back with the playback state last saved for the source uri, so
+     * JS can restore it on a new player.
+     */
     @ReactMethod
-    public void setVolume(String playerUuid, float volume, Callback callback)
+    public void getSnapshot(String uri, Callback callback)
     {
-        RCTAVPlayer avPlayer = mPlayers.get(playerUuid);
+        RCTAVPlayerSnapshot snapshot = mSnapshots.get(uri);
         WritableArray result = Arguments.createArray();
-        if (avPlayer == null)
+        if (snapshot == null)
         {
-            result.pushString("ERROR: Player with uuid not found!");
-            callback.invoke(result);
-            return;
+            result.pushString("ERROR: No snapshot for source!");
+        }
+        else
+        {
+            result.pushNull();
+            result.pushMap(snapshot.toMap());
         }
-
-        avPlayer.setVolume(volume);
-        result.pushNull();
-        result.pushString(playerUuid);
         callback.invoke(result);
     }
 
+    /**
+     * Extracts the frame at timeSec, scaled to fit maxSize, and calls back
+     * with a file:// uri of the cached JPEG.
+     */
     @ReactMethod
-    public void setRate(String playerUuid, float rate, Callback callback)
+    public void getThumbnail(String uri, double timeSec, int maxSize, final Callback callback)
     {
-        RCTAVPlayer avPlayer = mPlayers.get(playerUuid);
-        WritableArray result = Arguments.createArray();
-        if (avPlayer == null)
+        mThumbnails.request(uri, (int) (timeSec * 1000), maxSize > 0 ? maxSize : RCTAVPlayerThumbnails.DEFAULT_MAX_SIZE,
+                new RCTAVPlayerThumbnails.Listener()
+                {
+                    @Override
+                    public void onThumbnail(String key, Bitmap bitmap)
+                    {
+                        WritableArray result = Arguments.createArray();
+                        File file = mThumbnails.getFile(key);
+                        if (bitmap == null || !file.isFile())
+                        {
+                            result.pushString("ERROR: Cannot extract thumbnail!");
+                        }
+                        else
+                        {
+                            result.pushNull();
+                            result.pushString("file://" + file.getAbsolutePath());
+                        }
+                        callback.invoke(result);
+                    }
+                });
+    }
+
+    @ReactMethod
+    public void clearThumbnails()
+    {
+        mThumbnails.clear();
+    }
+
+    @ReactMethod
+    public void setCacheSize(double maxBytes)
+    {
+        Log.d(TAG, "Setting cache size to " + (long) maxBytes + " bytes");
+        synchronized (this)
         {
-            result.pushString("ERROR: Player with uuid not found!");
-            callback.invoke(result);
-            return;
+            mCacheMaxBytes = (long) maxBytes;
+            if (mCacheProxy != null)
+            {
+                mCacheProxy.getCache().setMaxBytes(mCacheMaxBytes);
+            }
         }
+    }
 
-        avPlayer.setRate(rate);
-        result.pushNull();
-        result.pushString(playerUuid);
-        callback.invoke(result);
+    @ReactMethod
+    public void clearCache()
+    {
+        RCTAVPlayerCacheProxy cacheProxy = getCacheProxy();
+        if (cacheProxy != null)
+        {
+            cacheProxy.getCache().clear();
+        }
     }
 
     @ReactMethod
-    public void setSeek(String playerUuid, float seek, Callback callback)
+    public void getMetrics(final Callback callback)
     {
-        RCTAVPlayer avPlayer = mPlayers.get(playerUuid);
-        WritableArray result = Arguments.createArray();
-        if (avPlayer == null)
+        mPlaybackHandler.post(new Runnable()
         {
-            result.pushString("ERROR: Player with uuid not found!");
-            callback.invoke(result);
-            return;
+            @Override
+            public void run()
+            {
+                getMetricsOnPlaybackThread(callback);
+            }
+        });
+    }
+
+    private void getMetricsOnPlaybackThread(Callback callback)
+    {
+        WritableMap players = Arguments.createMap();
+        for (RCTAVPlayer avPlayer : mRegistry.getPlayers())
+        {
+            players.putMap(avPlayer.getUuid(), avPlayer.getMetrics().toMap());
         }
 
-        avPlayer.setSeek(seek);
+        WritableMap metrics = Arguments.createMap();
+        metrics.putMap(METRICS_PROP_MODULE, mMetrics.toMap());
+        metrics.putMap(METRICS_PROP_PLAYERS, players);
+
+        WritableArray result = Arguments.createArray();
         result.pushNull();
-        result.pushString(playerUuid);
+        result.pushMap(metrics);
         callback.invoke(result);
     }
 
     @ReactMethod
-    public void removePlayer(String playerUuid, Callback callback)
+    public void resetMetrics()
     {
-        Log.d(TAG, "Removing player with uuid: " + playerUuid);
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mMetrics.reset();
+                for (RCTAVPlayer avPlayer : mRegistry.getPlayers())
+                {
+                    avPlayer.getMetrics().reset();
+                }
+            }
+        });
+    }
 
-        RCTAVPlayer avPlayer = mPlayers.get(playerUuid);
-        WritableArray result = Arguments.createArray();
-        if (avPlayer == null)
+    /**
+     * Sets how often the onVideoMetrics summary is sent. 0 turns it off.
+     */
+    @ReactMethod
+    public void setMetricsInterval(final int intervalMs)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Log.d(TAG, "Setting metrics interval to " + intervalMs + " ms");
+                mMetricsIntervalMs = intervalMs;
+                mPlaybackHandler.removeCallbacks(mMetricsRunnable);
+                if (mMetricsIntervalMs > 0 && !mRegistry.isEmpty())
+                {
+                    mPlaybackHandler.postDelayed(mMetricsRunnable, mMetricsIntervalMs);
+                }
+            }
+        });
+    }
+
+    @ReactMethod
+    public void removePlayer(final String playerUuid, Callback callback)
+    {
+        runPlayerCommand(playerUuid, callback, new PlayerCommand()
+        {
+            @Override
+            public String run(RCTAVPlayer avPlayer)
+            {
+                Log.d(TAG, "Removing player with uuid: " + playerUuid);
+                mRegistry.remove(playerUuid, avPlayer);
+                avPlayer.invalidate();
+                if (mRegistry.isEmpty())
+                {
+                    mPlaybackHandler.removeCallbacks(mMetricsRunnable);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Looks the player up and runs the command on the playback thread, then
+     * invokes the callback. Commands run in the order JS sent them.
+     */
+    private void runPlayerCommand(final String playerUuid, final Callback callback, final PlayerCommand command)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                RCTAVPlayer avPlayer = mRegistry.get(playerUuid);
+                WritableArray result = Arguments.createArray();
+                if (avPlayer == null)
+                {
+                    result.pushString("ERROR: Player with uuid not found!");
+                    callback.invoke(result);
+                    return;
+                }
+
+                String error = command.run(avPlayer);
+                if (error != null)
+                {
+                    result.pushString(error);
+                }
+                else
+                {
+                    result.pushNull();
+                    result.pushString(playerUuid);
+                }
+                callback.invoke(result);
+            }
+        });
+    }
+
+    /**
+     * Looks up the handle of a player of this context. Lock-free, safe from
+     * any thread.
+     */
+    public RCTAVPlayerRegistry.Handle getPlayerHandle(String uuid)
+    {
+        RCTAVPlayerRegistry.Handle handle = mRegistry.getHandle(uuid);
+        if (handle == null)
+        {
+            Log.e(TAG, "Failed getting player with uuid!");
+        }
+
+        return handle;
+    }
+
+    /**
+     * The player behind the handle, or null once it has been removed.
+     * Lock-free, safe from any thread.
+     */
+    public RCTAVPlayer getPlayer(RCTAVPlayerRegistry.Handle handle)
+    {
+        return mRegistry.get(handle);
+    }
+
+    /**
+     * Runs a task on the playback thread, which owns every MediaPlayer.
+     * Returns false once the module is invalidated and the thread is gone.
+     */
+    boolean runOnPlaybackThread(Runnable runnable)
+    {
+        return mPlaybackHandler.post(runnable);
+    }
+
+    /**
+     * Runs a task on the playback thread if the player behind the handle is
+     * still registered by then. Lets layers post work without racing
+     * removePlayer.
+     */
+    void runOnPlayer(final RCTAVPlayerRegistry.Handle handle, final Runnable runnable)
+    {
+        if (handle == null)
         {
-            result.pushString("ERROR: Player with uuid not found!");
-            callback.invoke(result);
             return;
         }
 
-        avPlayer.invalidate();
-        mPlayers.remove(playerUuid);
-        result.pushNull();
-        result.pushString(playerUuid);
-        callback.invoke(result);
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mRegistry.get(handle) != null)
+                {
+                    runnable.run();
+                }
+            }
+        });
     }
 
-    public static RCTAVPlayer getPlayer(String uuid)
+    Handler getPlaybackHandler()
     {
-        RCTAVPlayer player = mPlayers.get(uuid);
-        if (player == null)
+        return mPlaybackHandler;
+    }
+
+    /**
+     * The looper MediaCodec engines decode on. Called on the playback
+     * thread.
+     */
+    Looper getCodecLooper()
+    {
+        if (mCodecThread == null)
         {
-            Log.e(TAG, "Failed getting player with uuid!");
+            mCodecThread = new HandlerThread("RCTAVPlayerCodec", Process.THREAD_PRIORITY_DISPLAY);
+            mCodecThread.start();
         }
 
-        return player;
+        return mCodecThread.getLooper();
+    }
+
+    RCTAVPlayerProgressTicker getProgressTicker()
+    {
+        return mProgressTicker;
+    }
+
+    RCTAVPlayerMediaPlayerPool getMediaPlayerPool()
+    {
+        return mMediaPlayerPool;
+    }
+
+    RCTAVPlayerPreloader getPreloader()
+    {
+        return mPreloader;
+    }
+
+    RCTAVPlayerDecoderBudget getDecoderBudget()
+    {
+        return mDecoderBudget;
+    }
+
+    RCTAVPlayerBandwidthMeter getBandwidthMeter()
+    {
+        return mBandwidthMeter;
+    }
+
+    RCTAVPlayerThumbnails getThumbnails()
+    {
+        return mThumbnails;
+    }
+
+    void saveSnapshot(String uri, RCTAVPlayerSnapshot snapshot)
+    {
+        if (uri != null)
+        {
+            mSnapshots.put(uri, snapshot);
+        }
+    }
+
+    RCTAVPlayerSnapshot getSnapshot(String uri)
+    {
+        return uri != null ? mSnapshots.get(uri) : null;
+    }
+
+    RCTAVPlayerMetrics getModuleMetrics()
+    {
+        return mMetrics;
+    }
+
+    /**
+     * Starts the cache proxy on first use. Returns null if it cannot run,
+     * in which case sources are played straight from the network.
+     */
+    synchronized RCTAVPlayerCacheProxy getCacheProxy()
+    {
+        if (mCacheProxy == null)
+        {
+            RCTAVPlayerCacheProxy cacheProxy = new RCTAVPlayerCacheProxy(new File(mContext.getCacheDir(), "rctavplayer"),
+                    mBandwidthMeter);
+            if (!cacheProxy.start())
+            {
+                return null;
+            }
+            cacheProxy.getCache().setMaxBytes(mCacheMaxBytes);
+            mCacheProxy = cacheProxy;
+        }
+
+        return mCacheProxy;
+    }
+
+    @Override
+    public void onTrimMemory(final int level)
+    {
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                trimMemory(level);
+            }
+        });
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig)
+    {
+    }
+
+    /**
+     * Frees memory in tiers. Caches go at any level. When memory runs low,
+     * preloads and paused players off screen release their decoders too, and
+     * when it is critical so does every player not playing on screen.
+     * Demoted players keep their snapshot and restore when shown or played
+     * again. JS gets onVideoMemoryTrim with what was freed.
+     */
+    private void trimMemory(int level)
+    {
+        boolean critical = level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_MODERATE;
+        boolean low = critical || level == TRIM_MEMORY_RUNNING_LOW || level >= TRIM_MEMORY_BACKGROUND;
+        Log.d(TAG, "Trimming memory at level " + level);
+
+        int pooledReleased = mMediaPlayerPool.clear();
+        mThumbnails.clearMemoryCache();
+        int preloadsUnloaded = 0;
+        int playersDemoted = 0;
+        if (low)
+        {
+            preloadsUnloaded = mPreloader.unloadAll();
+            playersDemoted = mDecoderBudget.demoteForMemory(critical);
+        }
+
+        WritableMap event = Arguments.createMap();
+        event.putInt(TRIM_PROP_LEVEL, level);
+        event.putInt(TRIM_PROP_POOLED_RELEASED, pooledReleased);
+        event.putInt(TRIM_PROP_PRELOADS_UNLOADED, preloadsUnloaded);
+        event.putInt(TRIM_PROP_PLAYERS_DEMOTED, playersDemoted);
+        mContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(RCTAVPlayerLayer.Events.EVENT_MEMORY_TRIM.toString(), event);
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy()
+    {
+        super.onCatalystInstanceDestroy();
+        invalidate();
     }
 
     public void invalidate()
     {
         Log.d(TAG, "Invalidating RCTAVPlayerModule " + this);
+        mContext.unregisterComponentCallbacks(this);
+
+        // Layers stop finding players right away, pending commands for them
+        // fail with "not found"
+        final List<RCTAVPlayer> players = mRegistry.close();
+
+        // Queued behind pending commands. The thread exits once everything
+        // is released.
+        mPlaybackHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (RCTAVPlayer avPlayer : players)
+                {
+                    avPlayer.invalidate();
+                }
+                mPlaybackHandler.removeCallbacks(mMetricsRunnable);
+                mProgressTicker.clear();
+                mPreloader.clear();
+                mDecoderBudget.clear();
+                mMediaPlayerPool.clear();
+                mSnapshots.evictAll();
+                if (mCodecThread != null)
+                {
+                    // After the teardowns the released engines queued
+                    final HandlerThread codecThread = mCodecThread;
+                    mCodecThread = null;
+                    new Handler(codecThread.getLooper()).post(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            codecThread.quit();
+                        }
+                    });
+                }
+                Looper.myLooper().quit();
+            }
+        });
 
-        for (Map.Entry<String, RCTAVPlayer> entry : mPlayers.entrySet())
+        mThumbnails.shutdown();
+        synchronized (this)
         {
-            entry.getValue().invalidate();
+            if (mCacheProxy != null)
+            {
+                mCacheProxy.stop();
+                mCacheProxy = null;
+            }
         }
-        mPlayers.clear();
     }
 }
@@ -0,0 +1,168 @@
+package com.unity3d.rctavplayer;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Prepares upcoming sources in the background. At most mMaxConcurrent players
+ * are preparing at any time and at most mMaxPrepared decoders are held by
+ * preloaded players that have not been promoted yet. When the budget is full
+ * the oldest prepared player is unloaded to make room.
+ */
+public class RCTAVPlayerPreloader
+{
+    private static final String TAG = RCTAVPlayerPreloader.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final int DEFAULT_MAX_PREPARED = 3;
+
+    private static class Request
+    {
+        final RCTAVPlayer player;
+        final ReadableMap source;
+
+        Request(RCTAVPlayer player, ReadableMap source)
+        {
+            this.player = player;
+            this.source = source;
+        }
+    }
+
+    private final Queue<Request> mPending = new ArrayDeque<>();
+    private final Set<RCTAVPlayer> mPreparing = new LinkedHashSet<>();
+    private final Set<RCTAVPlayer> mPrepared = new LinkedHashSet<>();
+    private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int mMaxPrepared = DEFAULT_MAX_PREPARED;
+
+    public synchronized void setLimits(int maxConcurrent, int maxPrepared)
+    {
+        if (maxConcurrent <= 0 || maxPrepared <= 0)
+        {
+            Log.w(TAG, "Ignoring invalid preload limits " + maxConcurrent + "/" + maxPrepared);
+            return;
+        }
+
+        mMaxConcurrent = maxConcurrent;
+        mMaxPrepared = maxPrepared;
+
+        while (mPreparing.size() + mPrepared.size() > mMaxPrepared && !mPrepared.isEmpty())
+        {
+            evictOldestPrepared();
+        }
+        pump();
+    }
+
+    public synchronized void preload(RCTAVPlayer player, ReadableMap source)
+    {
+        if (player.isPreloading() && player.hasSource(source))
+        {
+            return;
+        }
+
+        removePending(player);
+        mPending.add(new Request(player, source));
+        pump();
+    }
+
+    public synchronized void onPrepared(RCTAVPlayer player)
+    {
+        if (mPreparing.remove(player))
+        {
+            mPrepared.add(player);
+        }
+        pump();
+    }
+
+    /**
+     * Stops tracking a player, either because it was promoted to active
+     * playback, failed or is being released.
+     */
+    public synchronized void remove(RCTAVPlayer player)
+    {
+        removePending(player);
+        if (mPreparing.remove(player) | mPrepared.remove(player))
+        {
+            pump();
+        }
+    }
+
+    /**
+     * Unloads every preloaded player and drops the pending requests, without
+     * starting new ones. Returns how many players were unloaded.
+     */
+    public synchronized int unloadAll()
+    {
+        mPending.clear();
+        List<RCTAVPlayer> players = new ArrayList<>(mPreparing);
+        players.addAll(mPrepared);
+        mPreparing.clear();
+        mPrepared.clear();
+        for (RCTAVPlayer player : players)
+        {
+            Log.d(TAG, "Memory low, unloading " + player);
+            player.unloadPreload();
+        }
+
+        return players.size();
+    }
+
+    public synchronized void clear()
+    {
+        mPending.clear();
+        mPreparing.clear();
+        mPrepared.clear();
+    }
+
+    private void removePending(RCTAVPlayer player)
+    {
+        Iterator<Request> it = mPending.iterator();
+        while (it.hasNext())
+        {
+            if (it.next().player == player)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private void evictOldestPrepared()
+    {
+        Iterator<RCTAVPlayer> it = mPrepared.iterator();
+        RCTAVPlayer eldest = it.next();
+        it.remove();
+        Log.d(TAG, "Preload budget full, unloading " + eldest);
+        eldest.unloadPreload();
+    }
+
+    private void pump()
+    {
+        while (!mPending.isEmpty() && mPreparing.size() < mMaxConcurrent)
+        {
+            if (mPreparing.size() + mPrepared.size() >= mMaxPrepared)
+            {
+                if (mPrepared.isEmpty())
+                {
+                    break;
+                }
+                evictOldestPrepared();
+            }
+
+            Request request = mPending.poll();
+            mPrepared.remove(request.player);
+            mPreparing.add(request.player);
+            if (!request.player.startPreload(request.source))
+            {
+                mPreparing.remove(request.player);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.unity3d.rctavplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayList;
+
+/**
+ * Emits progress for every playing RCTAVPlayer as one batched event per tick.
+ * Players add themselves when playback starts and remove themselves when it
+ * stops, so the ticker is idle when nothing is playing.
+ *
+ * Each player reports its own progress interval, which depends on whether a
+ * layer shows it and on what JS asked for. The ticker runs at the shortest
+ * of those intervals and only includes players that are due. Players with an
+ * interval of 0 are skipped, and if that leaves nothing the ticker stops.
+ *
+ * The event is a flat array of [uuid, currentTime, playableDuration, ...]
+ * triples. Apart from that one array, a tick allocates nothing: players are
+ * walked by index and positions are read as primitives. Positions are read
+ * after the lock is let go, each is a call into the media server and the
+ * UI thread may be waiting to add or remove a player.
+ */
+public class RCTAVPlayerProgressTicker implements Runnable
+{
+    private static final String TAG = RCTAVPlayerProgressTicker.class.getSimpleName();
+
+    public static final int DEFAULT_INTERVAL_MS = 250;
+    public static final int DEFAULT_HIDDEN_INTERVAL_MS = 1000;
+
+    private ReactApplicationContext mContext = null;
+    private DeviceEventManagerModule.RCTDeviceEventEmitter mDeviceEventEmitter = null;
+    private final Handler mHandler;
+    private final ArrayList<RCTAVPlayer> mPlayers = new ArrayList<>();
+    // Players due this tick, only used by run() on the ticker's looper
+    private final ArrayList<RCTAVPlayer> mDue = new ArrayList<>();
+    private int mIntervalMs = DEFAULT_INTERVAL_MS;
+    private boolean mScheduled = false;
+    private int mScheduledIntervalMs = 0;
+
+    /**
+     * Ticks on the given looper, which must be the one driving the players so
+     * progress reads never race with reset() or release().
+     */
+    public RCTAVPlayerProgressTicker(ReactApplicationContext context, Looper looper)
+    {
+        mContext = context;
+        mHandler = new Handler(looper);
+    }
+
+    public synchronized void setInterval(int intervalMs)
+    {
+        if (intervalMs <= 0)
+        {
+            Log.w(TAG, "Ignoring invalid progress interval " + intervalMs);
+            return;
+        }
+
+        mIntervalMs = intervalMs;
+        reschedule();
+    }
+
+    public synchronized int getInterval()
+    {
+        return mIntervalMs;
+    }
+
+    public synchronized void addPlayer(RCTAVPlayer player)
+    {
+        if (mPlayers.contains(player))
+        {
+            return;
+        }
+
+        mPlayers.add(player);
+        reschedule();
+    }
+
+    public synchronized void removePlayer(RCTAVPlayer player)
+    {
+        if (mPlayers.remove(player))
+        {
+            reschedule();
+        }
+    }
+
+    /**
+     * Called when a player's progress interval changes.
+     */
+    public synchronized void reschedule()
+    {
+        int intervalMs = 0;
+        int count = mPlayers.size();
+        for (int i = 0; i < count; i++)
+        {
+            int playerIntervalMs = mPlayers.get(i).getProgressInterval();
+            if (playerIntervalMs > 0 && (intervalMs == 0 || playerIntervalMs < intervalMs))
+            {
+                intervalMs = playerIntervalMs;
+            }
+        }
+
+        if (mScheduled && intervalMs == mScheduledIntervalMs)
+        {
+            return;
+        }
+
+        stop();
+        if (intervalMs > 0)
+        {
+            mScheduled = true;
+            mScheduledIntervalMs = intervalMs;
+            mHandler.postDelayed(this, intervalMs);
+        }
+    }
+
+    public synchronized void clear()
+    {
+        mPlayers.clear();
+        stop();
+    }
+
+    private void stop()
+    {
+        mHandler.removeCallbacks(this);
+        mScheduled = false;
+        mScheduledIntervalMs = 0;
+    }
+
+    @Override
+    public void run()
+    {
+        WritableArray progress = null;
+        synchronized (this)
+        {
+            if (!mScheduled)
+            {
+                return;
+            }
+
+            long now = SystemClock.uptimeMillis();
+            int count = mPlayers.size();
+            for (int i = 0; i < count; i++)
+            {
+                RCTAVPlayer player = mPlayers.get(i);
+                int intervalMs = player.getProgressInterval();
+                if (intervalMs <= 0 || !player.isMediaPlayerValid())
+                {
+                    continue;
+                }
+
+                // Allow half a tick of slack so a player is not pushed a whole
+                // tick late by timer jitter
+                if (now - player.getLastProgressTime() + mScheduledIntervalMs / 2 < intervalMs)
+                {
+                    continue;
+                }
+                player.setLastProgressTime(now);
+                mDue.add(player);
+            }
+
+            mHandler.postDelayed(this, mScheduledIntervalMs);
+        }
+
+        int count = mDue.size();
+        for (int i = 0; i < count; i++)
+        {
+            RCTAVPlayer player = mDue.get(i);
+            if (progress == null)
+            {
+                progress = Arguments.createArray();
+            }
+            progress.pushString(player.getUuid());
+            progress.pushDouble(player.getCurrentPosition() / 1000.0);
+            progress.pushDouble(player.getBufferedDuration() / 1000.0);
+        }
+        mDue.clear();
+
+        if (progress != null)
+        {
+            if (mDeviceEventEmitter == null)
+            {
+                mDeviceEventEmitter = mContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class);
+            }
+
+            mDeviceEventEmitter.emit(RCTAVPlayerLayer.Events.EVENT_PROGRESS_BATCH.toString(), progress);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.unity3d.rctavplayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The players of one React context, keyed by uuid. Players are added and
+ * removed on the playback thread while layers look them up from the UI
+ * thread, so lookups are plain lock-free reads of a concurrent map.
+ *
+ * Every registration is stamped with a new generation. A Handle remembers
+ * the generation it was issued for and stops resolving once that player is
+ * removed, even if JS reuses the uuid for a new one.
+ */
+public class RCTAVPlayerRegistry
+{
+    public static final class Handle
+    {
+        private final String mUuid;
+        private final int mGeneration;
+
+        private Handle(String uuid, int generation)
+        {
+            mUuid = uuid;
+            mGeneration = generation;
+        }
+
+        public String getUuid()
+        {
+            return mUuid;
+        }
+
+        @Override
+        public String toString()
+        {
+            return mUuid + "#" + mGeneration;
+        }
+    }
+
+    private static final class Entry
+    {
+        final RCTAVPlayer player;
+        final Handle handle;
+
+        Entry(RCTAVPlayer player, Handle handle)
+        {
+            this.player = player;
+            this.handle = handle;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+    private volatile boolean mClosed = false;
+
+    /**
+     * Adds the player under its uuid and returns its handle, or null if the
+     * registry is closed. A player already registered under the uuid is
+     * replaced, releasing it is up to the caller.
+     */
+    public Handle register(String uuid, RCTAVPlayer player)
+    {
+        if (mClosed)
+        {
+            return null;
+        }
+
+        Handle handle = new Handle(uuid, mGeneration.incrementAndGet());
+        mEntries.put(uuid, new Entry(player, handle));
+        // Lost a race with close()
+        if (mClosed)
+        {
+            mEntries.remove(uuid);
+            return null;
+        }
+
+        return handle;
+    }
+
+    /**
+     * The current player for the uuid, or null.
+     */
+    public RCTAVPlayer get(String uuid)
+    {
+        Entry entry = mEntries.get(uuid);
+        return entry != null ? entry.player : null;
+    }
+
+    /**
+     * The handle of the current player for the uuid, or null.
+     */
+    public Handle getHandle(String uuid)
+    {
+        Entry entry = mEntries.get(uuid);
+        return entry != null ? entry.handle : null;
+    }
+
+    /**
+     * The player the handle was issued for, or null if it has been removed.
+     */
+    public RCTAVPlayer get(Handle handle)
+    {
+        Entry entry = mEntries.get(handle.mUuid);
+        return entry != null && entry.handle == handle ? entry.player : null;
+    }
+
+    /**
+     * Removes the player only if it is still the one registered under its
+     * uuid.
+     */
+    public boolean remove(String uuid, RCTAVPlayer player)
+    {
+        Entry entry = mEntries.get(uuid);
+        return entry != null && entry.player == player && mEntries.remove(uuid, entry);
+    }
+
+    public List<RCTAVPlayer> getPlayers()
+    {
+        List<RCTAVPlayer> players = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values())
+        {
+            players.add(entry.player);
+        }
+
+        return players;
+    }
+
+    public boolean isEmpty()
+    {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Refuses further registrations and removes every player, returning them
+     * for release.
+     */
+    public List<RCTAVPlayer> close()
+    {
+        mClosed = true;
+        List<RCTAVPlayer> players = getPlayers();
+        mEntries.clear();
+
+        return players;
+    }
+}
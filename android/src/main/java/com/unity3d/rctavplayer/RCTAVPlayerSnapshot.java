@@ -0,0 +1,112 @@
+package com.unity3d.rctavplayer;
+
+import android.graphics.Bitmap;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * What a player was doing when it gave up its decoder: source, position and
+ * modifiers, plus the last frame a layer showed for it. Taken when a player
+ * is demoted or released, so a later load of the same source can resume
+ * with one seek and show the poster until the decoder catches up.
+ */
+public class RCTAVPlayerSnapshot
+{
+    private static final String PROP_POSITION = "position";
+    private static final String PROP_RATE = "rate";
+    private static final String PROP_VOLUME = "volume";
+    private static final String PROP_MUTED = "muted";
+    private static final String PROP_REPEAT = "repeat";
+    private static final String PROP_PRESERVES_PITCH = "preservesPitch";
+
+    private final ReadableMap mSource;
+    private final int mPosition;
+    private final float mRate;
+    private final float mVolume;
+    private final boolean mMuted;
+    private final boolean mRepeat;
+    private final boolean mPreservesPitch;
+    private final Bitmap mPoster;
+
+    public RCTAVPlayerSnapshot(ReadableMap source, int position, float rate, float volume,
+                               boolean muted, boolean repeat, boolean preservesPitch, Bitmap poster)
+    {
+        mSource = source;
+        mPosition = position;
+        mRate = rate;
+        mVolume = volume;
+        mMuted = muted;
+        mRepeat = repeat;
+        mPreservesPitch = preservesPitch;
+        mPoster = poster;
+    }
+
+    public ReadableMap getSource()
+    {
+        return mSource;
+    }
+
+    /**
+     * Position in milliseconds.
+     */
+    public int getPosition()
+    {
+        return mPosition;
+    }
+
+    public float getRate()
+    {
+        return mRate;
+    }
+
+    public float getVolume()
+    {
+        return mVolume;
+    }
+
+    public boolean isMuted()
+    {
+        return mMuted;
+    }
+
+    public boolean isRepeat()
+    {
+        return mRepeat;
+    }
+
+    public boolean isPreservesPitch()
+    {
+        return mPreservesPitch;
+    }
+
+    public Bitmap getPoster()
+    {
+        return mPoster;
+    }
+
+    /**
+     * Rough memory held, for sizing the snapshot cache.
+     */
+    public int getByteCount()
+    {
+        return 1024 + (mPoster != null ? mPoster.getByteCount() : 0);
+    }
+
+    /**
+     * The playback state for JS, position in seconds.
+     */
+    public WritableMap toMap()
+    {
+        WritableMap map = Arguments.createMap();
+        map.putDouble(PROP_POSITION, mPosition / 1000.0);
+        map.putDouble(PROP_RATE, mRate);
+        map.putDouble(PROP_VOLUME, mVolume);
+        map.putBoolean(PROP_MUTED, mMuted);
+        map.putBoolean(PROP_REPEAT, mRepeat);
+        map.putBoolean(PROP_PRESERVES_PITCH, mPreservesPitch);
+
+        return map;
+    }
+}
@@ -0,0 +1,399 @@
+package com.unity3d.rctavplayer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.CookieManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Extracts poster frames with MediaMetadataRetriever so a tile can show
+ * something before, or without, a live player. Frames are downscaled to fit
+ * a square of maxSize, kept in a memory LruCache and written to disk as JPEG,
+ * so a cold start only decodes a small file.
+ *
+ * Extraction runs on a small background pool. Requests for the same frame
+ * share one extraction and listeners are called on the main thread.
+ */
+public class RCTAVPlayerThumbnails
+{
+    private static final String TAG = RCTAVPlayerThumbnails.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_SIZE = 512;
+    private static final int MEMORY_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final long DISK_CACHE_BYTES = 32L * 1024L * 1024L;
+    private static final int THREADS = 2;
+    private static final int JPEG_QUALITY = 85;
+    private static final String FILE_SUFFIX = ".jpg";
+
+    public interface Listener
+    {
+        /**
+         * Called on the main thread, with null if no frame could be taken.
+         */
+        void onThumbnail(String key, Bitmap bitmap);
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final Map<String, List<Listener>> mPending = new HashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private ExecutorService mExecutor = null;
+
+    public RCTAVPlayerThumbnails(Context context, File directory)
+    {
+        mContext = context;
+        mDirectory = directory;
+        mMemoryCache = new LruCache<String, Bitmap>(MEMORY_CACHE_BYTES)
+        {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap)
+            {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    public static String keyFor(String uri, int timeMs, int maxSize)
+    {
+        return uri + "@" + timeMs + "/" + maxSize;
+    }
+
+    public Bitmap getCached(String key)
+    {
+        return mMemoryCache.get(key);
+    }
+
+    /**
+     * The JPEG for a key, which exists once the frame has been extracted.
+     */
+    public File getFile(String key)
+    {
+        return new File(mDirectory, RCTAVPlayerDiskCache.keyFor(key) + FILE_SUFFIX);
+    }
+
+    public synchronized void request(final String uri, final int timeMs, final int maxSize, Listener listener)
+    {
+        final String key = keyFor(uri, timeMs, maxSize);
+        final Bitmap cached = mMemoryCache.get(key);
+        if (cached != null)
+        {
+            deliver(key, cached, listener);
+            return;
+        }
+
+        List<Listener> listeners = mPending.get(key);
+        if (listeners != null)
+        {
+            listeners.add(listener);
+            return;
+        }
+
+        listeners = new ArrayList<>();
+        listeners.add(listener);
+        mPending.put(key, listeners);
+
+        if (mExecutor == null)
+        {
+            mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    return new Thread(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "RCTAVPlayerThumbnails");
+                }
+            });
+        }
+
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Bitmap bitmap = load(key, uri, timeMs, maxSize);
+                List<Listener> listeners;
+                synchronized (RCTAVPlayerThumbnails.this)
+                {
+                    listeners = mPending.remove(key);
+                }
+                if (listeners == null)
+                {
+                    // Cleared in the meantime
+                    return;
+                }
+
+                for (Listener listener : listeners)
+                {
+                    deliver(key, bitmap, listener);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the decoded thumbnails, they are read back from disk when asked
+     * for again.
+     */
+    public void clearMemoryCache()
+    {
+        mMemoryCache.evictAll();
+    }
+
+    public void clear()
+    {
+        mMemoryCache.evictAll();
+        synchronized (mDirectory)
+        {
+            File[] files = mDirectory.listFiles();
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    public synchronized void shutdown()
+    {
+        mPending.clear();
+        mMemoryCache.evictAll();
+        if (mExecutor != null)
+        {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void deliver(final String key, final Bitmap bitmap, final Listener listener)
+    {
+        mMainHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onThumbnail(key, bitmap);
+            }
+        });
+    }
+
+    private Bitmap load(String key, String uri, int timeMs, int maxSize)
+    {
+        File file = getFile(key);
+        if (file.isFile())
+        {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null)
+            {
+                // Touch for LRU ordering
+                file.setLastModified(System.currentTimeMillis());
+                mMemoryCache.put(key, bitmap);
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = extract(uri, timeMs, maxSize);
+        if (bitmap != null)
+        {
+            mMemoryCache.put(key, bitmap);
+            write(file, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    private Bitmap extract(String uri, int timeMs, int maxSize)
+    {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try
+        {
+            if (uri.startsWith("http://") || uri.startsWith("https://"))
+            {
+                // Same cookies as the player sends
+                Map<String, String> headers = new HashMap<>();
+                String cookie = CookieManager.getInstance().getCookie(uri);
+                if (cookie != null)
+                {
+                    headers.put("Cookie", cookie);
+                }
+                retriever.setDataSource(uri, headers);
+            }
+            else if (uri.startsWith("content://"))
+            {
+                retriever.setDataSource(mContext, Uri.parse(uri));
+            }
+            else
+            {
+                retriever.setDataSource(uri.startsWith("file://") ? Uri.parse(uri).getPath() : uri);
+            }
+
+            long timeUs = timeMs * 1000L;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+            {
+                return getScaledFrame(retriever, timeUs, maxSize);
+            }
+
+            return scale(retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC), maxSize);
+        }
+        catch (RuntimeException e)
+        {
+            Log.w(TAG, "Cannot extract frame from " + uri + " - " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Lets the decoder scale while it converts, instead of allocating a
+     * full size frame first.
+     */
+    @TargetApi(Build.VERSION_CODES.O_MR1)
+    private static Bitmap getScaledFrame(MediaMetadataRetriever retriever, long timeUs, int maxSize)
+    {
+        return retriever.getScaledFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, maxSize, maxSize);
+    }
+
+    private static Bitmap scale(Bitmap bitmap, int maxSize)
+    {
+        if (bitmap == null)
+        {
+            return null;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= maxSize && height <= maxSize)
+        {
+            return bitmap;
+        }
+
+        float scale = (float) maxSize / Math.max(width, height);
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(width * scale), Math.round(height * scale), true);
+        if (scaled != bitmap)
+        {
+            bitmap.recycle();
+        }
+
+        return scaled;
+    }
+
+    private void write(File file, Bitmap bitmap)
+    {
+        // Compressing takes a while, so this does not hold the request lock
+        synchronized (mDirectory)
+        {
+            writeLocked(file, bitmap);
+            trim();
+        }
+    }
+
+    private void writeLocked(File file, Bitmap bitmap)
+    {
+        if (!mDirectory.exists() && !mDirectory.mkdirs())
+        {
+            Log.e(TAG, "Cannot create thumbnail directory " + mDirectory);
+            return;
+        }
+
+        // Written aside and renamed, so a half written file is never read
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(tmp);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+            {
+                tmp.delete();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Cannot write thumbnail " + file + " - " + e.getMessage());
+            tmp.delete();
+        }
+        finally
+        {
+            RCTAVPlayerDiskCache.closeQuietly(out);
+        }
+    }
+
+    private void trim()
+    {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files)
+        {
+            total += file.length();
+        }
+
+        if (total <= DISK_CACHE_BYTES)
+        {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (File file : files)
+        {
+            if (total <= DISK_CACHE_BYTES)
+            {
+                break;
+            }
+
+            total -= file.length();
+            file.delete();
+        }
+    }
+}
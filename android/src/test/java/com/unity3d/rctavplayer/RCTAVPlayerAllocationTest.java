@@ -0,0 +1,155 @@
+package com.unity3d.rctavplayer;
+
+import android.media.MediaPlayer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.JavaOnlyArray;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the event payloads created on the hot paths. Every payload is a
+ * native map or array in the app, so these counts are the allocations that
+ * matter per seek and per progress tick.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "android.*"})
+@PrepareForTest({Arguments.class, RCTAVPlayerModule.class})
+public class RCTAVPlayerAllocationTest
+{
+    private static final String EVENT_SEEK = RCTAVPlayerLayer.Events.EVENT_SEEK.toString();
+    private static final String EVENT_PROGRESS_BATCH = RCTAVPlayerLayer.Events.EVENT_PROGRESS_BATCH.toString();
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private RCTAVPlayerTestRig mRig;
+
+    @Before
+    public void setUp()
+    {
+        mRig = new RCTAVPlayerTestRig();
+    }
+
+    private RCTAVPlayer preparedPlayer(String uuid)
+    {
+        RCTAVPlayer player = mRig.createPlayer(uuid);
+        player.setSource(RCTAVPlayerTestRig.source("/sdcard/" + uuid + ".mp4"));
+        mRig.runPlayback();
+        assertTrue(player.isMediaPlayerValid());
+        return player;
+    }
+
+    @Test
+    public void coalescedSeeksAllocateNothing()
+    {
+        RCTAVPlayer player = preparedPlayer("seek");
+        int maps = mRig.mapsCreated;
+
+        ShadowLooper.pauseMainLooper();
+        for (int i = 0; i < 500; i++)
+        {
+            player.setSeek(i * 0.1f);
+        }
+        // The first seek is issued, the others wait for it as one
+        assertEquals(maps + 1, mRig.mapsCreated);
+
+        ShadowLooper.unPauseMainLooper();
+        mRig.runPlayback();
+        assertEquals(maps + 2, mRig.mapsCreated);
+        assertEquals(2, mRig.countEvents(EVENT_SEEK));
+    }
+
+    @Test
+    public void previewFrameIsNotReported()
+    {
+        final int[] seeks = new int[1];
+        mRig = new RCTAVPlayerTestRig(new RCTAVPlayerMediaPlayerPool(new RCTAVPlayerMediaPlayerPool.Factory()
+        {
+            @Override
+            public MediaPlayer create()
+            {
+                MediaPlayer mediaPlayer = new RCTAVPlayerTestRig.RateMediaPlayer()
+                {
+                    @Override
+                    public void seekTo(int msec)
+                    {
+                        seeks[0]++;
+                        super.seekTo(msec);
+                    }
+                };
+                Shadows.shadowOf(mediaPlayer).setSeekDelay(100);
+                return mediaPlayer;
+            }
+        }));
+        RCTAVPlayer player = preparedPlayer("preview");
+        int maps = mRig.mapsCreated;
+
+        player.requestPreviewFrame();
+        ShadowLooper.idleMainLooper(100);
+        assertEquals(1, seeks[0]);
+        assertEquals(maps, mRig.mapsCreated);
+
+        player.setSeek(10.0f);
+        // A seek in flight draws a frame anyway
+        player.requestPreviewFrame();
+        ShadowLooper.idleMainLooper(100);
+        assertEquals(2, seeks[0]);
+        assertEquals(maps + 1, mRig.mapsCreated);
+        assertEquals(1, mRig.countEvents(EVENT_SEEK));
+    }
+
+    @Test
+    public void tickAllocatesOneArrayForAllPlayers()
+    {
+        mRig.decoderBudget.setMaxDecoders(20);
+        for (int i = 0; i < 20; i++)
+        {
+            RCTAVPlayer player = preparedPlayer("tick" + i);
+            player.setProgressIntervals(250, 250);
+            player.setRate(1.0f);
+        }
+        mRig.runPlayback();
+
+        for (int tick = 1; tick <= 10; tick++)
+        {
+            int arrays = mRig.arraysCreated;
+            int maps = mRig.mapsCreated;
+            ShadowLooper.idleMainLooper(250);
+            assertEquals(arrays + 1, mRig.arraysCreated);
+            assertEquals(maps, mRig.mapsCreated);
+            assertEquals(tick, mRig.countEvents(EVENT_PROGRESS_BATCH));
+        }
+
+        JavaOnlyArray progress = (JavaOnlyArray) mRig.events.get(mRig.events.size() - 1).data;
+        assertEquals(20 * 3, progress.size());
+    }
+
+    @Test
+    public void tickWithoutDuePlayersAllocatesNothing()
+    {
+        RCTAVPlayer player = preparedPlayer("idle");
+        player.setProgressIntervals(250, 250);
+        player.setRate(1.0f);
+        ShadowLooper.idleMainLooper(250);
+        int arrays = mRig.arraysCreated;
+
+        player.setRate(0.0f);
+        ShadowLooper.idleMainLooper(2500);
+        assertEquals(arrays, mRig.arraysCreated);
+    }
+}
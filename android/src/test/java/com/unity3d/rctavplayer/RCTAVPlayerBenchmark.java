@@ -0,0 +1,355 @@
+package com.unity3d.rctavplayer;
+
+import android.app.Activity;
+import android.graphics.SurfaceTexture;
+import android.media.MediaPlayer;
+import android.widget.FrameLayout;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.uimanager.ThemedReactContext;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Headless benchmarks of the player lifecycle, progress events and layers,
+ * with ShadowMediaPlayer in place of decoders. Sizes are fixed, so the
+ * reported counts compare across commits as they are. Times depend on the
+ * machine and only compare between runs on the same one. They include
+ * Robolectric's loopers and the mocked module's dispatch.
+ *
+ * Run with {@code ./gradlew test --tests '*RCTAVPlayerBenchmark'}, each
+ * scenario writes its results to build/reports/benchmark/scenario.json.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = RCTAVPlayerTestRig.ReleasableShadowSurface.class)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "android.*"})
+@PrepareForTest({Arguments.class, RCTAVPlayerModule.class})
+public class RCTAVPlayerBenchmark
+{
+    private static final int CHURN_WARMUP = 50;
+    private static final int CHURN_CYCLES = 500;
+    private static final int CHURN_UUIDS = 4;
+
+    private static final int[] TICK_PLAYERS = {1, 10, 50};
+    private static final int TICK_INTERVAL_MS = 250;
+    private static final int TICKS = 200;
+
+    private static final int STORM_PLAYERS = 8;
+    private static final int STORM_WARMUP = 10;
+    private static final int STORM_ROUNDS = 100;
+    // Every so often a player is replaced while its layers attach
+    private static final int STORM_REPLACE_EVERY = 10;
+
+    private static final File REPORT_DIR = new File("build/reports/benchmark");
+    // Results reported so far by each scenario
+    private static final Map<String, List<String>> sResults = new HashMap<>();
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    /**
+     * Adds a result of the scenario and rewrites its report. Values are
+     * given as name and number pairs.
+     */
+    private static void report(String name, Object... values) throws IOException
+    {
+        StringBuilder result = new StringBuilder("{");
+        for (int i = 0; i < values.length; i += 2)
+        {
+            Object value = values[i + 1];
+            result.append(i == 0 ? "" : ", ").append('"').append(values[i]).append("\": ")
+                    .append(value instanceof Double ? String.format(Locale.US, "%.3f", value) : value);
+        }
+        result.append('}');
+
+        List<String> results = sResults.get(name);
+        if (results == null)
+        {
+            results = new ArrayList<>();
+            sResults.put(name, results);
+        }
+        results.add(result.toString());
+
+        if (!REPORT_DIR.isDirectory() && !REPORT_DIR.mkdirs())
+        {
+            throw new IOException("Could not create " + REPORT_DIR);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(REPORT_DIR, name + ".json")), "UTF-8");
+        try
+        {
+            writer.write("{\"scenario\": \"" + name + "\", \"results\": [\n");
+            for (int i = 0; i < results.size(); i++)
+            {
+                writer.write("  " + results.get(i) + (i + 1 < results.size() ? ",\n" : "\n"));
+            }
+            writer.write("]}\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 where the JVM does not
+     * count them. Looked up by name, the sandbox loads its own copy of the
+     * com.sun.management interface.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try
+        {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean", false, bean.getClass().getClassLoader());
+            Method method = type.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return -1;
+        }
+    }
+
+    private static double micros(long nanos, int count)
+    {
+        return nanos / 1000.0 / count;
+    }
+
+    private static RCTAVPlayer startPlayer(RCTAVPlayerTestRig rig, String uuid)
+    {
+        RCTAVPlayer player = rig.createPlayer(uuid);
+        player.setSource(RCTAVPlayerTestRig.source("/sdcard/" + uuid + ".mp4"));
+        player.setProgressIntervals(TICK_INTERVAL_MS, TICK_INTERVAL_MS);
+        player.setRate(1.0f);
+        return player;
+    }
+
+    /**
+     * createVideoPlayer, setSource and removePlayer in a loop, the way a
+     * feed cycles through players.
+     */
+    @Test
+    public void playerChurn() throws IOException
+    {
+        final int[] created = new int[1];
+        RCTAVPlayerTestRig rig = new RCTAVPlayerTestRig(new RCTAVPlayerMediaPlayerPool(
+                new RCTAVPlayerMediaPlayerPool.Factory()
+                {
+                    @Override
+                    public MediaPlayer create()
+                    {
+                        created[0]++;
+                        return RCTAVPlayerTestRig.FACTORY.create();
+                    }
+                }));
+        ReadableMap[] sources = new ReadableMap[CHURN_UUIDS];
+        for (int i = 0; i < CHURN_UUIDS; i++)
+        {
+            sources[i] = RCTAVPlayerTestRig.source("/sdcard/churn" + i + ".mp4");
+        }
+
+        long start = 0;
+        long allocated = 0;
+        int events = 0;
+        for (int i = 0; i < CHURN_WARMUP + CHURN_CYCLES; i++)
+        {
+            if (i == CHURN_WARMUP)
+            {
+                created[0] = 0;
+                events = rig.events.size();
+                allocated = allocatedBytes();
+                start = System.nanoTime();
+            }
+
+            RCTAVPlayer player = rig.createPlayer("churn" + (i % CHURN_UUIDS));
+            player.setSource(sources[i % CHURN_UUIDS]);
+            rig.runPlayback();
+            assertTrue(player.isMediaPlayerValid());
+            rig.removePlayer(player);
+            rig.runPlayback();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+
+        assertTrue(rig.registry.isEmpty());
+        report("playerChurn", "cycles", CHURN_CYCLES, "usPerCycle", micros(elapsed, CHURN_CYCLES),
+                "mediaPlayersCreated", created[0], "events", rig.events.size() - events,
+                "allocatedKb", allocated / 1024);
+    }
+
+    /**
+     * Progress ticks with N players playing at once.
+     */
+    @Test
+    public void progressThroughput() throws IOException
+    {
+        for (int count : TICK_PLAYERS)
+        {
+            RCTAVPlayerTestRig rig = new RCTAVPlayerTestRig();
+            rig.decoderBudget.setMaxDecoders(count);
+            for (int i = 0; i < count; i++)
+            {
+                startPlayer(rig, "tick" + i);
+            }
+            rig.runPlayback();
+            // Warm up
+            ShadowLooper.idleMainLooper(TICK_INTERVAL_MS * 10);
+
+            int events = rig.events.size();
+            long start = System.nanoTime();
+            for (int tick = 0; tick < TICKS; tick++)
+            {
+                ShadowLooper.idleMainLooper(TICK_INTERVAL_MS);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(TICKS, rig.events.size() - events);
+            report("progressThroughput", "players", count, "usPerTick", micros(elapsed, TICKS),
+                    "playerUpdatesPerSecond", (double) count * TICKS * 1e9 / elapsed);
+        }
+    }
+
+    /**
+     * Payloads and bytes allocated per progress tick. Bytes include the
+     * test's own looper, so they only compare between runs of this test.
+     */
+    @Test
+    public void allocationsPerTick() throws IOException
+    {
+        int count = 20;
+        RCTAVPlayerTestRig rig = new RCTAVPlayerTestRig();
+        rig.decoderBudget.setMaxDecoders(count);
+        for (int i = 0; i < count; i++)
+        {
+            startPlayer(rig, "alloc" + i);
+        }
+        rig.runPlayback();
+        ShadowLooper.idleMainLooper(TICK_INTERVAL_MS * 10);
+
+        int maps = rig.mapsCreated;
+        int arrays = rig.arraysCreated;
+        long allocated = allocatedBytes();
+        for (int tick = 0; tick < TICKS; tick++)
+        {
+            ShadowLooper.idleMainLooper(TICK_INTERVAL_MS);
+        }
+        allocated = allocatedBytes() - allocated;
+
+        assertEquals(TICKS, rig.arraysCreated - arrays);
+        assertEquals(maps, rig.mapsCreated);
+        report("allocationsPerTick", "players", count,
+                "arraysPerTick", (double) (rig.arraysCreated - arrays) / TICKS,
+                "mapsPerTick", (double) (rig.mapsCreated - maps) / TICKS,
+                "bytesPerTick", allocated < 0 ? -1 : allocated / TICKS);
+    }
+
+    /**
+     * Layers recycled between players the way a fast scroll does, with
+     * players replaced while their layers attach. This used to crash when
+     * a surface arrived for a player whose engine was being reset.
+     */
+    @Test
+    public void layerAttachDetachStorm() throws IOException
+    {
+        RCTAVPlayerTestRig rig = new RCTAVPlayerTestRig();
+        rig.decoderBudget.setMaxDecoders(STORM_PLAYERS);
+        RCTAVPlayer[] players = new RCTAVPlayer[STORM_PLAYERS];
+        for (int i = 0; i < STORM_PLAYERS; i++)
+        {
+            players[i] = startPlayer(rig, "storm" + i);
+        }
+        rig.runPlayback();
+
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        FrameLayout container = new FrameLayout(activity);
+        activity.setContentView(container);
+        ThemedReactContext layerContext = rig.createLayerContext();
+        List<RCTAVPlayerLayer> layers = new ArrayList<>();
+        List<SurfaceTexture> surfaces = new ArrayList<>();
+        for (int i = 0; i < STORM_PLAYERS; i++)
+        {
+            layers.add(new RCTAVPlayerLayer(layerContext));
+            surfaces.add(null);
+        }
+
+        int replaced = 0;
+        long start = 0;
+        for (int round = 0; round < STORM_WARMUP + STORM_ROUNDS; round++)
+        {
+            if (round == STORM_WARMUP)
+            {
+                replaced = 0;
+                start = System.nanoTime();
+            }
+
+            // Off screen, then rebound and back, as a recycler view does
+            for (int i = 0; i < STORM_PLAYERS; i++)
+            {
+                RCTAVPlayerLayer layer = layers.get(i);
+                if (surfaces.get(i) != null)
+                {
+                    container.removeView(layer);
+                    layer.onSurfaceTextureDestroyed(surfaces.get(i));
+                    surfaces.set(i, null);
+                }
+            }
+            for (int i = 0; i < STORM_PLAYERS; i++)
+            {
+                layers.get(i).setPlayerUuid("storm" + ((i + round) % STORM_PLAYERS));
+            }
+            if (round % STORM_REPLACE_EVERY == 0)
+            {
+                int index = round / STORM_REPLACE_EVERY % STORM_PLAYERS;
+                rig.removePlayer(players[index]);
+                players[index] = startPlayer(rig, "storm" + index);
+                replaced++;
+            }
+            for (int i = 0; i < STORM_PLAYERS; i++)
+            {
+                RCTAVPlayerLayer layer = layers.get(i);
+                SurfaceTexture surface = new SurfaceTexture(0);
+                container.addView(layer);
+                layer.onSurfaceTextureAvailable(surface, 320, 180);
+                // The view measures while the playback thread is busy
+                layer.getVideoWidth();
+                surfaces.set(i, surface);
+            }
+            rig.runPlayback();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (RCTAVPlayer player : players)
+        {
+            assertTrue(player.isMediaPlayerValid());
+        }
+        report("layerAttachDetachStorm", "layers", STORM_PLAYERS, "rounds", STORM_ROUNDS,
+                "usPerRound", micros(elapsed, STORM_ROUNDS), "playersReplaced", replaced);
+    }
+}
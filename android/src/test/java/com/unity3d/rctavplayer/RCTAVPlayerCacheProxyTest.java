@@ -0,0 +1,136 @@
+package com.unity3d.rctavplayer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The proxy against a local upstream that streams without a length and
+ * ignores ranges, the hardest case for answering range requests.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RCTAVPlayerCacheProxyTest
+{
+    private static final int LENGTH = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mContent = new byte[LENGTH];
+    private HttpServer mUpstream;
+    private RCTAVPlayerCacheProxy mProxy;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        for (int i = 0; i < LENGTH; i++)
+        {
+            mContent[i] = (byte) i;
+        }
+
+        mUpstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mUpstream.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                // Chunked, so there is no length to pass on
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream body = exchange.getResponseBody();
+                body.write(mContent);
+                body.close();
+            }
+        });
+        mUpstream.start();
+        mUrl = "http://127.0.0.1:" + mUpstream.getAddress().getPort() + "/video.mp4";
+
+        mProxy = new RCTAVPlayerCacheProxy(mFolder.newFolder("cache"), new RCTAVPlayerBandwidthMeter());
+        assertTrue(mProxy.start());
+    }
+
+    @After
+    public void tearDown()
+    {
+        mProxy.stop();
+        mUpstream.stop(0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+        {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] slice(byte[] bytes, int from, int to)
+    {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(bytes, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    @Test
+    public void rejectsRequestsWithoutTheToken() throws IOException
+    {
+        String proxyUrl = mProxy.getProxyUrl(mUrl);
+        String withoutToken = proxyUrl.replaceFirst("/[0-9a-f]+/", "/");
+        String wrongToken = proxyUrl.replaceFirst("/[0-9a-f]+/", "/0123456789abcdef0123456789abcdef/");
+
+        assertEquals(403, ((HttpURLConnection) new URL(withoutToken).openConnection()).getResponseCode());
+        assertEquals(403, ((HttpURLConnection) new URL(wrongToken).openConnection()).getResponseCode());
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(proxyUrl).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(mContent, readAll(connection.getInputStream()));
+    }
+
+    @Test
+    public void closedRangeOfUnknownLengthIsPartial() throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mProxy.getProxyUrl(mUrl)).openConnection();
+        connection.setRequestProperty("Range", "bytes=100-199");
+
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 100-199/*", connection.getHeaderField("Content-Range"));
+        assertArrayEquals(slice(mContent, 100, 200), readAll(connection.getInputStream()));
+    }
+
+    @Test
+    public void openRangeOfUnknownLengthIsWholeBody() throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mProxy.getProxyUrl(mUrl)).openConnection();
+        connection.setRequestProperty("Range", "bytes=100-");
+
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(mContent, readAll(connection.getInputStream()));
+    }
+}
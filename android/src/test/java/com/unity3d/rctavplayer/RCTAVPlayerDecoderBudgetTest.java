@@ -0,0 +1,116 @@
+package com.unity3d.rctavplayer;
+
+import com.facebook.react.bridge.Arguments;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Players only take a decoder back from the budget when they are played or
+ * shown, never for a change of their modifiers. A queued source only uses a
+ * spare decoder.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "android.*"})
+@PrepareForTest({Arguments.class, RCTAVPlayerModule.class})
+public class RCTAVPlayerDecoderBudgetTest
+{
+    private static final String EVENT_ITEM_LOAD_START = RCTAVPlayerLayer.Events.EVENT_ITEM_LOAD_START.toString();
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private RCTAVPlayerTestRig mRig;
+
+    @Before
+    public void setUp()
+    {
+        mRig = new RCTAVPlayerTestRig();
+        mRig.decoderBudget.setMaxDecoders(1);
+    }
+
+    private RCTAVPlayer preparedPlayer(String uuid)
+    {
+        RCTAVPlayer player = mRig.createPlayer(uuid);
+        player.setSource(RCTAVPlayerTestRig.source("/sdcard/" + uuid + ".mp4"));
+        mRig.runPlayback();
+        return player;
+    }
+
+    @Test
+    public void modifiersLeavePausedPlayerDemoted()
+    {
+        RCTAVPlayer demoted = preparedPlayer("demoted");
+        RCTAVPlayer active = preparedPlayer("active");
+        assertTrue(demoted.isDemoted());
+
+        demoted.setVolume(0.5f);
+        demoted.setMuted(true);
+        demoted.setRepeat(true);
+        mRig.runPlayback();
+
+        assertTrue(demoted.isDemoted());
+        assertFalse(active.isDemoted());
+        assertTrue(active.isMediaPlayerValid());
+    }
+
+    @Test
+    public void playingRestoresDemotedPlayer()
+    {
+        RCTAVPlayer demoted = preparedPlayer("demoted");
+        RCTAVPlayer active = preparedPlayer("active");
+        assertTrue(demoted.isDemoted());
+
+        demoted.setRate(1.0f);
+        mRig.runPlayback();
+
+        assertFalse(demoted.isDemoted());
+        assertTrue(demoted.isMediaPlayerValid());
+        assertTrue(active.isDemoted());
+    }
+
+    private int activeDecoders()
+    {
+        return mRig.decoderBudget.getStats().getInt("active");
+    }
+
+    @Test
+    public void queueWaitsForSpareDecoder()
+    {
+        RCTAVPlayer player = preparedPlayer("queue");
+        player.enqueue(RCTAVPlayerTestRig.source("/sdcard/next.mp4"));
+        mRig.runPlayback();
+
+        assertEquals(0, mRig.countEvents(EVENT_ITEM_LOAD_START));
+        assertEquals(1, activeDecoders());
+    }
+
+    @Test
+    public void queueGivesUpDecoderBeforeDemoting()
+    {
+        mRig.decoderBudget.setMaxDecoders(2);
+        RCTAVPlayer queued = preparedPlayer("queued");
+        queued.enqueue(RCTAVPlayerTestRig.source("/sdcard/next.mp4"));
+        mRig.runPlayback();
+        assertEquals(1, mRig.countEvents(EVENT_ITEM_LOAD_START));
+        assertEquals(2, activeDecoders());
+
+        RCTAVPlayer other = preparedPlayer("other");
+        assertFalse(queued.isDemoted());
+        assertTrue(queued.isMediaPlayerValid());
+        assertTrue(other.isMediaPlayerValid());
+        assertEquals(2, activeDecoders());
+    }
+}
@@ -0,0 +1,115 @@
+package com.unity3d.rctavplayer;
+
+import android.graphics.SurfaceTexture;
+
+import com.facebook.react.bridge.Arguments;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Surfaces a fan-out draws into are only released once it has let go of
+ * them. Robolectric has no GL, so setting up the fan-out fails the way it
+ * does on devices without EGL.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23, shadows = RCTAVPlayerTestRig.ReleasableShadowSurface.class)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "android.*"})
+@PrepareForTest({Arguments.class, RCTAVPlayerModule.class})
+public class RCTAVPlayerFanoutTest
+{
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private RCTAVPlayerTestRig mRig;
+    private RCTAVPlayer mPlayer;
+
+    static class CountingSurfaceTexture extends SurfaceTexture
+    {
+        int released = 0;
+
+        CountingSurfaceTexture()
+        {
+            super(0);
+        }
+
+        @Override
+        public void release()
+        {
+            released++;
+            super.release();
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        mRig = new RCTAVPlayerTestRig();
+        mPlayer = mRig.createPlayer("fanout");
+        mPlayer.setSource(RCTAVPlayerTestRig.source("/sdcard/fanout.mp4"));
+        mRig.runPlayback();
+    }
+
+    @Test
+    public void releasesSurfaceAfterPendingFanoutCalls()
+    {
+        Object first = new Object();
+        Object second = new Object();
+        CountingSurfaceTexture firstTexture = new CountingSurfaceTexture();
+        CountingSurfaceTexture secondTexture = new CountingSurfaceTexture();
+
+        ShadowLooper.pauseMainLooper();
+        mPlayer.setOutput(first, firstTexture);
+        mPlayer.setOutput(second, secondTexture);
+        // Setting up the fan-out has not reported back yet
+        mPlayer.releaseOutput(second, secondTexture);
+        assertEquals(0, secondTexture.released);
+
+        ShadowLooper.unPauseMainLooper();
+        mRig.runFanouts();
+        assertEquals(1, secondTexture.released);
+        assertEquals(0, firstTexture.released);
+    }
+
+    @Test
+    public void releasesSurfaceRightAwayWithoutFanout()
+    {
+        Object layer = new Object();
+        CountingSurfaceTexture texture = new CountingSurfaceTexture();
+
+        mPlayer.setOutput(layer, texture);
+        mPlayer.releaseOutput(layer, texture);
+        assertEquals(1, texture.released);
+    }
+
+    @Test
+    public void showsOneLayerWithoutGl()
+    {
+        CountingSurfaceTexture firstTexture = new CountingSurfaceTexture();
+        CountingSurfaceTexture secondTexture = new CountingSurfaceTexture();
+        mPlayer.setOutput(new Object(), firstTexture);
+        mPlayer.setOutput(new Object(), secondTexture);
+        mRig.runFanouts();
+
+        // Set up failed once, so more layers do not try again
+        CountingSurfaceTexture thirdTexture = new CountingSurfaceTexture();
+        Object third = new Object();
+        mPlayer.setOutput(third, thirdTexture);
+        mPlayer.releaseOutput(third, thirdTexture);
+        assertEquals(1, thirdTexture.released);
+        assertFalse(mRig.registry.isEmpty());
+        assertTrue(mPlayer.isMediaPlayerValid());
+    }
+}
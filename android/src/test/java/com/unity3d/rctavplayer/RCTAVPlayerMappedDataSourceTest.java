@@ -0,0 +1,208 @@
+package com.unity3d.rctavplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class RCTAVPlayerMappedDataSourceTest
+{
+    private static final int FILE_SIZE = 256 * 1024 + 17;
+    private static final int THREADS = 8;
+    private static final int READS_PER_THREAD = 2000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private byte[] mContent;
+    private final List<RCTAVPlayerMappedDataSource> mSources = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mContent = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mContent);
+        mFile = mFolder.newFile("video.mp4");
+        FileOutputStream out = new FileOutputStream(mFile);
+        try
+        {
+            out.write(mContent);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (RCTAVPlayerMappedDataSource source : mSources)
+        {
+            source.close();
+        }
+    }
+
+    private RCTAVPlayerMappedDataSource open()
+    {
+        RCTAVPlayerMappedDataSource source = RCTAVPlayerMappedDataSource.open(mFile);
+        assertNotNull(source);
+        mSources.add(source);
+        return source;
+    }
+
+    private void assertRead(RCTAVPlayerMappedDataSource source, int position, int size) throws IOException
+    {
+        byte[] buffer = new byte[size + 8];
+        int count = source.readAt(position, buffer, 8, size);
+        int expected = Math.min(size, FILE_SIZE - position);
+        assertEquals("bytes read at " + position, expected, count);
+        assertArrayEquals("content at " + position,
+                Arrays.copyOfRange(mContent, position, position + count),
+                Arrays.copyOfRange(buffer, 8, 8 + count));
+    }
+
+    @Test
+    public void readsAtRandomOffsets() throws IOException
+    {
+        RCTAVPlayerMappedDataSource source = open();
+        assertEquals(FILE_SIZE, source.getSize());
+
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertRead(source, random.nextInt(FILE_SIZE), 1 + random.nextInt(64 * 1024));
+        }
+    }
+
+    @Test
+    public void readsShortThenEndOfFile() throws IOException
+    {
+        RCTAVPlayerMappedDataSource source = open();
+        byte[] buffer = new byte[100];
+
+        assertRead(source, FILE_SIZE - 10, 100);
+        assertRead(source, FILE_SIZE - 1, 1);
+        assertEquals(-1, source.readAt(FILE_SIZE, buffer, 0, buffer.length));
+        assertEquals(-1, source.readAt(FILE_SIZE + 1000L, buffer, 0, buffer.length));
+        assertEquals(-1, source.readAt(Long.MAX_VALUE, buffer, 0, buffer.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativePosition() throws IOException
+    {
+        open().readAt(-1, new byte[16], 0, 16);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsReadsAfterClose() throws IOException
+    {
+        RCTAVPlayerMappedDataSource source = open();
+        source.close();
+        source.readAt(0, new byte[16], 0, 16);
+    }
+
+    @Test
+    public void sourcesKeepTheirOwnPosition() throws IOException
+    {
+        RCTAVPlayerMappedDataSource first = open();
+        RCTAVPlayerMappedDataSource second = open();
+
+        assertRead(first, 1000, 500);
+        assertRead(second, 200000, 500);
+        // Closing one source leaves the shared mapping to the other
+        first.close();
+        assertRead(second, 0, 4096);
+        assertRead(open(), FILE_SIZE - 4096, 4096);
+    }
+
+    @Test
+    public void concurrentReads() throws Exception
+    {
+        // Half the threads share one source, the others each get their own
+        final RCTAVPlayerMappedDataSource shared = open();
+        final RCTAVPlayerMappedDataSource[] sources = new RCTAVPlayerMappedDataSource[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            sources[i] = i % 2 == 0 ? shared : open();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++)
+        {
+            final RCTAVPlayerMappedDataSource source = sources[i];
+            final long seed = i;
+            results.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    Random random = new Random(seed);
+                    start.await();
+                    for (int j = 0; j < READS_PER_THREAD; j++)
+                    {
+                        assertRead(source, random.nextInt(FILE_SIZE), 1 + random.nextInt(8192));
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+        try
+        {
+            for (Future<Void> result : results)
+            {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeIsIdempotent() throws IOException
+    {
+        RCTAVPlayerMappedDataSource first = open();
+        RCTAVPlayerMappedDataSource second = open();
+        first.close();
+        first.close();
+
+        try
+        {
+            first.readAt(0, new byte[1], 0, 1);
+            fail("Closed source must not read");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+        // A double close must not drop the mapping the second source uses
+        assertRead(second, 12345, 100);
+    }
+}
@@ -0,0 +1,116 @@
+package com.unity3d.rctavplayer;
+
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.os.Looper;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "android.*"})
+@PrepareForTest({Arguments.class, RCTAVPlayerModule.class})
+public class RCTAVPlayerPlaybackRateTest
+{
+    private static final String EVENT_LOAD = RCTAVPlayerLayer.Events.EVENT_LOAD.toString();
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    /**
+     * Counts what would start a prepared player, and reports one audio
+     * track.
+     */
+    static class CountingMediaPlayer extends RCTAVPlayerTestRig.RateMediaPlayer
+    {
+        int paramsSet = 0;
+        int started = 0;
+
+        @Override
+        public void setPlaybackParams(PlaybackParams params)
+        {
+            paramsSet++;
+            super.setPlaybackParams(params);
+        }
+
+        @Override
+        public void start()
+        {
+            started++;
+            super.start();
+        }
+
+        @Override
+        public TrackInfo[] getTrackInfo()
+        {
+            TrackInfo audio = mock(TrackInfo.class);
+            when(audio.getTrackType()).thenReturn(TrackInfo.MEDIA_TRACK_TYPE_AUDIO);
+            return new TrackInfo[] {audio};
+        }
+    }
+
+    private ReadableMap load(final MediaPlayer mediaPlayer)
+    {
+        RCTAVPlayerTestRig rig = new RCTAVPlayerTestRig(new RCTAVPlayerMediaPlayerPool(
+                new RCTAVPlayerMediaPlayerPool.Factory()
+                {
+                    @Override
+                    public MediaPlayer create()
+                    {
+                        return mediaPlayer;
+                    }
+                }));
+        RCTAVPlayer player = rig.createPlayer("rate");
+        player.setSource(RCTAVPlayerTestRig.source("/sdcard/rate.mp4"));
+        rig.runPlayback();
+
+        assertEquals(1, rig.countEvents(EVENT_LOAD));
+        for (RCTAVPlayerTestRig.Event event : rig.events)
+        {
+            if (event.name.equals(EVENT_LOAD))
+            {
+                return (ReadableMap) event.data;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void reportsRatesWithoutStartingPlayer()
+    {
+        CountingMediaPlayer mediaPlayer = new CountingMediaPlayer();
+        ReadableMap event = load(mediaPlayer);
+        assertTrue(event.getBoolean("canPlayFastForward"));
+        assertTrue(event.getBoolean("canPlaySlowForward"));
+        assertEquals(0, mediaPlayer.paramsSet);
+        assertEquals(0, mediaPlayer.started);
+        assertFalse(mediaPlayer.isPlaying());
+    }
+
+    @Test
+    public void codecEngineAdvertisesTheRatesItPlays()
+    {
+        RCTAVPlayerCodecEngine engine = new RCTAVPlayerCodecEngine(null, Looper.getMainLooper());
+        assertTrue(engine.supportsPlaybackRate());
+        assertTrue(engine.probePlaybackRate(2.0f));
+        assertTrue(engine.probePlaybackRate(0.5f));
+        assertFalse(engine.probePlaybackRate(0.0f));
+        engine.release();
+    }
+}
@@ -0,0 +1,214 @@
+package com.unity3d.rctavplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Layers resolve their player through a handle on the UI thread while
+ * players are created and removed on the playback thread.
+ */
+public class RCTAVPlayerRegistryTest
+{
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int UUIDS = 8;
+    private static final int CYCLES = 20000;
+
+    @Test
+    public void staleHandleDoesNotResolveReusedUuid()
+    {
+        RCTAVPlayerRegistry registry = new RCTAVPlayerRegistry();
+        RCTAVPlayer first = mock(RCTAVPlayer.class);
+        RCTAVPlayer second = mock(RCTAVPlayer.class);
+
+        RCTAVPlayerRegistry.Handle firstHandle = registry.register("a", first);
+        assertSame(firstHandle, registry.getHandle("a"));
+        assertSame(first, registry.get(firstHandle));
+
+        assertTrue(registry.remove("a", first));
+        RCTAVPlayerRegistry.Handle secondHandle = registry.register("a", second);
+        assertNull(registry.get(firstHandle));
+        assertSame(second, registry.get(secondHandle));
+        assertSame(secondHandle, registry.getHandle("a"));
+    }
+
+    @Test
+    public void replacedPlayerIsNotRemovedByItsUuid()
+    {
+        RCTAVPlayerRegistry registry = new RCTAVPlayerRegistry();
+        RCTAVPlayer first = mock(RCTAVPlayer.class);
+        RCTAVPlayer second = mock(RCTAVPlayer.class);
+
+        RCTAVPlayerRegistry.Handle firstHandle = registry.register("a", first);
+        RCTAVPlayerRegistry.Handle secondHandle = registry.register("a", second);
+        assertNull(registry.get(firstHandle));
+
+        assertFalse(registry.remove("a", first));
+        assertSame(second, registry.get(secondHandle));
+    }
+
+    @Test
+    public void concurrentCreateAndRemove() throws Exception
+    {
+        final RCTAVPlayerRegistry registry = new RCTAVPlayerRegistry();
+        // Every handle and the player it was issued for
+        final Map<RCTAVPlayerRegistry.Handle, RCTAVPlayer> issued = new ConcurrentHashMap<>();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        List<Future<Integer>> writers = new ArrayList<>();
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++)
+        {
+            final RCTAVPlayer[] players = new RCTAVPlayer[4];
+            for (int j = 0; j < players.length; j++)
+            {
+                players[j] = mock(RCTAVPlayer.class);
+            }
+            final int writer = i;
+            writers.add(executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    start.await();
+                    int removed = 0;
+                    for (int j = 0; j < CYCLES; j++)
+                    {
+                        // Writers share uuids, so they also replace each other
+                        String uuid = "player" + ((j + writer) % UUIDS);
+                        RCTAVPlayer player = players[j % players.length];
+                        RCTAVPlayerRegistry.Handle handle = registry.register(uuid, player);
+                        assertNotNull(handle);
+                        issued.put(handle, player);
+
+                        if (registry.remove(uuid, player))
+                        {
+                            removed++;
+                        }
+                        // Removed or replaced, either way the handle is stale
+                        assertNull(registry.get(handle));
+                    }
+                    return removed;
+                }
+            }));
+        }
+        for (int i = 0; i < READERS; i++)
+        {
+            readers.add(executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    start.await();
+                    int resolved = 0;
+                    while (writing.get())
+                    {
+                        for (int j = 0; j < UUIDS; j++)
+                        {
+                            RCTAVPlayerRegistry.Handle handle = registry.getHandle("player" + j);
+                            if (handle == null)
+                            {
+                                continue;
+                            }
+                            RCTAVPlayer player = registry.get(handle);
+                            RCTAVPlayer expected = issued.get(handle);
+                            // Never the player of another generation
+                            if (player != null && expected != null)
+                            {
+                                assertSame(expected, player);
+                                resolved++;
+                            }
+                        }
+                    }
+                    return resolved;
+                }
+            }));
+        }
+
+        start.countDown();
+        try
+        {
+            int removed = 0;
+            for (Future<Integer> writer : writers)
+            {
+                removed += writer.get(60, TimeUnit.SECONDS);
+            }
+            writing.set(false);
+            for (Future<Integer> reader : readers)
+            {
+                reader.get(60, TimeUnit.SECONDS);
+            }
+
+            assertEquals(WRITERS * CYCLES, issued.size());
+            assertTrue(removed > 0);
+            assertTrue(registry.isEmpty());
+            for (RCTAVPlayerRegistry.Handle handle : issued.keySet())
+            {
+                assertNull(registry.get(handle));
+            }
+        }
+        finally
+        {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeWhileRegistering() throws Exception
+    {
+        final RCTAVPlayerRegistry registry = new RCTAVPlayerRegistry();
+        final List<RCTAVPlayerRegistry.Handle> handles = new ArrayList<>();
+        final RCTAVPlayer player = mock(RCTAVPlayer.class);
+        final CountDownLatch registering = new CountDownLatch(1);
+
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < CYCLES; i++)
+                {
+                    RCTAVPlayerRegistry.Handle handle = registry.register("player" + (i % UUIDS), player);
+                    if (handle != null)
+                    {
+                        handles.add(handle);
+                    }
+                    registering.countDown();
+                }
+            }
+        });
+        writer.start();
+        registering.await();
+        registry.close();
+        writer.join(60000);
+
+        assertTrue(registry.isEmpty());
+        assertNull(registry.register("late", player));
+        for (RCTAVPlayerRegistry.Handle handle : handles)
+        {
+            assertNull(registry.get(handle));
+        }
+    }
+}
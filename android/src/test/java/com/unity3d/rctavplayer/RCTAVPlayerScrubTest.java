@@ -0,0 +1,82 @@
+package com.unity3d.rctavplayer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A scrub seeks on every frame while it lasts but is reported to JS as the
+ * one seek it amounts to.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "android.*"})
+@PrepareForTest({Arguments.class, RCTAVPlayerModule.class})
+public class RCTAVPlayerScrubTest
+{
+    private static final String EVENT_SEEK = RCTAVPlayerLayer.Events.EVENT_SEEK.toString();
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private RCTAVPlayerTestRig mRig;
+    private RCTAVPlayer mPlayer;
+
+    @Before
+    public void setUp()
+    {
+        mRig = new RCTAVPlayerTestRig();
+        mPlayer = mRig.createPlayer("scrub");
+        mPlayer.setSource(RCTAVPlayerTestRig.source("/sdcard/scrub.mp4"));
+        mRig.runPlayback();
+        assertTrue(mPlayer.isMediaPlayerValid());
+    }
+
+    @Test
+    public void scrubReportsOneSeek()
+    {
+        int maps = mRig.mapsCreated;
+        int start = mPlayer.getCurrentPosition();
+
+        mPlayer.setScrubbing(true);
+        for (int i = 0; i < 500; i++)
+        {
+            mPlayer.setSeek(i * 0.1f);
+            // Let some of the seeks complete in between
+            if (i % 10 == 0)
+            {
+                mRig.runPlayback();
+            }
+        }
+        mRig.runPlayback();
+        assertEquals("payloads while scrubbing", maps, mRig.mapsCreated);
+        assertEquals(0, mRig.countEvents(EVENT_SEEK));
+
+        mPlayer.setScrubbing(false);
+        mRig.runPlayback();
+        assertEquals(maps + 1, mRig.mapsCreated);
+        assertEquals(1, mRig.countEvents(EVENT_SEEK));
+
+        for (RCTAVPlayerTestRig.Event event : mRig.events)
+        {
+            if (event.name.equals(EVENT_SEEK))
+            {
+                // From where the scrub started to where it ended
+                assertEquals(start, ((ReadableMap) event.data).getDouble("currentTime") * 1000, 1);
+                assertEquals(49.9, ((ReadableMap) event.data).getDouble("seekTime"), 0.001);
+            }
+        }
+    }
+}
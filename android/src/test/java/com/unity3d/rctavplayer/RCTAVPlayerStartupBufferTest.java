@@ -0,0 +1,111 @@
+package com.unity3d.rctavplayer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The startup buffer is only waited for while JS wants playback. The
+ * network source never buffers here, so every start has to wait.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+@PowerMockIgnore({"org.mockito.*", "org.robolectric.*", "android.*"})
+@PrepareForTest({Arguments.class, RCTAVPlayerModule.class})
+public class RCTAVPlayerStartupBufferTest
+{
+    private static final String EVENT_BUFFERING = RCTAVPlayerLayer.Events.EVENT_BUFFERING.toString();
+    private static final String URI = "http://127.0.0.1/startup.mp4";
+    // Past the longest startup wait
+    private static final int WAIT_MS = 11000;
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private RCTAVPlayerTestRig mRig;
+    private RCTAVPlayer mPlayer;
+
+    @Before
+    public void setUp()
+    {
+        mRig = new RCTAVPlayerTestRig();
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(URI),
+                new ShadowMediaPlayer.MediaInfo(RCTAVPlayerTestRig.DURATION_MS, 0));
+        JavaOnlyMap source = new JavaOnlyMap();
+        source.putString("uri", URI);
+        source.putBoolean("isNetwork", true);
+        source.putBoolean("isAsset", false);
+
+        mPlayer = mRig.createPlayer("startup");
+        mPlayer.setStartupBuffer(5000);
+        mPlayer.setSource(source);
+        mRig.runPlayback();
+        assertTrue(mPlayer.isMediaPlayerValid());
+    }
+
+    private List<Boolean> buffering()
+    {
+        List<Boolean> buffering = new ArrayList<>();
+        for (RCTAVPlayerTestRig.Event event : mRig.events)
+        {
+            if (event.name.equals(EVENT_BUFFERING))
+            {
+                buffering.add(((ReadableMap) event.data).getBoolean("buffering"));
+            }
+        }
+        return buffering;
+    }
+
+    @Test
+    public void pausedPlayerDoesNotWait()
+    {
+        mPlayer.setVolume(0.5f);
+        mPlayer.setMuted(true);
+        ShadowLooper.idleMainLooper(WAIT_MS);
+
+        assertTrue(buffering().isEmpty());
+        assertFalse(mPlayer.isPlaying());
+    }
+
+    @Test
+    public void pausingEndsTheWait()
+    {
+        mPlayer.setRate(1.0f);
+        assertEquals(1, buffering().size());
+        assertTrue(buffering().get(0));
+
+        mPlayer.setRate(0.0f);
+        assertEquals(2, buffering().size());
+        assertFalse(buffering().get(1));
+
+        // The timeout does not start a paused player
+        ShadowLooper.idleMainLooper(WAIT_MS);
+        assertEquals(2, buffering().size());
+        assertFalse(mPlayer.isPlaying());
+
+        // A new start waits again
+        mPlayer.setRate(1.0f);
+        assertEquals(3, buffering().size());
+        assertTrue(buffering().get(2));
+    }
+}
@@ -0,0 +1,320 @@
+package com.unity3d.rctavplayer;
+
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.Surface;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.CatalystInstance;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.queue.MessageQueueThread;
+import com.facebook.react.bridge.queue.ReactQueueConfiguration;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.facebook.react.uimanager.ThemedReactContext;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.ShadowSurface;
+import org.robolectric.shadows.util.DataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.powermock.api.mockito.PowerMockito.doAnswer;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+/**
+ * Players on a mocked module, driven by Robolectric's main looper in place
+ * of the playback thread and by ShadowMediaPlayer in place of a decoder.
+ * Event payloads are Java-only maps and arrays, counted as they are created.
+ * The mocks come from PowerMock, which also stubs the module's
+ * package-private methods.
+ *
+ * Tests using the rig run with RobolectricTestRunner, a PowerMockRule and
+ * {@code @PrepareForTest({Arguments.class, RCTAVPlayerModule.class})}, and
+ * create it in {@code @Before}.
+ */
+class RCTAVPlayerTestRig
+{
+    static final int DURATION_MS = 60000;
+
+    static class Event
+    {
+        final String name;
+        final Object data;
+
+        Event(String name, Object data)
+        {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Keeps its playback params, which ShadowMediaPlayer does not model.
+     */
+    static class RateMediaPlayer extends MediaPlayer
+    {
+        private PlaybackParams mParams = new PlaybackParams().allowDefaults();
+
+        @Override
+        public PlaybackParams getPlaybackParams()
+        {
+            return mParams;
+        }
+
+        @Override
+        public void setPlaybackParams(PlaybackParams params)
+        {
+            mParams = params;
+        }
+    }
+
+    /**
+     * ShadowSurface skips the constructor, so the framework's release()
+     * would fail on the missing close guard. For tests that connect
+     * layers, with {@code @Config(shadows = ...)}.
+     */
+    @Implements(Surface.class)
+    public static class ReleasableShadowSurface extends ShadowSurface
+    {
+        @Implementation
+        public void release()
+        {
+        }
+    }
+
+    static final RCTAVPlayerMediaPlayerPool.Factory FACTORY = new RCTAVPlayerMediaPlayerPool.Factory()
+    {
+        @Override
+        public MediaPlayer create()
+        {
+            return new RateMediaPlayer();
+        }
+    };
+
+    final List<Event> events = new ArrayList<>();
+    final ReactApplicationContext context;
+    final RCTAVPlayerModule module;
+    final Handler playbackHandler;
+    final RCTAVPlayerProgressTicker progressTicker;
+    final RCTAVPlayerMediaPlayerPool mediaPlayerPool;
+    final RCTAVPlayerDecoderBudget decoderBudget;
+    final RCTAVPlayerRegistry registry = new RCTAVPlayerRegistry();
+    int mapsCreated = 0;
+    int arraysCreated = 0;
+
+    RCTAVPlayerTestRig()
+    {
+        this(new RCTAVPlayerMediaPlayerPool(FACTORY));
+    }
+
+    RCTAVPlayerTestRig(RCTAVPlayerMediaPlayerPool pool)
+    {
+        mockStatic(Arguments.class);
+        when(Arguments.createMap()).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                mapsCreated++;
+                return new JavaOnlyMap();
+            }
+        });
+        when(Arguments.createArray()).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                arraysCreated++;
+                return new JavaOnlyArray();
+            }
+        });
+
+        context = mock(ReactApplicationContext.class);
+        when(context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)).thenReturn(
+                new DeviceEventManagerModule.RCTDeviceEventEmitter()
+                {
+                    @Override
+                    public void emit(String name, Object data)
+                    {
+                        events.add(new Event(name, data));
+                    }
+                });
+
+        playbackHandler = new Handler(Looper.getMainLooper());
+        progressTicker = new RCTAVPlayerProgressTicker(context, Looper.getMainLooper());
+        mediaPlayerPool = pool;
+        decoderBudget = new RCTAVPlayerDecoderBudget();
+
+        module = mock(RCTAVPlayerModule.class);
+        when(module.getPlaybackHandler()).thenReturn(playbackHandler);
+        when(module.getProgressTicker()).thenReturn(progressTicker);
+        when(module.getMediaPlayerPool()).thenReturn(mediaPlayerPool);
+        when(module.getPreloader()).thenReturn(new RCTAVPlayerPreloader());
+        when(module.getDecoderBudget()).thenReturn(decoderBudget);
+        when(module.getBandwidthMeter()).thenReturn(new RCTAVPlayerBandwidthMeter());
+        when(module.getModuleMetrics()).thenReturn(new RCTAVPlayerMetrics(null));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return playbackHandler.post((Runnable) invocation.getArguments()[0]);
+            }
+        }).when(module).runOnPlaybackThread(any(Runnable.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+            {
+                final RCTAVPlayerRegistry.Handle handle = (RCTAVPlayerRegistry.Handle) invocation.getArguments()[0];
+                playbackHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (registry.get(handle) != null)
+                        {
+                            ((Runnable) invocation.getArguments()[1]).run();
+                        }
+                    }
+                });
+                return null;
+            }
+        }).when(module).runOnPlayer(any(RCTAVPlayerRegistry.Handle.class), any(Runnable.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return registry.getHandle((String) invocation.getArguments()[0]);
+            }
+        }).when(module).getPlayerHandle(any(String.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return registry.get((RCTAVPlayerRegistry.Handle) invocation.getArguments()[0]);
+            }
+        }).when(module).getPlayer(any(RCTAVPlayerRegistry.Handle.class));
+
+        // What layers need: the module and a UI queue, the main looper here
+        MessageQueueThread uiQueue = mock(MessageQueueThread.class);
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                playbackHandler.post((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(uiQueue).runOnQueue(any(Runnable.class));
+        ReactQueueConfiguration queueConfiguration = mock(ReactQueueConfiguration.class);
+        when(queueConfiguration.getUIQueueThread()).thenReturn(uiQueue);
+        when(queueConfiguration.getNativeModulesQueueThread()).thenReturn(uiQueue);
+        when(queueConfiguration.getJSQueueThread()).thenReturn(uiQueue);
+        CatalystInstance catalystInstance = mock(CatalystInstance.class);
+        when(catalystInstance.getReactQueueConfiguration()).thenReturn(queueConfiguration);
+        when(catalystInstance.getNativeModule(RCTAVPlayerModule.class)).thenReturn(module);
+        when(context.getCatalystInstance()).thenReturn(catalystInstance);
+    }
+
+    /**
+     * A context for layers, which find the module through it.
+     */
+    ThemedReactContext createLayerContext()
+    {
+        return new ThemedReactContext(context, RuntimeEnvironment.application);
+    }
+
+    RCTAVPlayer createPlayer(String uuid)
+    {
+        RCTAVPlayer player = new RCTAVPlayer(context, module);
+        player.setUuid(uuid);
+        player.setHandle(registry.register(uuid, player));
+        return player;
+    }
+
+    void removePlayer(RCTAVPlayer player)
+    {
+        registry.remove(player.getUuid(), player);
+        player.invalidate();
+    }
+
+    /**
+     * A local source ShadowMediaPlayer prepares right away.
+     */
+    static ReadableMap source(String path)
+    {
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(path), new ShadowMediaPlayer.MediaInfo(DURATION_MS, 0));
+        JavaOnlyMap source = new JavaOnlyMap();
+        source.putString("uri", path);
+        source.putBoolean("isNetwork", false);
+        source.putBoolean("isAsset", true);
+        return source;
+    }
+
+    void runPlayback()
+    {
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    /**
+     * Runs what is posted to fan-out threads, which Robolectric leaves to
+     * the test, and what they post back, until neither side has work left.
+     */
+    void runFanouts()
+    {
+        boolean ran;
+        do
+        {
+            runPlayback();
+            ran = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet())
+            {
+                if (!(thread instanceof HandlerThread) || !thread.getName().equals("RCTAVPlayerFanout"))
+                {
+                    continue;
+                }
+                Looper looper = ((HandlerThread) thread).getLooper();
+                ShadowLooper shadowLooper = looper != null ? Shadows.shadowOf(looper) : null;
+                if (shadowLooper != null && shadowLooper.getScheduler().size() > 0)
+                {
+                    shadowLooper.runToEndOfTasks();
+                    ran = true;
+                }
+            }
+        }
+        while (ran);
+    }
+
+    int countEvents(String name)
+    {
+        int count = 0;
+        for (Event event : events)
+        {
+            if (event.name.equals(name))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+}